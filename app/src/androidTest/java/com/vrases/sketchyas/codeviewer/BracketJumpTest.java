@@ -0,0 +1,59 @@
+package com.vrases.sketchyas.codeviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.text.Selection;
+import android.text.Spannable;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class BracketJumpTest {
+
+	private static final String CODE = "{\n\tcall();\n}\n";
+
+	@Test
+	public void jumpsInTextView() {
+		InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				CodeViewer viewer = createViewer();
+				viewer.setCode(CODE);
+				assertFalse(viewer.isVirtualLayout());
+				Selection.setSelection((Spannable) viewer.getText(), 0);
+
+				assertTrue(viewer.jumpToMatchingBracket());
+				assertEquals(CODE.indexOf('}'), viewer.getSelectionEnd());
+			}
+		});
+	}
+
+	@Test
+	public void doesNotJumpInVirtualizedLayout() {
+		InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				// The document starts with a matched bracket while TextView's own text is empty
+				CodeViewer viewer = createViewer();
+				viewer.setVirtualLayoutThreshold(0);
+				viewer.setCode(CODE);
+				assertTrue(viewer.isVirtualLayout());
+
+				assertFalse(viewer.jumpToMatchingBracket());
+				assertEquals(0, viewer.getText().length());
+			}
+		});
+	}
+
+	private static CodeViewer createViewer() {
+		CodeViewer viewer = new CodeViewer(InstrumentationRegistry.getInstrumentation().getTargetContext());
+		viewer.setEnableHighlighting(false);
+		return viewer;
+	}
+}
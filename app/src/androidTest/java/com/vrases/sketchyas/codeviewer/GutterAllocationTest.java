@@ -0,0 +1,87 @@
+package com.vrases.sketchyas.codeviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.text.Layout;
+import android.view.View;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class GutterAllocationTest {
+
+	private static final int LINE_COUNT = 5000;
+	private static final int DRAWN_LINES = 200;
+	private static final int PASSES = 5;
+
+	@Test
+	@SuppressWarnings("deprecation") // Allocation counting is deprecated but still works on ART
+	public void renderingTheGutterDoesNotAllocate() {
+		InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				CodeViewer viewer = new CodeViewer(InstrumentationRegistry.getInstrumentation().getTargetContext());
+				viewer.setEnableHighlighting(false);
+				viewer.setCode(createCode());
+				viewer.measure(
+				View.MeasureSpec.makeMeasureSpec(1080, View.MeasureSpec.EXACTLY),
+				View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED)
+				);
+				viewer.layout(0, 0, viewer.getMeasuredWidth(), viewer.getMeasuredHeight());
+				Layout layout = viewer.getLayout();
+				assertNotNull(layout);
+
+				// Lines far down the document, so every number has several digits
+				int firstLine = LINE_COUNT - DRAWN_LINES;
+				int lastLine = LINE_COUNT - 1;
+				int top = layout.getLineTop(firstLine);
+				int bottom = layout.getLineBottom(lastLine);
+				Bitmap bitmap = Bitmap.createBitmap(256, bottom - top, Bitmap.Config.ARGB_8888);
+				Canvas canvas = new Canvas(bitmap);
+				canvas.translate(0, -top);
+
+				// The first pass may allocate while classes load and code is compiled; a real allocation shows up in every pass
+				viewer.renderGutter(canvas, top, bottom, firstLine, lastLine);
+				int allocations = Integer.MAX_VALUE;
+				for (int pass = 0; pass < PASSES; pass++) {
+					Debug.resetThreadAllocCount();
+					Debug.startAllocCounting();
+					viewer.renderGutter(canvas, top, bottom, firstLine, lastLine);
+					Debug.stopAllocCounting();
+					allocations = Math.min(allocations, Debug.getThreadAllocCount());
+				}
+
+				assertEquals("objects allocated rendering " + DRAWN_LINES + " line numbers", 0, allocations);
+			}
+		});
+	}
+
+	/**
+	* Returns code with nested braces, so fold markers are drawn along with the numbers.
+	*/
+	private static String createCode() {
+		StringBuilder code = new StringBuilder();
+		for (int i = 0; i < LINE_COUNT; i++) {
+			switch (i % 4) {
+				case 0:
+				code.append("void method").append(i).append("() {\n");
+				break;
+				case 3:
+				code.append("}\n");
+				break;
+				default:
+				code.append("\tcall(").append(i).append(");\n");
+				break;
+			}
+		}
+		return code.toString();
+	}
+}
@@ -0,0 +1,141 @@
+package com.vrases.sketchyas.codeviewer;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+* A language whose grammar is a JSON file under {@code assets/grammars/}.
+* <p>
+* The first time the grammar is needed the file is parsed, validated and written to the
+* cache directory in the binary form of {@link GrammarFile}; later app starts read that
+* instead. Assets can only change with an app update, so the cached copy is keyed on the
+* package's last update time and rebuilt after every update.
+*/
+public final class AssetLanguageDefinition implements LanguageDefinition {
+
+	private static final String TAG = "AssetLanguageDefinition";
+	private static final String ASSET_DIR = "grammars";
+	private static final String CACHE_DIR = "grammars";
+
+	private final Context mContext;
+	private final String mName;
+	private final String[] mAliases;
+
+	/**
+	* @param context Any context; only the application context is kept
+	* @param name The language name; the grammar is read from {@code assets/grammars/<name>.json}
+	* @param aliases Additional identifiers that select this language
+	*/
+	public AssetLanguageDefinition(Context context, String name, String... aliases) {
+		mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+		mName = name;
+		mAliases = aliases;
+	}
+
+	@Override
+	public String getName() {
+		return mName;
+	}
+
+	@Override
+	public String[] getAliases() {
+		return mAliases;
+	}
+
+	@Override
+	public Grammar createGrammar() {
+		long stamp = getPackageStamp();
+		File cacheFile = new File(new File(mContext.getCacheDir(), CACHE_DIR), mName + ".bin");
+
+		Grammar grammar = readCache(cacheFile, stamp);
+		if (grammar != null) {
+			return grammar;
+		}
+
+		try {
+			Reader reader = new InputStreamReader(mContext.getAssets().open(ASSET_DIR + "/" + mName + ".json"), "UTF-8");
+			grammar = GrammarFile.parse(reader, mName);
+		} catch (IOException e) {
+			Log.w(TAG, "Could not load grammar \"" + mName + "\"", e);
+			return null;
+		}
+
+		writeCache(cacheFile, grammar, stamp);
+		return grammar;
+	}
+
+	private long getPackageStamp() {
+		try {
+			return mContext.getPackageManager().getPackageInfo(mContext.getPackageName(), 0).lastUpdateTime;
+		} catch (PackageManager.NameNotFoundException e) {
+			// Never cache against an unknown app version
+			return -1;
+		}
+	}
+
+	private static Grammar readCache(File file, long stamp) {
+		if (stamp < 0 || !file.isFile()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			return GrammarFile.read(in, stamp);
+		} catch (IOException e) {
+			// A truncated or corrupt cache is rebuilt from the asset
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	private static void writeCache(File file, Grammar grammar, long stamp) {
+		if (stamp < 0) {
+			return;
+		}
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			return;
+		}
+
+		// Write to a temporary file first so readers never see a partial grammar
+		File temp = new File(dir, file.getName() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			GrammarFile.write(grammar, stamp, out);
+			out.close();
+			out = null;
+			if (!temp.renameTo(file)) {
+				temp.delete();
+			}
+		} catch (IOException e) {
+			// The grammar is still usable; it is parsed from the asset again next time
+			temp.delete();
+		} finally {
+			closeQuietly(out);
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package com.vrases.sketchyas.codeviewer;
+
+/**
+* Finds the foldable regions of brace-delimited code.
+* <p>
+* Every line is reduced to two numbers: the closing braces it has left over after
+* matching its own braces, and the opening braces it leaves open. Braces inside string
+* and comment tokens are skipped, so only code braces count. Lines keep their numbers
+* until an edit or new tokens touch them; then only those lines are scanned again, straight
+* from the text. Pairing the lines is a single pass over the two numbers per line with a
+* stack of open lines, so an edit re-reads only the edited lines and allocates nothing.
+* <p>
+* A region starts at the line of an opening brace and hides the lines up to the line of
+* its closing brace, which stays visible.
+*/
+final class BraceFoldAnalyzer implements FoldAnalyzer {
+
+	// Per line: unmatched '}' and unmatched '{'; mOpens[line] is -1 while the line must be scanned again
+	private int[] mCloses = new int[64];
+	private int[] mOpens = new int[64];
+	private int mLineCount;
+
+	// Lines with an open brace waiting for its closing brace, innermost last
+	private int[] mStack = new int[64];
+
+	// mHeaderEnds[line] is the last line hidden by the region starting at line, or -1
+	private int[] mHeaderEnds = new int[64];
+
+	// Regions of the last pass, sorted by header line
+	private int[] mRegionStarts = new int[16];
+	private int[] mRegionEnds = new int[16];
+	private int mRegionCount;
+
+	@Override
+	public void reset(int lineCount) {
+		mLineCount = 0;
+		ensureLineCapacity(lineCount);
+		mLineCount = lineCount;
+		for (int i = 0; i < lineCount; i++) {
+			mOpens[i] = -1;
+		}
+	}
+
+	@Override
+	public void invalidateAll() {
+		invalidateLines(0, mLineCount - 1);
+	}
+
+	@Override
+	public void onLinesReplaced(int firstLine, int removedLines, int addedLines) {
+		if (firstLine + removedLines >= mLineCount) {
+			reset(firstLine + addedLines + 1);
+			return;
+		}
+		int delta = addedLines - removedLines;
+		int tailFrom = firstLine + removedLines + 1;
+		ensureLineCapacity(mLineCount + delta);
+		System.arraycopy(mCloses, tailFrom, mCloses, tailFrom + delta, mLineCount - tailFrom);
+		System.arraycopy(mOpens, tailFrom, mOpens, tailFrom + delta, mLineCount - tailFrom);
+		mLineCount += delta;
+		invalidateLines(firstLine, firstLine + addedLines);
+	}
+
+	@Override
+	public void invalidateLines(int fromLine, int toLine) {
+		toLine = Math.min(toLine, mLineCount - 1);
+		for (int i = Math.max(0, fromLine); i <= toLine; i++) {
+			mOpens[i] = -1;
+		}
+	}
+
+	@Override
+	public boolean analyze(CharSequence text, LineIndex lines, TokenBuffer tokens) {
+		int lineCount = lines.getLineCount();
+		if (lineCount != mLineCount) {
+			reset(lineCount);
+		}
+
+		int depth = 0;
+		for (int line = 0; line < lineCount; line++) {
+			mHeaderEnds[line] = -1;
+			if (mOpens[line] < 0) {
+				scanLine(text, lines, tokens, line);
+			}
+
+			// Each leftover closing brace ends the innermost open region
+			for (int i = mCloses[line]; i > 0 && depth > 0; i--) {
+				int header = mStack[--depth];
+				if (line - header > 1) { // Only if there's something to fold
+					// Of several regions on one header line, the outermost one is kept
+					mHeaderEnds[header] = Math.max(mHeaderEnds[header], line - 1);
+				}
+			}
+
+			int opens = mOpens[line];
+			if (opens > 0) {
+				if (depth + opens > mStack.length) {
+					mStack = grow(mStack, depth + opens);
+				}
+				for (int i = 0; i < opens; i++) {
+					mStack[depth++] = line;
+				}
+			}
+		}
+
+		// Collect the regions in header order, noting whether they changed
+		boolean changed = false;
+		int count = 0;
+		for (int line = 0; line < lineCount; line++) {
+			int end = mHeaderEnds[line];
+			if (end < 0) continue;
+
+			if (count == mRegionStarts.length) {
+				mRegionStarts = grow(mRegionStarts, count + 1);
+				mRegionEnds = grow(mRegionEnds, count + 1);
+			}
+			if (count >= mRegionCount || mRegionStarts[count] != line || mRegionEnds[count] != end) {
+				changed = true;
+			}
+			mRegionStarts[count] = line;
+			mRegionEnds[count] = end;
+			count++;
+		}
+		changed |= count != mRegionCount;
+		mRegionCount = count;
+		return changed;
+	}
+
+	@Override
+	public int[] getRegionStarts() {
+		return mRegionStarts;
+	}
+
+	@Override
+	public int[] getRegionEnds() {
+		return mRegionEnds;
+	}
+
+	@Override
+	public int getRegionCount() {
+		return mRegionCount;
+	}
+
+	/**
+	* Counts the braces of one line that its own braces leave unmatched, skipping strings and comments.
+	*/
+	private void scanLine(CharSequence text, LineIndex lines, TokenBuffer tokens, int line) {
+		int lineStart = lines.getLineStart(line);
+		int lineEnd = line + 1 < lines.getLineCount() ? lines.getLineStart(line + 1) : text.length();
+
+		int token = -1;
+		int endToken = -1;
+		if (line < tokens.getLineCount()) {
+			token = tokens.getLineFirstToken(line);
+			endToken = tokens.getLineEndToken(line);
+		}
+
+		int closes = 0;
+		int opens = 0;
+		int i = lineStart;
+		while (i < lineEnd) {
+			// Jump over the next string or comment once it is reached
+			while (token >= 0 && token < endToken) {
+				int type = tokens.getType(token);
+				int tokenStart = lineStart + tokens.getRelativeStart(token);
+				int tokenEnd = tokenStart + tokens.getLength(token);
+				if (tokenEnd <= i || (type != TokenType.STRING && type != TokenType.COMMENT)) {
+					token++;
+					continue;
+				}
+				if (tokenStart <= i) {
+					i = tokenEnd;
+					token++;
+					continue;
+				}
+				break;
+			}
+			if (i >= lineEnd) break;
+
+			char c = text.charAt(i);
+			if (c == '{') {
+				opens++;
+			} else if (c == '}') {
+				if (opens > 0) {
+					opens--;
+				} else {
+					closes++;
+				}
+			}
+			i++;
+		}
+		mCloses[line] = closes;
+		mOpens[line] = opens;
+	}
+
+	private void ensureLineCapacity(int capacity) {
+		if (capacity > mOpens.length) {
+			int size = Math.max(capacity, mOpens.length * 2);
+			int[] closes = new int[size];
+			int[] opens = new int[size];
+			System.arraycopy(mCloses, 0, closes, 0, mLineCount);
+			System.arraycopy(mOpens, 0, opens, 0, mLineCount);
+			mCloses = closes;
+			mOpens = opens;
+			mHeaderEnds = new int[size];
+		}
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		int[] grown = new int[Math.max(capacity, array.length * 2)];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
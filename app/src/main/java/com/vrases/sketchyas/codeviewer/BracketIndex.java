@@ -0,0 +1,358 @@
+package com.vrases.sketchyas.codeviewer;
+
+/**
+* Positions of the brackets {@code ()[]{}} of a document and which bracket closes which.
+* <p>
+* The code brackets of every line are kept in one packed {@code int[]} in document order,
+* with a per-line index like {@link TokenBuffer}'s, so an edit only scans the edited lines
+* again; brackets inside string and comment tokens are left out. Partners are paired
+* again only from the first changed bracket on: the brackets still open there are found
+* by walking back over the closed pairs before it, which skips whole blocks at a time.
+* Finding the match of a bracket is then a binary search for its line and a look-up of
+* its partner, however large the document.
+*/
+final class BracketIndex {
+
+	private static final String BRACKETS = "()[]{}"; // Opening brackets at even kinds
+	private static final int KIND_BITS = 3;
+
+	// Brackets in document order, (column << KIND_BITS) | kind, with column relative to the line
+	private int[] mBrackets = new int[256];
+	private int mCount;
+
+	// mLineFirst[line] is the first bracket of the line; mLineFirst[mLineCount] == mCount
+	private int[] mLineFirst = new int[65];
+	private int mLineCount;
+
+	// Lines to scan again, inclusive; clean while mDirtyFrom > mDirtyTo
+	private int mDirtyFrom;
+	private int mDirtyTo = -1;
+
+	// mPartners[i] is the bracket closing or opened by bracket i, or -1; valid below mPairFrom,
+	// where a partner at or above mPairFrom only means the bracket was open at mPairFrom
+	private int[] mPartners = new int[256];
+	private int mPairFrom;
+
+	// Scratch space of the rescan and the pairing pass
+	private int[] mScratch = new int[256];
+	private int[] mStack = new int[64];
+
+	/**
+	* Drops all brackets of a document with the given number of lines and marks every line for scanning.
+	*/
+	void reset(int lineCount) {
+		lineCount = Math.max(1, lineCount);
+		if (mLineFirst.length < lineCount + 1) {
+			mLineFirst = new int[lineCount + 1];
+		}
+		for (int i = 0; i <= lineCount; i++) {
+			mLineFirst[i] = 0;
+		}
+		mLineCount = lineCount;
+		mCount = 0;
+		mDirtyFrom = 0;
+		mDirtyTo = lineCount - 1;
+		mPairFrom = 0;
+	}
+
+	/**
+	* Marks every line for scanning, e.g. when the document was replaced.
+	*/
+	void invalidateAll() {
+		invalidateLines(0, mLineCount - 1);
+	}
+
+	/**
+	* Marks lines {@code [fromLine, toLine]} for scanning, e.g. after their tokens changed.
+	*/
+	void invalidateLines(int fromLine, int toLine) {
+		fromLine = Math.max(0, fromLine);
+		toLine = Math.min(toLine, mLineCount - 1);
+		if (fromLine > toLine) {
+			return;
+		}
+		if (mDirtyFrom > mDirtyTo) {
+			mDirtyFrom = fromLine;
+			mDirtyTo = toLine;
+		} else {
+			mDirtyFrom = Math.min(mDirtyFrom, fromLine);
+			mDirtyTo = Math.max(mDirtyTo, toLine);
+		}
+	}
+
+	/**
+	* Updates the lines for an edit that replaced {@code removedLines + 1} lines starting at
+	* {@code firstLine} with {@code addedLines + 1} lines, which are scanned again.
+	*/
+	void onLinesReplaced(int firstLine, int removedLines, int addedLines) {
+		if (firstLine + removedLines >= mLineCount) {
+			reset(firstLine + addedLines + 1);
+			return;
+		}
+
+		// Drop the brackets of the replaced lines; the new lines start out empty and are paired once scanned
+		int oldCount = removedLines + 1;
+		int newCount = addedLines + 1;
+		int firstBracket = mLineFirst[firstLine];
+		int removedBrackets = mLineFirst[firstLine + oldCount] - firstBracket;
+		System.arraycopy(mBrackets, firstBracket + removedBrackets, mBrackets, firstBracket, mCount - firstBracket - removedBrackets);
+		mCount -= removedBrackets;
+
+		int delta = newCount - oldCount;
+		ensureLineCapacity(mLineCount + delta);
+		System.arraycopy(mLineFirst, firstLine + oldCount, mLineFirst, firstLine + newCount, mLineCount + 1 - firstLine - oldCount);
+		for (int i = firstLine; i < firstLine + newCount; i++) {
+			mLineFirst[i] = firstBracket;
+		}
+		mLineCount += delta;
+		if (removedBrackets != 0) {
+			for (int i = firstLine + newCount; i <= mLineCount; i++) {
+				mLineFirst[i] -= removedBrackets;
+			}
+		}
+
+		// Move the dirty lines along with the text and add the new lines to them
+		int lastOldLine = firstLine + removedLines;
+		int lastNewLine = firstLine + addedLines;
+		if (mDirtyFrom > mDirtyTo) {
+			mDirtyFrom = firstLine;
+			mDirtyTo = lastNewLine;
+		} else {
+			if (mDirtyFrom > lastOldLine) {
+				mDirtyFrom += delta;
+			}
+			if (mDirtyTo > lastOldLine) {
+				mDirtyTo += delta;
+			} else if (mDirtyTo >= firstLine) {
+				mDirtyTo = lastNewLine;
+			}
+			mDirtyFrom = Math.min(mDirtyFrom, firstLine);
+			mDirtyTo = Math.max(mDirtyTo, lastNewLine);
+		}
+	}
+
+	/**
+	* Returns the offset of the bracket paired with the bracket at {@code offset}.
+	*
+	* @param text The document
+	* @param lines The line starts of the document
+	* @param tokens The tokens of the document; lines without tokens count all their brackets
+	* @param offset The offset of a bracket
+	* @return The offset of its partner, or -1 if there is no code bracket at {@code offset} or it is unmatched
+	*/
+	int findMatch(CharSequence text, LineIndex lines, TokenBuffer tokens, int offset) {
+		if (offset < 0 || offset >= text.length() || BRACKETS.indexOf(text.charAt(offset)) < 0) {
+			return -1;
+		}
+		update(text, lines, tokens);
+
+		int line = lines.findLine(offset);
+		int column = offset - lines.getLineStart(line);
+		int bracket = -1;
+		for (int i = mLineFirst[line]; i < mLineFirst[line + 1]; i++) {
+			int packedColumn = mBrackets[i] >>> KIND_BITS;
+			if (packedColumn == column) {
+				bracket = i;
+				break;
+			}
+			if (packedColumn > column) break;
+		}
+		if (bracket < 0 || mPartners[bracket] < 0) {
+			return -1;
+		}
+
+		int partner = mPartners[bracket];
+		int partnerLine = findLineOfBracket(partner);
+		return lines.getLineStart(partnerLine) + (mBrackets[partner] >>> KIND_BITS);
+	}
+
+	/**
+	* Scans the lines marked for scanning and pairs the brackets if anything changed.
+	*/
+	private void update(CharSequence text, LineIndex lines, TokenBuffer tokens) {
+		if (lines.getLineCount() != mLineCount) {
+			reset(lines.getLineCount());
+		}
+		if (mDirtyFrom <= mDirtyTo) {
+			rescan(text, lines, tokens);
+		}
+		if (mPairFrom != Integer.MAX_VALUE) {
+			pair();
+		}
+	}
+
+	/**
+	* Scans the dirty lines again and splices their brackets into the packed array.
+	*/
+	private void rescan(CharSequence text, LineIndex lines, TokenBuffer tokens) {
+		int fromLine = mDirtyFrom;
+		int toLine = mDirtyTo;
+		int first = mLineFirst[fromLine];
+		int oldEnd = mLineFirst[toLine + 1];
+
+		// Scan into the scratch array, noting line starts relative to it
+		int count = 0;
+		for (int line = fromLine; line <= toLine; line++) {
+			mLineFirst[line] = count;
+			count = scanLine(text, lines, tokens, line, count);
+		}
+
+		int delta = count - (oldEnd - first);
+		if (mCount + delta > mBrackets.length) {
+			mBrackets = grow(mBrackets, mCount + delta);
+		}
+		System.arraycopy(mBrackets, oldEnd, mBrackets, oldEnd + delta, mCount - oldEnd);
+		System.arraycopy(mScratch, 0, mBrackets, first, count);
+		for (int line = fromLine; line <= toLine; line++) {
+			mLineFirst[line] += first;
+		}
+		if (delta != 0) {
+			for (int line = toLine + 1; line <= mLineCount; line++) {
+				mLineFirst[line] += delta;
+			}
+		}
+		mCount += delta;
+		mDirtyFrom = 0;
+		mDirtyTo = -1;
+		mPairFrom = Math.min(mPairFrom, first);
+	}
+
+	/**
+	* Appends the code brackets of one line to the scratch array, skipping strings and comments.
+	*
+	* @return The new number of brackets in the scratch array
+	*/
+	private int scanLine(CharSequence text, LineIndex lines, TokenBuffer tokens, int line, int count) {
+		int lineStart = lines.getLineStart(line);
+		int lineEnd = line + 1 < lines.getLineCount() ? lines.getLineStart(line + 1) : text.length();
+
+		int token = -1;
+		int endToken = -1;
+		if (line < tokens.getLineCount()) {
+			token = tokens.getLineFirstToken(line);
+			endToken = tokens.getLineEndToken(line);
+		}
+
+		int i = lineStart;
+		while (i < lineEnd) {
+			// Jump over the next string or comment once it is reached
+			while (token >= 0 && token < endToken) {
+				int type = tokens.getType(token);
+				int tokenStart = lineStart + tokens.getRelativeStart(token);
+				int tokenEnd = tokenStart + tokens.getLength(token);
+				if (tokenEnd <= i || (type != TokenType.STRING && type != TokenType.COMMENT)) {
+					token++;
+					continue;
+				}
+				if (tokenStart <= i) {
+					i = tokenEnd;
+					token++;
+					continue;
+				}
+				break;
+			}
+			if (i >= lineEnd) break;
+
+			int kind = BRACKETS.indexOf(text.charAt(i));
+			if (kind >= 0) {
+				ensureScratchCapacity(count + 1);
+				mScratch[count++] = ((i - lineStart) << KIND_BITS) | kind;
+			}
+			i++;
+		}
+		return count;
+	}
+
+	/**
+	* Pairs every closing bracket from the first stale one on with the nearest open bracket
+	* of the same kind; brackets that close nothing, or that a bracket of another kind
+	* interrupts, stay unmatched.
+	*/
+	private void pair() {
+		if (mPartners.length < mCount) {
+			mPartners = grow(mPartners, mCount);
+		}
+		int from = Math.min(mPairFrom, mCount); // Later edits may have removed brackets
+
+		// Find the brackets open at from, outermost last, skipping every closed pair as a whole
+		int depth = 0;
+		int i = from - 1;
+		while (i >= 0) {
+			int partner = mPartners[i];
+			if ((mBrackets[i] & 1) != 0) {
+				i = partner >= 0 ? partner - 1 : i - 1;
+				continue;
+			}
+			if (partner < 0 || partner >= from) {
+				if (depth == mStack.length) {
+					mStack = grow(mStack, depth + 1);
+				}
+				mStack[depth++] = i;
+			}
+			i--;
+		}
+		for (int low = 0, high = depth - 1; low < high; low++, high--) {
+			int open = mStack[low];
+			mStack[low] = mStack[high];
+			mStack[high] = open;
+		}
+
+		for (i = from; i < mCount; i++) {
+			int kind = mBrackets[i] & ((1 << KIND_BITS) - 1);
+			mPartners[i] = -1;
+			if ((kind & 1) == 0) {
+				if (depth == mStack.length) {
+					mStack = grow(mStack, depth + 1);
+				}
+				mStack[depth++] = i;
+			} else if (depth > 0 && (mBrackets[mStack[depth - 1]] & ((1 << KIND_BITS) - 1)) == kind - 1) {
+				int open = mStack[--depth];
+				mPartners[open] = i;
+				mPartners[i] = open;
+			}
+		}
+		while (depth > 0) {
+			mPartners[mStack[--depth]] = -1;
+		}
+		mPairFrom = Integer.MAX_VALUE;
+	}
+
+	/**
+	* Returns the line holding bracket {@code index}.
+	*/
+	private int findLineOfBracket(int index) {
+		// Empty lines share their first bracket with the next line, so take the last line starting at or before it
+		int low = 0;
+		int high = mLineCount - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (mLineFirst[mid] <= index) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private void ensureLineCapacity(int lineCount) {
+		if (lineCount + 1 > mLineFirst.length) {
+			int size = Math.max(lineCount + 1, mLineFirst.length * 2);
+			int[] first = new int[size];
+			System.arraycopy(mLineFirst, 0, first, 0, mLineCount + 1);
+			mLineFirst = first;
+		}
+	}
+
+	private void ensureScratchCapacity(int capacity) {
+		if (capacity > mScratch.length) {
+			mScratch = grow(mScratch, capacity);
+		}
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		int[] grown = new int[Math.max(capacity, array.length * 2)];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
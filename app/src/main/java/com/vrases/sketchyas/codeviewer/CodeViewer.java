@@ -10,19 +10,27 @@ https://play.google.com/store/apps/dev?id=4905832401145871682
 import android.animation.ValueAnimator;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.Editable;
 import android.text.Layout;
+import android.text.Selection;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
+import android.text.TextPaint;
+import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.text.style.BackgroundColorSpan;
-import android.text.style.ForegroundColorSpan;
+import android.text.style.CharacterStyle;
+import android.text.style.UpdateAppearance;
 import android.util.AttributeSet;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
@@ -33,14 +41,6 @@ import android.widget.HorizontalScrollView;
 import android.widget.ScrollView;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Stack;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import android.view.ViewParent;
 
 
@@ -67,12 +67,46 @@ public class CodeViewer extends TextView {
 	public static final int TYPING_SPEED_MEDIUM = 20;
 	public static final int TYPING_SPEED_FAST = 5;
 	
+	// Language identifier that selects the language from the content
+	public static final String LANGUAGE_AUTO = "auto";
+	
+	// Search options, combined with |
+	public static final int SEARCH_REGEX = SearchJob.FLAG_REGEX;
+	public static final int SEARCH_IGNORE_CASE = SearchJob.FLAG_IGNORE_CASE;
+	public static final int SEARCH_WHOLE_WORD = SearchJob.FLAG_WHOLE_WORD;
+	
 	// Default values
 	private static final int DEFAULT_LINE_NUMBER_PADDING = 10;
 	private static final int DEFAULT_THEME = THEME_LIGHT;
 	private static final boolean DEFAULT_SHOW_LINE_NUMBERS = true;
 	private static final int DEFAULT_TYPING_SPEED = TYPING_SPEED_MEDIUM;
 	
+	// Documents up to this length are highlighted inline instead of on the worker thread
+	private static final int SYNC_HIGHLIGHT_LIMIT = 10000;
+	
+	// Progressive highlighting
+	private static final int DEFAULT_HIGHLIGHT_MARGIN = 100;
+	private static final int PROGRESSIVE_BLOCK_TOKENS = 2048;
+	private static final long PROGRESSIVE_SLICE_MS = 8;
+	
+	// A highlighting pass that takes longer than this leaves the rest of the document plain
+	private static final long DEFAULT_HIGHLIGHT_TIME_BUDGET_MS = 2000;
+	
+	// Largest gutter cache bitmap, in pixels (8 MB at 32 bits per pixel); taller gutters are drawn directly
+	private static final int MAX_GUTTER_CACHE_PIXELS = 2 * 1024 * 1024;
+	
+	// Read-only documents at least this long are shown with the virtualized layout
+	private static final int DEFAULT_VIRTUAL_LAYOUT_THRESHOLD = 1024 * 1024;
+	
+	// Default tab stop spacing of android.text.Layout, in pixels
+	private static final int TAB_INCREMENT = 20;
+	
+	// Memory the read-only tile cache may use by default; a small share of the heap on low-memory devices
+	private static final int DEFAULT_TILE_CACHE_BYTES = (int) Math.min(32L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
+	
+	// A search with flags stops after this many matches by default
+	private static final int DEFAULT_MAX_SEARCH_RESULTS = 10000;
+	
 	// Theme colors
 	private int mBackgroundColor;
 	private int mTextColor;
@@ -90,11 +124,17 @@ public class CodeViewer extends TextView {
 	private int mGutterBackgroundColor;
 	private int mGutterSeparatorColor;
 	
+	// Token colors indexed by TokenType, shared with every TokenColorSpan of this view
+	private final int[] mTokenColors = new int[TokenType.COUNT];
+	private final CharacterStyle mPaletteChangeSpan = new PaletteChangeSpan();
+	
 	// Configuration
 	private boolean mShowLineNumbers = DEFAULT_SHOW_LINE_NUMBERS;
 	private int mLineNumberPadding = DEFAULT_LINE_NUMBER_PADDING;
 	private int mTheme = DEFAULT_THEME;
 	private String mLanguage = "java"; // Default language
+	private String mActiveLanguage; // mLanguage, or the detected language in auto mode
+	private String mFileName; // Helps language auto-detection
 	private boolean mEnableHighlighting = true;
 	private boolean mEnableLineHighlighting = true;
 	private boolean mEnableFolding = true;
@@ -115,23 +155,72 @@ public class CodeViewer extends TextView {
 	private int mCursorColor;
 	private int mCursorWidth = 2;
 	private int mCursorPosition = 0;
+	private Paint mCursorPaint;
 	
 	// Syntax highlighting
-	private Map<String, Pattern> mPatterns;
-	private List<CodeSpan> mCodeSpans = new ArrayList<>();
+	private SyntaxHighlighter mHighlighter = new SyntaxHighlighter();
 	private SpannableStringBuilder mSpannableCode = new SpannableStringBuilder();
 	private boolean mHighlightingScheduled = false;
 	private Handler mHighlightHandler = new Handler();
 	private Runnable mHighlightRunnable;
+	private SyntaxHighlighter.Job mHighlightJob;
+	private boolean mProgressiveHighlighting = true;
+	private int mHighlightMargin = DEFAULT_HIGHLIGHT_MARGIN;
+	private SyntaxHighlighter.Job mApplyingJob;
+	private boolean[] mAppliedBlocks;
+	private int mAppliedBlockCount;
+	private Runnable mApplySliceRunnable;
+	
+	// Draw-time coloring
+	private boolean mDrawTimeColoring = false;
+	private TokenBuffer mTokenBuffer = new TokenBuffer();
+	private TextPaint mTokenPaint;
+	private char[] mDrawBuffer = new char[256];
+	private final MonospaceMetrics mMonospaceMetrics = new MonospaceMetrics(TAB_INCREMENT);
+	private boolean mDrawMonospace; // Whether drawTextRun may compute widths from mMonospaceMetrics
+	private int mEditFirstLine;
+	private int mEditColumn;
+	private int mEditRemovedChars;
+	private int mEditRemovedLines;
 	
 	// Line numbers
 	private Paint mLineNumberPaint;
+	private final LineNumberText mLineNumberText = new LineNumberText();
+	private Paint mGutterPaint;
+	private Paint mGutterSeparatorPaint;
+	private Bitmap mGutterBitmap; // Gutter of the drawn range, rendered once and blitted until it changes
+	private Canvas mGutterCanvas;
 	private int mLineNumberWidth;
-	private List<Integer> mLineStarts = new ArrayList<>();
-	private List<Integer> mFoldedLines = new ArrayList<>();
+	private int mLineNumberDigits;
+	private final LineIndex mLineIndex = new LineIndex();
 	private int mScrollY = 0; // Track vertical scroll position
 	private int mScrollX = 0; // Track horizontal scroll position
 	
+	// Vertical range, in view coordinates, covered by the last frame: the viewport plus one viewport
+	// above and below. While the viewport stays inside it, scrolling needs no redraw.
+	private int mDrawnTop;
+	private int mDrawnBottom;
+	private int mDrawnLimit = -1; // mDrawnBottom, or Integer.MAX_VALUE when the range reaches the end; -1 when stale
+	private int mDrawnFirstLine;
+	private int mDrawnLastLine;
+	private int mDrawnLeft = Integer.MIN_VALUE; // Horizontal range; only bounded when drawn from tiles
+	private int mDrawnRightLimit = Integer.MAX_VALUE;
+	private final Rect mVisibleRect = new Rect();
+	
+	// Read-only tile cache: the content is rendered into bitmap tiles once and composited while scrolling
+	private TileCache mTileCache; // Created on the first frame drawn from tiles
+	private Canvas mTileCanvas;
+	private int mTileCacheBytes = DEFAULT_TILE_CACHE_BYTES;
+	private boolean mDrawnWithTiles; // Whether the drawn range describes tiles rather than the gutter cache
+	private Layout mTileLayout; // The layout, scroll and width the cached tiles were rendered for
+	private int mTileScrollX;
+	private int mTileWidth;
+	
+	// Virtualized layout: large read-only documents are kept out of TextView and drawn line by line
+	private VirtualLayout mVirtualLayout; // Non-null while the virtualized layout is in use
+	private String mDocument = ""; // The text while the virtualized layout is in use
+	private int mVirtualLayoutThreshold = DEFAULT_VIRTUAL_LAYOUT_THRESHOLD;
+	
 	// Scrolling tracking
 	private ScrollView mParentScrollView;
 	private HorizontalScrollView mParentHorizontalScrollView;
@@ -140,16 +229,31 @@ public class CodeViewer extends TextView {
 	// Gesture detection
 	private GestureDetector mGestureDetector;
 	
-	// Search
+	// Search; results are kept as start and end offsets
 	private String mSearchQuery = "";
-	private List<Integer> mSearchResults = new ArrayList<>();
+	private int[] mSearchStarts = new int[16];
+	private int[] mSearchEnds = new int[16];
+	private int mSearchResultCount;
 	private int mCurrentSearchResult = -1;
+	private int mMaxSearchResults = DEFAULT_MAX_SEARCH_RESULTS;
+	private SearchJob mSearchJob; // Running in the background
+	private final IncrementalSearch mIncrementalSearch = new IncrementalSearch(); // Results of the typed queries
+	private Handler mSearchHandler = new Handler(Looper.getMainLooper());
 	private BackgroundColorSpan mSearchHighlightSpan;
+	private Paint mSearchHighlightPaint; // Draws the highlight in the virtualized layout
 	
 	// Code folding
 	private Paint mFoldingPaint;
 	private int mFoldingIndicatorSize = 10;
-	private Map<Integer, Boolean> mFoldableLines = new HashMap<>();
+	private final FoldModel mFoldModel = new FoldModel(); // Folded regions are collapsed in the virtualized layout
+	private FoldAnalyzer mFoldAnalyzer = new BraceFoldAnalyzer(); // Chosen by the grammar's folding style
+	
+	// Bracket matching
+	private final BracketIndex mBracketIndex = new BracketIndex();
+	private Paint mBracketMatchPaint;
+	private int mBracketAt = -1; // The bracket at the cursor and its match, outlined by onDraw
+	private int mBracketMatch = -1;
+	private boolean mTextChanging; // Line starts and brackets lag behind the text until afterTextChanged
 	
 	// Line selection
 	private int mSelectedLine = -1;
@@ -171,6 +275,9 @@ public class CodeViewer extends TextView {
 	}
 	
 	private void init(AttributeSet attrs) {
+		// Bundled grammars are only registered here; each is loaded the first time it is used
+		GrammarRegistry.registerAssetLanguages(getContext());
+		
 		// Set default properties for TextView
 		setHorizontallyScrolling(true);
 		setTextIsSelectable(true); // Ensure text is selectable
@@ -213,51 +320,97 @@ public class CodeViewer extends TextView {
 		mLineNumberPaint.setColor(mLineNumberColor);
 		mLineNumberPaint.setTextSize(getTextSize());
 		mLineNumberPaint.setTypeface(Typeface.MONOSPACE);
+		mLineNumberText.setPaint(mLineNumberPaint);
+		
+		mGutterPaint = new Paint();
+		mGutterPaint.setColor(mGutterBackgroundColor);
+		
+		mGutterSeparatorPaint = new Paint();
+		mGutterSeparatorPaint.setColor(mGutterSeparatorColor);
+		
+		mCursorPaint = new Paint();
+		mCursorPaint.setColor(mCursorColor);
+		mCursorPaint.setStrokeWidth(mCursorWidth);
 		
 		mFoldingPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
 		mFoldingPaint.setColor(mLineNumberColor);
 		mFoldingPaint.setStyle(Paint.Style.STROKE);
 		mFoldingPaint.setStrokeWidth(2);
 		
+		mBracketMatchPaint = new Paint();
+		mBracketMatchPaint.setColor(mLineNumberColor);
+		mBracketMatchPaint.setStyle(Paint.Style.STROKE);
+		mBracketMatchPaint.setStrokeWidth(1);
+		
 		mSelectedLinePaint = new Paint();
 		mSelectedLinePaint.setColor(mCurrentLineColor);
 		mSelectedLinePaint.setStyle(Paint.Style.FILL);
 		
-		// Initialize syntax highlighting patterns
-		initPatterns();
+		mTokenPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+		
+		// Initialize syntax highlighting lexer
+		mHighlighter.setTimeBudget(DEFAULT_HIGHLIGHT_TIME_BUDGET_MS);
+		initLexer();
 		
 		// Set up gesture detector
 		mGestureDetector = new GestureDetector(getContext(), new GestureListener());
 		
 		// Set up search highlight span
 		mSearchHighlightSpan = new BackgroundColorSpan(0xFFFFFF00); // Yellow highlight
+		mSearchHighlightPaint = new Paint();
+		mSearchHighlightPaint.setColor(0xFFFFFF00);
 		
 		// Set up text change listener for syntax highlighting
 		addTextChangedListener(new TextWatcher() {
 			@Override
 			public void beforeTextChanged(CharSequence s, int start, int count, int after) {
-				// Not used
+				// In the virtualized layout TextView holds no text and the document is tracked directly
+				if (mVirtualLayout != null) return;
+				mTextChanging = true;
+				
+				// Remember which lines the edit replaces; line starts still describe the old text here
+				mEditFirstLine = mLineIndex.findLine(start);
+				mEditColumn = start - mLineIndex.getLineStart(mEditFirstLine);
+				mEditRemovedChars = count;
+				mEditRemovedLines = countLineBreaks(s, start, start + count);
 			}
 			
 			@Override
 			public void onTextChanged(CharSequence s, int start, int before, int count) {
-				// Not used
+				if (mVirtualLayout != null) return;
+				
+				// A running search is searching the text as it was, and cached results describe it
+				cancelSearchJob();
+				mIncrementalSearch.clear();
+				
+				int addedLines = countLineBreaks(s, start, start + count);
+				mHighlighter.onLinesReplaced(mEditFirstLine, mEditRemovedLines, addedLines);
+				cancelHighlightJob();
+				mTokenBuffer.onTextReplaced(mEditFirstLine, mEditColumn, mEditRemovedChars, count, mEditRemovedLines, addedLines);
+				mFoldAnalyzer.onLinesReplaced(mEditFirstLine, mEditRemovedLines, addedLines);
+				mBracketIndex.onLinesReplaced(mEditFirstLine, mEditRemovedLines, addedLines);
+				mLineIndex.onTextReplaced(s, start, before, count);
 			}
 			
 			@Override
 			public void afterTextChanged(Editable s) {
+				if (mVirtualLayout != null) return;
+				mTextChanging = false;
+				
 				if (mEnableHighlighting && !mHighlightingScheduled) {
 					mHighlightingScheduled = true;
 					mHighlightHandler.postDelayed(getHighlightRunnable(), 100); // Debounce
 				}
 				
-				// Update line starts for line numbers
-				updateLineStarts();
+				// Line starts were already updated in onTextChanged; the gutter only grows with a new digit
+				updateLineNumberWidth(false);
+				invalidateContent();
 				
 				// Update foldable lines
 				if (mEnableFolding) {
 					updateFoldableLines();
 				}
+				updateBracketMatch();
 			}
 		});
 		
@@ -273,8 +426,8 @@ public class CodeViewer extends TextView {
 		setFocusable(mIsEditable);
 		setFocusableInTouchMode(mIsEditable);
 		
-		// Set padding for line numbers
-		updatePadding();
+		// Index the initial text and set padding for line numbers
+		updateLineStarts();
 		
 		// Set up scroll tracking
 		setupScrollTracking();
@@ -302,27 +455,28 @@ public class CodeViewer extends TextView {
 			parent = (View) rawParent;  // Safe cast after check
 		}
 		
-		// Set up scroll listener
-		if (mParentScrollView != null || mParentHorizontalScrollView != null) {
-			if (mScrollListener == null) {
-				mScrollListener = new ViewTreeObserver.OnScrollChangedListener() {
-					@Override
-					public void onScrollChanged() {
-						if (mParentScrollView != null) {
-							mScrollY = mParentScrollView.getScrollY();
-						}
-						if (mParentHorizontalScrollView != null) {
-							mScrollX = mParentHorizontalScrollView.getScrollX();
-						}
+		// Set up scroll listener; any scrolling container can move lines into view, not just a ScrollView
+		if (mScrollListener == null) {
+			mScrollListener = new ViewTreeObserver.OnScrollChangedListener() {
+				@Override
+				public void onScrollChanged() {
+					if (mParentScrollView != null) {
+						mScrollY = mParentScrollView.getScrollY();
+					}
+					if (mParentHorizontalScrollView != null) {
+						mScrollX = mParentHorizontalScrollView.getScrollX();
+					}
+					// The parent moves the last frame into place; only lines it did not cover need a redraw
+					if (!isViewportDrawn()) {
 						invalidate();
 					}
-				};
-			}
-			
-			ViewTreeObserver observer = getViewTreeObserver();
-			if (observer != null) {
-				observer.addOnScrollChangedListener(mScrollListener);
-			}
+				}
+			};
+		}
+		
+		ViewTreeObserver observer = getViewTreeObserver();
+		if (observer != null) {
+			observer.addOnScrollChangedListener(mScrollListener);
 		}
 	}
 	
@@ -331,6 +485,11 @@ public class CodeViewer extends TextView {
 	protected void onDetachedFromWindow() {
 		super.onDetachedFromWindow();
 		
+		// Drop any highlighting and search still running in the background
+		cancelHighlightJob();
+		stopProgressiveApply();
+		cancelSearchJob();
+		
 		// Remove scroll listener
 		if (mScrollListener != null) {
 			ViewTreeObserver observer = getViewTreeObserver();
@@ -340,6 +499,22 @@ public class CodeViewer extends TextView {
 				}
 			}
 		}
+		
+		// Release the gutter and tile caches; they are rendered again on the next draw
+		mGutterBitmap = null;
+		mGutterCanvas = null;
+		releaseTileCache();
+		mDrawnLimit = -1;
+	}
+	
+	@Override
+	protected void onSelectionChanged(int selStart, int selEnd) {
+		super.onSelectionChanged(selStart, selEnd);
+		
+		// TextView's constructor sets the selection before the fields are initialized
+		if (mBracketIndex != null) {
+			updateBracketMatch();
+		}
 	}
 	
 	private void setupScrollTracking() {
@@ -348,8 +523,7 @@ public class CodeViewer extends TextView {
 			@Override
 			public void onLayoutChange(View v, int left, int top, int right, int bottom, 
 			int oldLeft, int oldTop, int oldRight, int oldBottom) {
-				updateLineStarts();
-				invalidate();
+				invalidateContent();
 			}
 		});
 	}
@@ -548,169 +722,66 @@ public class CodeViewer extends TextView {
 			break;
 		}
 		
-		// Apply colors
+		// Apply colors; in draw-time coloring mode the glyphs are painted by onDraw
 		setBackgroundColor(mBackgroundColor);
-		setTextColor(mTextColor);
+		setTextColor(mDrawTimeColoring ? Color.TRANSPARENT : mTextColor);
 		setHighlightColor(mSelectionColor);
 		
-		// Update line number paint if initialized
+		// Resolve token colors through the palette; spans and the token buffer only store type ids
+		mTokenColors[TokenType.PLAIN] = mTextColor;
+		mTokenColors[TokenType.KEYWORD] = mKeywordColor;
+		mTokenColors[TokenType.STRING] = mStringColor;
+		mTokenColors[TokenType.COMMENT] = mCommentColor;
+		mTokenColors[TokenType.NUMBER] = mNumberColor;
+		mTokenColors[TokenType.ANNOTATION] = mAnnotationColor;
+		mTokenColors[TokenType.CLASS] = mClassColor;
+		mTokenColors[TokenType.METHOD] = mMethodColor;
+		mTokenColors[TokenType.OPERATOR] = mOperatorColor;
+		
+		// Update paints if initialized
 		if (mLineNumberPaint != null) {
 			mLineNumberPaint.setColor(mLineNumberColor);
 		}
+		if (mFoldingPaint != null) {
+			mFoldingPaint.setColor(mLineNumberColor);
+			mBracketMatchPaint.setColor(mLineNumberColor);
+		}
+		if (mSelectedLinePaint != null) {
+			mSelectedLinePaint.setColor(mCurrentLineColor);
+		}
+		if (mGutterPaint != null) {
+			mGutterPaint.setColor(mGutterBackgroundColor);
+			mGutterSeparatorPaint.setColor(mGutterSeparatorColor);
+			mCursorPaint.setColor(mCursorColor);
+		}
 		
 		// Force redraw
-		invalidate();
+		invalidateContent();
 	}
 	
-	private void initPatterns() {
-		mPatterns = new HashMap<>();
+	private void initLexer() {
+		if (LANGUAGE_AUTO.equals(mLanguage)) {
+			// During the typing animation the text is only a prefix of the code
+			CharSequence code = mTypingAnimationEnabled ? mFullCode : getDocument();
+			mActiveLanguage = LanguageDetector.detect(code, mFileName);
+		} else {
+			mActiveLanguage = mLanguage;
+		}
 		
-		if ("java".equals(mLanguage)) {
-			// Keywords
-			mPatterns.put("keyword", Pattern.compile("\\b(abstract|assert|boolean|break|byte|case|catch|char|class|const|continue|default|do|double|else|enum|extends|final|finally|float|for|goto|if|implements|import|instanceof|int|interface|long|native|new|package|private|protected|public|return|short|static|strictfp|super|switch|synchronized|this|throw|throws|transient|try|void|volatile|while|true|false|null)\\b"));
-			
-			// Strings
-			mPatterns.put("string", Pattern.compile("\"([^\"\\\\]|\\\\.)*\"|'([^'\\\\]|\\\\.)*'"));
-			
-			// Comments
-			mPatterns.put("comment", Pattern.compile("//.*|/\\*[\\s\\S]*?\\*/"));
-			
-			// Numbers
-			mPatterns.put("number", Pattern.compile("\\b\\d+(\\.\\d+)?([eE][+-]?\\d+)?[fFdD]?\\b"));
-			
-			// Annotations
-			mPatterns.put("annotation", Pattern.compile("@[\\w.]+"));
-			
-			// Classes
-			mPatterns.put("class", Pattern.compile("\\b([A-Z][\\w]*)\\b"));
-			
-			// Methods
-			mPatterns.put("method", Pattern.compile("\\b([a-z][\\w]*)\\s*\\("));
-			
-			// Operators
-			mPatterns.put("operator", Pattern.compile("[+\\-*/%&|^!~=<>?:]+"));
-		} else if ("kotlin".equals(mLanguage)) {
-			// Keywords
-			mPatterns.put("keyword", Pattern.compile("\\b(abstract|actual|annotation|as|break|by|catch|class|companion|const|constructor|continue|crossinline|data|do|dynamic|else|enum|expect|external|false|final|finally|for|fun|get|if|import|in|infix|init|inline|inner|interface|internal|is|lateinit|noinline|null|object|open|operator|out|override|package|private|protected|public|reified|return|sealed|set|super|suspend|tailrec|this|throw|true|try|typealias|val|var|vararg|when|where|while)\\b"));
-			
-			// Strings
-			mPatterns.put("string", Pattern.compile("\"\"\"[\\s\\S]*?\"\"\"|\"([^\"\\\\]|\\\\.)*\"|'([^'\\\\]|\\\\.)*'"));
-			
-			// Comments
-			mPatterns.put("comment", Pattern.compile("//.*|/\\*[\\s\\S]*?\\*/"));
-			
-			// Numbers
-			mPatterns.put("number", Pattern.compile("\\b\\d+(\\.\\d+)?([eE][+-]?\\d+)?[fFdDL]?\\b"));
-			
-			// Annotations
-			mPatterns.put("annotation", Pattern.compile("@[\\w.]+"));
-			
-			// Classes
-			mPatterns.put("class", Pattern.compile("\\b([A-Z][\\w]*)\\b"));
-			
-			// Methods
-			mPatterns.put("method", Pattern.compile("\\b([a-z][\\w]*)\\s*\\("));
-			
-			// Operators
-			mPatterns.put("operator", Pattern.compile("[+\\-*/%&|^!~=<>?:]+"));
-		} else if ("python".equals(mLanguage)) {
-			// Keywords
-			mPatterns.put("keyword", Pattern.compile("\\b(and|as|assert|async|await|break|class|continue|def|del|elif|else|except|False|finally|for|from|global|if|import|in|is|lambda|None|nonlocal|not|or|pass|raise|return|True|try|while|with|yield)\\b"));
-			
-			// Strings
-			mPatterns.put("string", Pattern.compile("\"\"\"[\\s\\S]*?\"\"\"|'''[\\s\\S]*?'''|\"([^\"\\\\]|\\\\.)*\"|'([^'\\\\]|\\\\.)*'"));
-			
-			// Comments
-			mPatterns.put("comment", Pattern.compile("#.*"));
-			
-			// Numbers
-			mPatterns.put("number", Pattern.compile("\\b\\d+(\\.\\d+)?([eE][+-]?\\d+)?j?\\b"));
-			
-			// Decorators
-			mPatterns.put("annotation", Pattern.compile("@[\\w.]+"));
-			
-			// Classes
-			mPatterns.put("class", Pattern.compile("\\bclass\\s+([A-Za-z_][\\w]*)"));
-			
-			// Methods
-			mPatterns.put("method", Pattern.compile("\\bdef\\s+([A-Za-z_][\\w]*)"));
-			
-			// Operators
-			mPatterns.put("operator", Pattern.compile("[+\\-*/%&|^!~=<>@]+"));
-		} else if ("javascript".equals(mLanguage) || "js".equals(mLanguage)) {
-			// Keywords
-			mPatterns.put("keyword", Pattern.compile("\\b(async|await|break|case|catch|class|const|continue|debugger|default|delete|do|else|export|extends|finally|for|function|if|import|in|instanceof|let|new|of|return|super|switch|this|throw|try|typeof|var|void|while|with|yield)\\b"));
-			
-			// Strings
-			mPatterns.put("string", Pattern.compile("`[\\s\\S]*?`|\"([^\"\\\\]|\\\\.)*\"|'([^'\\\\]|\\\\.)*'"));
-			
-			// Comments
-			mPatterns.put("comment", Pattern.compile("//.*|/\\*[\\s\\S]*?\\*/"));
-			
-			// Numbers
-			mPatterns.put("number", Pattern.compile("\\b\\d+(\\.\\d+)?([eE][+-]?\\d+)?\\b"));
-			
-			// Classes
-			mPatterns.put("class", Pattern.compile("\\bclass\\s+([A-Za-z_$][\\w$]*)"));
-			
-			// Methods
-			mPatterns.put("method", Pattern.compile("\\b([A-Za-z_$][\\w$]*)\\s*\\("));
-			
-			// Operators
-			mPatterns.put("operator", Pattern.compile("[+\\-*/%&|^!~=<>?:]+"));
-		} else if ("typescript".equals(mLanguage) || "ts".equals(mLanguage)) {
-			// Keywords
-			mPatterns.put("keyword", Pattern.compile("\\b(abstract)\\b"));
-			
-			// Keywords
-			mPatterns.put("keyword", Pattern.compile("\\b(abstract|any|as|async|await|boolean|break|case|catch|class|const|constructor|continue|debugger|declare|default|delete|do|else|enum|export|extends|finally|for|from|function|get|if|implements|import|in|infer|instanceof|interface|is|keyof|let|module|namespace|never|new|null|number|object|of|package|private|protected|public|readonly|require|return|set|static|string|super|switch|symbol|this|throw|try|type|typeof|undefined|unique|unknown|var|void|while|with|yield)\\b"));
-			
-			// Strings
-			mPatterns.put("string", Pattern.compile("`[\\s\\S]*?`|\"([^\"\\\\]|\\\\.)*\"|'([^'\\\\]|\\\\.)*'"));
-			
-			// Comments
-			mPatterns.put("comment", Pattern.compile("//.*|/\\*[\\s\\S]*?\\*/"));
-			
-			// Numbers
-			mPatterns.put("number", Pattern.compile("\\b\\d+(\\.\\d+)?([eE][+-]?\\d+)?\\b"));
-			
-			// Decorators
-			mPatterns.put("annotation", Pattern.compile("@[\\w.]+"));
-			
-			// Classes
-			mPatterns.put("class", Pattern.compile("\\bclass\\s+([A-Za-z_$][\\w$]*)"));
-			
-			// Methods
-			mPatterns.put("method", Pattern.compile("\\b([A-Za-z_$][\\w$]*)\\s*\\("));
-			
-			// Operators
-			mPatterns.put("operator", Pattern.compile("[+\\-*/%&|^!~=<>?:]+"));
-		} else if ("csharp".equals(mLanguage) || "cs".equals(mLanguage)) {
-			// Keywords
-			mPatterns.put("keyword", Pattern.compile("\\b(abstract|as|base|bool|break|byte|case|catch|char|checked|class|const|continue|decimal|default|delegate|do|double|else|enum|event|explicit|extern|false|finally|fixed|float|for|foreach|goto|if|implicit|in|int|interface|internal|is|lock|long|namespace|new|null|object|operator|out|override|params|private|protected|public|readonly|ref|return|sbyte|sealed|short|sizeof|stackalloc|static|string|struct|switch|this|throw|true|try|typeof|uint|ulong|unchecked|unsafe|ushort|using|virtual|void|volatile|while)\\b"));
-			
-			// Strings
-			mPatterns.put("string", Pattern.compile("@\"[^\"]*(?:\"\"[^\"]*)*\"|\"([^\"\\\\]|\\\\.)*\""));
-			
-			// Comments
-			mPatterns.put("comment", Pattern.compile("//.*|/\\*[\\s\\S]*?\\*/"));
-			
-			// Numbers
-			mPatterns.put("number", Pattern.compile("\\b\\d+(\\.\\d+)?([eE][+-]?\\d+)?[fFdDmM]?\\b"));
-			
-			// Attributes
-			mPatterns.put("annotation", Pattern.compile("\\[\\s*([A-Za-z_][\\w.]*)\\s*\\]"));
-			
-			// Classes
-			mPatterns.put("class", Pattern.compile("\\bclass\\s+([A-Za-z_][\\w]*)"));
-			
-			// Methods
-			mPatterns.put("method", Pattern.compile("\\b([A-Za-z_][\\w]*)\\s*\\("));
-			
-			// Operators
-			mPatterns.put("operator", Pattern.compile("[+\\-*/%&|^!~=<>?:]+"));
+		// Grammars are compiled once per process and shared by all instances
+		setLexer(GrammarRegistry.getLexer(mActiveLanguage));
+	}
+	
+	/**
+	* Highlights with {@code lexer} and finds foldable regions the way its grammar asks for.
+	*/
+	private void setLexer(SyntaxLexer lexer) {
+		mHighlighter.setLexer(lexer);
+		
+		boolean indentation = lexer != null && lexer.getGrammar().foldingStyle == Grammar.FOLDING_INDENTATION;
+		if (indentation != (mFoldAnalyzer instanceof IndentFoldAnalyzer)) {
+			mFoldAnalyzer = indentation ? new IndentFoldAnalyzer() : new BraceFoldAnalyzer();
 		}
-		// Add more languages as needed
 	}
 	
 	/**
@@ -720,22 +791,37 @@ public class CodeViewer extends TextView {
 	*/
 	public void setCode(String code) {
 		mFullCode = code;
+		mFoldModel.clear();
+		mFoldAnalyzer.invalidateAll();
+		mBracketIndex.invalidateAll();
+		cancelSearchJob();
+		mIncrementalSearch.clear();
+		
+		// In auto mode a different document may be in a different language
+		if (LANGUAGE_AUTO.equals(mLanguage)) {
+			String language = LanguageDetector.detect(code, mFileName);
+			if (language == null ? mActiveLanguage != null : !language.equals(mActiveLanguage)) {
+				mActiveLanguage = language;
+				setLexer(GrammarRegistry.getLexer(language));
+			}
+		}
 		
 		if (mTypingAnimationEnabled) {
 			// Reset typing animation
 			mTypingPosition = 0;
 			startTypingAnimation();
 		} else {
-			setText(code);
+			if (shouldUseVirtualLayout(code)) {
+				showInVirtualLayout(code);
+			} else {
+				showInTextView(code);
+			}
 			
 			// Apply syntax highlighting
 			if (mEnableHighlighting) {
 				highlightSyntax();
 			}
 			
-			// Update line starts for line numbers
-			updateLineStarts();
-			
 			// Update foldable lines
 			if (mEnableFolding) {
 				updateFoldableLines();
@@ -743,14 +829,183 @@ public class CodeViewer extends TextView {
 		}
 	}
 	
+	/**
+	* Sets how long read-only code must be before it is shown with the virtualized layout.
+	* That layout keeps the code out of TextView, never wraps lines and only draws the lines
+	* near the viewport, with line positions computed rather than measured, so multi-megabyte
+	* files open without being laid out up front. The view should be placed in a scrolling
+	* container such as a ScrollView or NestedScrollView. Read-only code with folded regions
+	* uses it regardless of length. Editable code and the typing animation always use the
+	* regular TextView layout.
+	* <p>
+	* Code in the virtualized layout cannot be selected or copied, since TextView holds no
+	* text then; {@link #getText()} is empty, so read the code with {@link #getCode()}.
+	* {@link #setText(CharSequence)} still replaces it. Pass {@link Integer#MAX_VALUE} to keep
+	* large files selectable at the cost of laying them out in full.
+	* 
+	* @param chars The minimum length in characters; 0 to virtualize all read-only code,
+	* {@link Integer#MAX_VALUE} to never virtualize
+	*/
+	public void setVirtualLayoutThreshold(int chars) {
+		mVirtualLayoutThreshold = Math.max(0, chars);
+		updateLayoutMode();
+	}
+	
+	/**
+	* Returns whether the code is currently shown with the virtualized layout.
+	*/
+	public boolean isVirtualLayout() {
+		return mVirtualLayout != null;
+	}
+	
+	/**
+	* Sets how much memory read-only code may use for cached tiles. Read-only code is
+	* rendered into 256 pixel square bitmap tiles, gutter and colored text included, and
+	* scrolling composites the cached tiles instead of drawing the text again; only tiles
+	* that come into view for the first time are rendered. The least recently used tiles
+	* are reused once the budget is spent. While text is selected, or when the viewport
+	* needs more tiles than fit, the code is drawn directly.
+	* 
+	* @param bytes The memory budget in bytes; 0 to turn the tile cache off
+	*/
+	public void setTileCacheSize(int bytes) {
+		mTileCacheBytes = Math.max(0, bytes);
+		releaseTileCache();
+		invalidateContent();
+	}
+	
+	private boolean shouldUseVirtualLayout(CharSequence code) {
+		return !mIsEditable && !mTypingAnimationEnabled
+		&& (code.length() >= mVirtualLayoutThreshold || mFoldModel.hasFoldedRegions());
+	}
+	
+	/**
+	* Moves the code between TextView and the virtualized layout when the settings call for the other one.
+	*/
+	private void updateLayoutMode() {
+		if (mTypingAnimationEnabled && mTypingPosition < mFullCode.length()) {
+			return;
+		}
+		CharSequence code = getDocument();
+		boolean virtual = shouldUseVirtualLayout(code);
+		if (virtual == (mVirtualLayout != null)) {
+			return;
+		}
+		
+		if (virtual) {
+			showInVirtualLayout(code.toString());
+		} else {
+			showInTextView(code.toString());
+		}
+		if (mEnableHighlighting) {
+			highlightSyntax();
+		}
+		if (mEnableFolding) {
+			updateFoldableLines();
+		}
+	}
+	
+	/**
+	* Shows code with the virtualized layout; TextView is left empty so it lays nothing out.
+	*/
+	private void showInVirtualLayout(String code) {
+		if (mVirtualLayout == null) {
+			mVirtualLayout = new VirtualLayout(getPaint(), mLineIndex, mMonospaceMetrics, mFoldModel);
+			super.setText("", BufferType.SPANNABLE); // Ignored by the text watcher from now on
+		}
+		mDocument = code;
+		
+		// The whole document is new; the text watcher would normally do this bookkeeping
+		cancelHighlightJob();
+		stopProgressiveApply();
+		mLineIndex.rebuild(code);
+		mVirtualLayout.setText(code);
+		mHighlighter.invalidateAll();
+		mTokenBuffer.reset(mLineIndex.getLineCount());
+		updateLineNumberWidth(true);
+		requestLayout();
+		invalidateContent();
+	}
+	
+	/**
+	* Shows code in TextView, leaving the virtualized layout if it is in use.
+	*/
+	private void showInTextView(String code) {
+		if (mVirtualLayout != null) {
+			mVirtualLayout = null;
+			mDocument = "";
+			cancelHighlightJob();
+			stopProgressiveApply();
+			
+			// Describe TextView's empty text again, so the text watcher can take over from here
+			mLineIndex.rebuild("");
+			mHighlighter.invalidateAll();
+			mTokenBuffer.reset(1);
+			requestLayout();
+		}
+		setText(code);
+	}
+	
+	/**
+	* Replaces the text. While the virtualized layout is in use TextView holds no text, so the
+	* new text replaces the code as {@link #setCode(String)} would and may move it back into TextView.
+	*/
+	@Override
+	public void setText(CharSequence text, BufferType type) {
+		// TextView handing its own empty text back in, e.g. from setTextIsSelectable, is not new code
+		if (mVirtualLayout != null && text != getText()) {
+			setCode(text != null ? text.toString() : "");
+			return;
+		}
+		super.setText(text, type);
+	}
+	
+	/**
+	* Returns the code being shown. Unlike {@link #getText()}, which is empty while the
+	* virtualized layout is in use, this returns the code wherever it is kept.
+	* 
+	* @return The code, or the part typed so far while the typing animation runs
+	*/
+	public String getCode() {
+		return getDocument().toString();
+	}
+	
+	/**
+	* Returns the code being shown, wherever it is kept.
+	*/
+	private CharSequence getDocument() {
+		return mVirtualLayout != null ? mDocument : getText();
+	}
+	
+	/**
+	* Returns whether colors are painted from the token buffer; the virtualized layout always does.
+	*/
+	private boolean usesDrawTimeColoring() {
+		return mDrawTimeColoring || mVirtualLayout != null;
+	}
+	
+	/**
+	* Sets the code to be displayed along with the name of the file it came from.
+	* In {@link #LANGUAGE_AUTO} mode the file extension decides the language when it is known.
+	* 
+	* @param code The code string
+	* @param fileName The file name or path, or null if unknown
+	*/
+	public void setCode(String code, String fileName) {
+		mFileName = fileName;
+		setCode(code);
+	}
+	
 	/**
 	* Sets the programming language for syntax highlighting.
 	* 
-	* @param language The language identifier (e.g., "java", "python")
+	* @param language The language identifier (e.g., "java", "python", "go"), or
+	* {@link #LANGUAGE_AUTO} to detect it from the code; custom languages can be
+	* added with {@link GrammarRegistry#register}
 	*/
 	public void setLanguage(String language) {
 		mLanguage = language;
-		initPatterns();
+		initLexer();
 		
 		// Apply syntax highlighting
 		if (mEnableHighlighting) {
@@ -763,6 +1018,24 @@ public class CodeViewer extends TextView {
 		}
 	}
 	
+	/**
+	* Returns the language used for highlighting; in {@link #LANGUAGE_AUTO} mode this is
+	* the detected language, or null if none was recognized.
+	*/
+	public String getLanguage() {
+		return mActiveLanguage;
+	}
+	
+	/**
+	* Returns a cursor over the tokens of the current text. The cursor reads the
+	* highlighter's own storage, so features built on it never lex the code again.
+	* It starts out empty; position it with {@link TokenCursor#setRange} or
+	* {@link TokenCursor#setLineRange} and reuse it for further queries.
+	*/
+	public TokenCursor getTokenCursor() {
+		return new TokenCursor(mTokenBuffer, mLineIndex);
+	}
+	
 	/**
 	* Sets the theme for the code viewer.
 	* 
@@ -771,6 +1044,14 @@ public class CodeViewer extends TextView {
 	public void setTheme(int theme) {
 		mTheme = theme;
 		applyTheme(theme);
+		
+		// Token colors come from the palette at draw time; TextView only needs to know
+		// its cached text rendering is stale, which one whole-document span change tells it
+		if (!usesDrawTimeColoring() && getText() instanceof Spannable) {
+			Spannable spannable = (Spannable) getText();
+			spannable.removeSpan(mPaletteChangeSpan);
+			spannable.setSpan(mPaletteChangeSpan, 0, spannable.length(), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+		}
 	}
 	
 	/**
@@ -781,7 +1062,7 @@ public class CodeViewer extends TextView {
 	public void setShowLineNumbers(boolean show) {
 		mShowLineNumbers = show;
 		updatePadding();
-		invalidate();
+		invalidateContent();
 	}
 	
 	/**
@@ -791,7 +1072,7 @@ public class CodeViewer extends TextView {
 	*/
 	public void setFixedLineNumbers(boolean fixed) {
 		mFixedLineNumbers = fixed;
-		invalidate();
+		invalidateContent();
 	}
 	
 	/**
@@ -802,20 +1083,89 @@ public class CodeViewer extends TextView {
 	public void setEnableHighlighting(boolean enable) {
 		mEnableHighlighting = enable;
 		if (enable) {
+			mHighlighter.invalidateAll();
 			highlightSyntax();
 		} else {
-			// Remove all spans
-			if (getText() instanceof Spannable) {
-				Spannable spannable = (Spannable) getText();
-				Object[] spans = spannable.getSpans(0, spannable.length(), Object.class);
-				for (Object span : spans) {
-					if (span instanceof ForegroundColorSpan) {
-						spannable.removeSpan(span);
-					}
-				}
+			removeColorSpans();
+			mTokenBuffer.reset(mLineIndex.getLineCount());
+			
+			// Without tokens, brackets in strings and comments count as well
+			mFoldAnalyzer.invalidateAll();
+			mBracketIndex.invalidateAll();
+			if (mEnableFolding) {
+				updateFoldableLines();
 			}
 		}
-		invalidate();
+		invalidateContent();
+	}
+	
+	/**
+	* Sets whether syntax colors are applied while drawing instead of through spans.
+	* Colors then come straight from the packed token buffer, with no span object per
+	* token, which greatly reduces heap use and garbage collection on large documents.
+	* 
+	* @param enable True to color text at draw time, false to use spans
+	*/
+	public void setDrawTimeColoring(boolean enable) {
+		if (mDrawTimeColoring == enable) {
+			return;
+		}
+		mDrawTimeColoring = enable;
+		
+		cancelHighlightJob();
+		stopProgressiveApply();
+		removeColorSpans();
+		mTokenBuffer.reset(mLineIndex.getLineCount());
+		setTextColor(enable ? Color.TRANSPARENT : mTextColor);
+		
+		mHighlighter.invalidateAll();
+		highlightSyntax();
+		invalidateContent();
+	}
+	
+	private void removeColorSpans() {
+		if (getText() instanceof Spannable) {
+			Spannable spannable = (Spannable) getText();
+			TokenColorSpan[] spans = spannable.getSpans(0, spannable.length(), TokenColorSpan.class);
+			for (TokenColorSpan span : spans) {
+				spannable.removeSpan(span);
+			}
+		}
+	}
+	
+	/**
+	* Sets whether large documents are highlighted progressively: the visible lines
+	* first, then the rest of the document in small time slices.
+	* 
+	* @param enable True to color the viewport first, false to apply all colors at once
+	*/
+	public void setProgressiveHighlighting(boolean enable) {
+		mProgressiveHighlighting = enable;
+	}
+	
+	/**
+	* Sets how many lines above and below the viewport are colored immediately
+	* in progressive highlighting mode.
+	* 
+	* @param lines The number of extra lines on each side of the viewport
+	*/
+	public void setHighlightMargin(int lines) {
+		mHighlightMargin = Math.max(0, lines);
+	}
+	
+	/**
+	* Sets how long one highlighting pass may take. When the budget runs out, the lines
+	* highlighted so far keep their colors and the rest of the document is shown as
+	* plain text, so a huge or pathological file cannot stall highlighting.
+	* 
+	* @param millis The budget in milliseconds, or 0 for no limit
+	*/
+	public void setHighlightTimeBudget(long millis) {
+		mHighlighter.setTimeBudget(millis);
+		if (mEnableHighlighting) {
+			mHighlighter.invalidateAll();
+			highlightSyntax();
+		}
 	}
 	
 	/**
@@ -825,11 +1175,20 @@ public class CodeViewer extends TextView {
 	*/
 	public void setEnableLineHighlighting(boolean enable) {
 		mEnableLineHighlighting = enable;
-		invalidate();
+		invalidateContent();
 	}
 	
 	/**
-	* Sets whether to enable code folding.
+	* Sets whether to enable code folding. Tapping the marker of a foldable region in the
+	* gutter collapses its lines; folded code is shown with the virtualized layout, which
+	* leaves the hidden lines out of layout, drawing and hit-testing. Fold markers are offered
+	* while the code is read-only and the typing animation is off. Editable code keeps the text
+	* in TextView so it stays editable, and TextView cannot leave lines out of its layout; its
+	* regions are still tracked as it is edited and can be folded once it is made read-only.
+	* <p>
+	* While any region is folded the code cannot be selected or copied, as in the virtualized
+	* layout of {@link #setVirtualLayoutThreshold}; unfolding all regions moves it back into
+	* TextView and makes it selectable again.
 	* 
 	* @param enable True to enable code folding, false to disable
 	*/
@@ -838,10 +1197,22 @@ public class CodeViewer extends TextView {
 		if (enable) {
 			updateFoldableLines();
 		} else {
-			mFoldableLines.clear();
-			mFoldedLines.clear();
+			mFoldModel.clear();
 		}
-		invalidate();
+		onFoldsChanged();
+	}
+	
+	private boolean canFold() {
+		return mEnableFolding && !mIsEditable && !mTypingAnimationEnabled;
+	}
+	
+	/**
+	* Lays the code out again after regions were folded or unfolded.
+	*/
+	private void onFoldsChanged() {
+		updateLayoutMode();
+		requestLayout();
+		invalidateContent();
 	}
 	
 	/**
@@ -851,7 +1222,15 @@ public class CodeViewer extends TextView {
 	*/
 	public void setTypingAnimationEnabled(boolean enable) {
 		mTypingAnimationEnabled = enable;
-		if (enable && mFullCode.length() > 0 && getText().length() == 0) {
+		if (enable && mFoldModel.hasFoldedRegions()) {
+			mFoldModel.unfoldAll();
+			onFoldsChanged();
+		}
+		if (!enable) {
+			// Regions were not analyzed during the animation
+			updateFoldableLines();
+		}
+		if (enable && mFullCode.length() > 0 && getDocument().length() == 0) {
 			startTypingAnimation();
 		}
 	}
@@ -874,6 +1253,18 @@ public class CodeViewer extends TextView {
 		mIsEditable = editable;
 		setFocusable(editable);
 		setFocusableInTouchMode(editable);
+		
+		// Editing needs the text in TextView, drawn directly rather than from tiles and unfolded
+		if (editable) {
+			mFoldModel.unfoldAll();
+			requestLayout();
+		}
+		updateLayoutMode();
+		if (editable) {
+			releaseTileCache();
+		}
+		updateBracketMatch();
+		invalidateContent();
 	}
 	
 	/**
@@ -886,35 +1277,288 @@ public class CodeViewer extends TextView {
 	}
 	
 	/**
-	* Searches for a string in the code.
+	* Returns the offset of the bracket matching the one at {@code offset}. Brackets in
+	* strings and comments are not matched.
 	* 
-	* @param query The search query
-	* @return The number of matches found
+	* @param offset The offset of one of {@code ()[]{}}
+	* @return The offset of the matching bracket, or -1 if there is none
 	*/
-	public int search(String query) {
-		mSearchQuery = query;
-		mSearchResults.clear();
-		mCurrentSearchResult = -1;
-		
-		if (query == null || query.isEmpty()) {
-			invalidate();
-			return 0;
+	public int findMatchingBracket(int offset) {
+		return mBracketIndex.findMatch(getDocument(), mLineIndex, mTokenBuffer, offset);
+	}
+	
+	/**
+	* Moves the cursor to the bracket matching the one at or right before the cursor.
+	* Code in the virtualized layout has no cursor, so nothing moves there.
+	* 
+	* @return True if the cursor was moved, false if there is no bracket to match
+	*/
+	public boolean jumpToMatchingBracket() {
+		// TextView's empty text has no offsets into the document
+		if (mVirtualLayout != null) {
+			return false;
+		}
+		int caret = getSelectionEnd();
+		int bracket = findBracketAtCaret(caret);
+		if (bracket < 0 || !(getText() instanceof Spannable)) {
+			return false;
+		}
+		
+		// Land on the same side of the match as the cursor was of the bracket
+		int match = findMatchingBracket(bracket);
+		Selection.setSelection((Spannable) getText(), caret == bracket ? match : match + 1);
+		return true;
+	}
+	
+	/**
+	* Finds the bracket at the cursor and its match for onDraw to outline, after the text,
+	* the cursor or the tokens changed, so drawing never has to bring the brackets up to date.
+	*/
+	private void updateBracketMatch() {
+		int bracket = -1;
+		if (mVirtualLayout == null && mIsEditable && !mTextChanging && !hasSelection()) {
+			bracket = findBracketAtCaret(getSelectionEnd());
+		}
+		int match = bracket >= 0 ? findMatchingBracket(bracket) : -1;
+		if (bracket != mBracketAt || match != mBracketMatch) {
+			mBracketAt = bracket;
+			mBracketMatch = match;
+			invalidate();
+		}
+	}
+	
+	/**
+	* Returns the offset of the matched bracket at {@code caret}, or else right before it, or -1.
+	*/
+	private int findBracketAtCaret(int caret) {
+		if (caret < 0) {
+			return -1;
+		}
+		if (findMatchingBracket(caret) >= 0) {
+			return caret;
+		}
+		return caret > 0 && findMatchingBracket(caret - 1) >= 0 ? caret - 1 : -1;
+	}
+	
+	/**
+	* Searches for a string in the code, blocking until all matches are found. Overlapping
+	* matches are all found, and {@link #setMaxSearchResults(int)} does not apply. Large
+	* documents are better searched in the background with
+	* {@link #search(String, int, OnSearchListener)}.
+	* 
+	* @param query The search query
+	* @return The number of matches found
+	*/
+	public int search(String query) {
+		return searchNow(query, 0, Integer.MAX_VALUE);
+	}
+	
+	/**
+	* Searches for a literal string as it is being typed, e.g. from a text watcher on a search
+	* box. A query that extends the previous one only checks the previous matches again, and
+	* going back to an earlier query reuses its results, so a keystroke costs time in
+	* proportion to the matches rather than to the document. Like every literal search,
+	* overlapping matches are all found, up to {@link #setMaxSearchResults(int)} of them. A
+	* regular expression cannot be refined this way, so with {@link #SEARCH_REGEX} the
+	* document is searched from scratch.
+	* 
+	* @param query The search query
+	* @param flags {@link #SEARCH_IGNORE_CASE} and {@link #SEARCH_WHOLE_WORD} combined, or 0
+	* @return The number of matches found
+	*/
+	public int searchIncremental(String query, int flags) {
+		if ((flags & SEARCH_REGEX) != 0) {
+			return searchNow(query, flags, mMaxSearchResults);
+		}
+		
+		resetSearch(query);
+		if (query == null || query.isEmpty()) {
+			invalidateContent();
+			return 0;
 		}
 		
-		String text = getText().toString();
-		int index = text.indexOf(query);
-		while (index >= 0) {
-			mSearchResults.add(index);
-			index = text.indexOf(query, index + 1);
+		int count = mIncrementalSearch.search(getDocument(), query, (flags & SEARCH_IGNORE_CASE) != 0,
+		(flags & SEARCH_WHOLE_WORD) != 0, mMaxSearchResults);
+		int[] positions = mIncrementalSearch.getPositions();
+		ensureSearchCapacity(count);
+		for (int i = 0; i < count; i++) {
+			mSearchStarts[i] = positions[i];
+			mSearchEnds[i] = positions[i] + query.length();
 		}
+		mSearchResultCount = count;
 		
-		if (!mSearchResults.isEmpty()) {
+		if (count > 0) {
 			mCurrentSearchResult = 0;
 			highlightCurrentSearchResult();
 		}
+		invalidateContent();
+		return count;
+	}
+	
+	/**
+	* Searches on the UI thread, blocking until all matches are found or {@code maxMatches} of them.
+	*/
+	private int searchNow(String query, int flags, int maxMatches) {
+		resetSearch(query);
+		if (query == null || query.isEmpty()) {
+			invalidateContent();
+			return 0;
+		}
 		
-		invalidate();
-		return mSearchResults.size();
+		// On the UI thread the document cannot change meanwhile, so it needs no snapshot
+		new SearchJob(getDocument(), query, flags, maxMatches, new SearchJob.Callback() {
+			@Override
+			public void onMatches(SearchJob job, int[] starts, int[] ends, int count) {
+				addSearchResults(starts, ends, count);
+			}
+			
+			@Override
+			public void onFinished(SearchJob job, boolean capped) {
+			}
+		}).run();
+		
+		invalidateContent();
+		return mSearchResultCount;
+	}
+	
+	/**
+	* Searches the code on a background thread, cancelling a search that is still running.
+	* Matches can be navigated as soon as they are found, and the first one is highlighted
+	* right away. An edit stops the search, and so does finding
+	* {@link #setMaxSearchResults(int)} matches. Overlapping matches of a literal string are
+	* all found; a regular expression continues after each of its matches.
+	* 
+	* @param query The string to find, or a regular expression with {@link #SEARCH_REGEX}
+	* @param flags {@link #SEARCH_REGEX}, {@link #SEARCH_IGNORE_CASE} and {@link #SEARCH_WHOLE_WORD} combined, or 0
+	* @param listener Notified of the progress on the UI thread; may be null
+	* @throws java.util.regex.PatternSyntaxException If the query is not a valid regular expression
+	*/
+	public void search(String query, int flags, final OnSearchListener listener) {
+		if (query == null || query.isEmpty()) {
+			resetSearch(query);
+			invalidateContent();
+			if (listener != null) {
+				listener.onSearchFinished(0, false);
+			}
+			return;
+		}
+		
+		// The worker searches a snapshot, so edits made meanwhile cannot disturb it
+		SearchJob job = new SearchJob(getDocument().toString(), query, flags, mMaxSearchResults, new SearchJob.Callback() {
+			@Override
+			public void onMatches(final SearchJob job, final int[] starts, final int[] ends, final int count) {
+				mSearchHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (job != mSearchJob) return;
+						
+						addSearchResults(starts, ends, count);
+						invalidateContent();
+						if (listener != null) {
+							listener.onSearchProgress(mSearchResultCount);
+						}
+					}
+				});
+			}
+			
+			@Override
+			public void onFinished(final SearchJob job, final boolean capped) {
+				mSearchHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (job != mSearchJob) return;
+						
+						mSearchJob = null;
+						if (listener != null) {
+							listener.onSearchFinished(mSearchResultCount, capped);
+						}
+					}
+				});
+			}
+		});
+		
+		resetSearch(query);
+		invalidateContent();
+		mSearchJob = job;
+		SearchJob.getExecutor().execute(job);
+	}
+	
+	/**
+	* Receives the progress of a search started with {@link #search(String, int, OnSearchListener)}, on the UI thread.
+	*/
+	public interface OnSearchListener {
+		/**
+		* Called each time more matches were found.
+		* 
+		* @param resultCount The number of matches found so far
+		*/
+		void onSearchProgress(int resultCount);
+		
+		/**
+		* Called once the whole document was searched or the result limit was reached.
+		* 
+		* @param resultCount The number of matches
+		* @param capped True if the search stopped at the result limit
+		*/
+		void onSearchFinished(int resultCount, boolean capped);
+	}
+	
+	/**
+	* Sets the number of matches after which a search with flags stops; {@link #search(String)}
+	* always finds every match.
+	* 
+	* @param max The maximum number of search results
+	*/
+	public void setMaxSearchResults(int max) {
+		mMaxSearchResults = Math.max(1, max);
+	}
+	
+	/**
+	* Drops the results of the previous search and any search still running.
+	*/
+	private void resetSearch(String query) {
+		cancelSearchJob();
+		mSearchQuery = query;
+		mSearchResultCount = 0;
+		mCurrentSearchResult = -1;
+	}
+	
+	private void cancelSearchJob() {
+		if (mSearchJob != null) {
+			mSearchJob.cancel();
+			mSearchJob = null;
+		}
+	}
+	
+	/**
+	* Appends a batch of matches, highlighting the first match of the search.
+	*/
+	private void addSearchResults(int[] starts, int[] ends, int count) {
+		int total = mSearchResultCount + count;
+		ensureSearchCapacity(total);
+		System.arraycopy(starts, 0, mSearchStarts, mSearchResultCount, count);
+		System.arraycopy(ends, 0, mSearchEnds, mSearchResultCount, count);
+		mSearchResultCount = total;
+		
+		if (mCurrentSearchResult == -1 && total > 0) {
+			mCurrentSearchResult = 0;
+			highlightCurrentSearchResult();
+		}
+	}
+	
+	/**
+	* Grows the result arrays to hold {@code capacity} matches, keeping the current ones.
+	*/
+	private void ensureSearchCapacity(int capacity) {
+		if (capacity > mSearchStarts.length) {
+			capacity = Math.max(capacity, mSearchStarts.length * 2);
+			int[] starts = new int[capacity];
+			int[] ends = new int[capacity];
+			System.arraycopy(mSearchStarts, 0, starts, 0, mSearchResultCount);
+			System.arraycopy(mSearchEnds, 0, ends, 0, mSearchResultCount);
+			mSearchStarts = starts;
+			mSearchEnds = ends;
+		}
 	}
 	
 	/**
@@ -923,11 +1567,11 @@ public class CodeViewer extends TextView {
 	* @return True if navigation was successful, false if no more results
 	*/
 	public boolean findNext() {
-		if (mSearchResults.isEmpty() || mCurrentSearchResult == -1) {
+		if (mSearchResultCount == 0 || mCurrentSearchResult == -1) {
 			return false;
 		}
 		
-		mCurrentSearchResult = (mCurrentSearchResult + 1) % mSearchResults.size();
+		mCurrentSearchResult = (mCurrentSearchResult + 1) % mSearchResultCount;
 		highlightCurrentSearchResult();
 		return true;
 	}
@@ -938,11 +1582,11 @@ public class CodeViewer extends TextView {
 	* @return True if navigation was successful, false if no more results
 	*/
 	public boolean findPrevious() {
-		if (mSearchResults.isEmpty() || mCurrentSearchResult == -1) {
+		if (mSearchResultCount == 0 || mCurrentSearchResult == -1) {
 			return false;
 		}
 		
-		mCurrentSearchResult = (mCurrentSearchResult - 1 + mSearchResults.size()) % mSearchResults.size();
+		mCurrentSearchResult = (mCurrentSearchResult - 1 + mSearchResultCount) % mSearchResultCount;
 		highlightCurrentSearchResult();
 		return true;
 	}
@@ -951,9 +1595,7 @@ public class CodeViewer extends TextView {
 	* Clears the search results.
 	*/
 	public void clearSearch() {
-		mSearchQuery = "";
-		mSearchResults.clear();
-		mCurrentSearchResult = -1;
+		resetSearch("");
 		
 		// Remove search highlight spans
 		if (getText() instanceof Spannable) {
@@ -966,40 +1608,50 @@ public class CodeViewer extends TextView {
 			}
 		}
 		
-		invalidate();
+		invalidateContent();
 	}
 	
 	private void highlightCurrentSearchResult() {
-		if (mCurrentSearchResult < 0 || mCurrentSearchResult >= mSearchResults.size()) {
+		if (mCurrentSearchResult < 0 || mCurrentSearchResult >= mSearchResultCount) {
 			return;
 		}
 		
-		int start = mSearchResults.get(mCurrentSearchResult);
-		int end = start + mSearchQuery.length();
+		int start = mSearchStarts[mCurrentSearchResult];
+		int end = mSearchEnds[mCurrentSearchResult];
+		
+		// Unfold the regions hiding the result
+		if (mFoldModel.reveal(mLineIndex.findLine(start))) {
+			onFoldsChanged();
+		}
+		
+		// The virtualized layout draws the highlight itself
+		if (mVirtualLayout == null && !(getText() instanceof Spannable)) {
+			return;
+		}
 		
 		// Remove previous highlight
-		if (getText() instanceof Spannable) {
+		if (mVirtualLayout == null) {
 			Spannable spannable = (Spannable) getText();
 			spannable.removeSpan(mSearchHighlightSpan);
 			
 			// Add new highlight
 			spannable.setSpan(mSearchHighlightSpan, start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-			
-			// Scroll to the result
-			Layout layout = getLayout();
-			if (layout != null) {
-				int line = layout.getLineForOffset(start);
-				int y = layout.getLineTop(line);
-				
-				// If we have a parent ScrollView, scroll to the result
-				if (mParentScrollView != null) {
-					mParentScrollView.smoothScrollTo(0, y);
-				} else {
-					// Otherwise use built-in scrolling
-					scrollTo(0, y);
-				}
+		}
+		
+		// Scroll to the result
+		if (hasTextLayout()) {
+			int line = getLayoutLineForOffset(start);
+			int y = getLayoutLineTop(line);
+			
+			// If we have a parent ScrollView, scroll to the result
+			if (mParentScrollView != null) {
+				mParentScrollView.smoothScrollTo(0, y);
+			} else {
+				// Otherwise use built-in scrolling
+				scrollTo(0, y);
 			}
 		}
+		invalidateContent();
 	}
 	
 	private void startTypingAnimation() {
@@ -1008,8 +1660,8 @@ public class CodeViewer extends TextView {
 			mTypingHandler.removeCallbacks(mTypingRunnable);
 		}
 		
-		// Reset text
-		setText("");
+		// Reset text; the animation types into TextView
+		showInTextView("");
 		mTypingPosition = 0;
 		
 		// Start animation
@@ -1067,354 +1719,1043 @@ public class CodeViewer extends TextView {
 	}
 	
 	private void highlightSyntax() {
-		if (!mEnableHighlighting || mPatterns.isEmpty()) {
+		if (!mEnableHighlighting || mHighlighter.getLexer() == null) {
 			return;
 		}
 		
-		CharSequence text = getText();
-		if (!(text instanceof Spannable)) {
+		CharSequence text = getDocument();
+		if (!usesDrawTimeColoring() && !(text instanceof Spannable)) {
 			return;
 		}
 		
-		Spannable spannable = (Spannable) text;
-		String code = text.toString();
-		
-		// Remove existing color spans
-		ForegroundColorSpan[] spans = spannable.getSpans(0, spannable.length(), ForegroundColorSpan.class);
-		for (ForegroundColorSpan span : spans) {
-			spannable.removeSpan(span);
+		// A pass over the current text is already running or being applied
+		int version = mHighlighter.getVersion();
+		if ((mHighlightJob != null && mHighlightJob.getVersion() == version)
+		|| (mApplyingJob != null && mApplyingJob.getVersion() == version)) {
+			return;
 		}
 		
-		// Apply syntax highlighting
-		for (Map.Entry<String, Pattern> entry : mPatterns.entrySet()) {
-			String type = entry.getKey();
-			Pattern pattern = entry.getValue();
-			Matcher matcher = pattern.matcher(code);
-			
-			int color;
-			switch (type) {
-				case "keyword":
-				color = mKeywordColor;
-				break;
-				case "string":
-				color = mStringColor;
-				break;
-				case "comment":
-				color = mCommentColor;
-				break;
-				case "number":
-				color = mNumberColor;
-				break;
-				case "annotation":
-				color = mAnnotationColor;
-				break;
-				case "class":
-				color = mClassColor;
-				break;
-				case "method":
-				color = mMethodColor;
-				break;
-				case "operator":
-				color = mOperatorColor;
-				break;
-				default:
-				color = mTextColor;
-				break;
-			}
-			
-			while (matcher.find()) {
-				spannable.setSpan(
-				new ForegroundColorSpan(color),
-				matcher.start(),
-				matcher.end(),
-				Spannable.SPAN_EXCLUSIVE_EXCLUSIVE
-				);
-			}
+		// Re-lex only the lines touched since the last pass, on an immutable snapshot
+		cancelHighlightJob();
+		final SyntaxHighlighter.Job job = mHighlighter.createJob(text, mLineIndex);
+		if (job == null) {
+			return;
 		}
-	}
-	
-	private void updateLineStarts() {
-		mLineStarts.clear();
-		String text = getText().toString();
-		mLineStarts.add(0); // First line always starts at 0
 		
-		for (int i = 0; i < text.length(); i++) {
-			if (text.charAt(i) == '\n') {
-				mLineStarts.add(i + 1);
-			}
+		if (text.length() <= SYNC_HIGHLIGHT_LIMIT) {
+			job.run();
+			applyHighlightJob(job);
+			return;
 		}
 		
-		// Update line number width
-		String maxLineNumber = String.valueOf(mLineStarts.size());
-		mLineNumberWidth = (int) mLineNumberPaint.measureText(maxLineNumber) + mLineNumberPadding * 2;
-		
-		// Update padding
-		updatePadding();
-	}
-	
-	private void updateFoldableLines() {
-		mFoldableLines.clear();
-		String text = getText().toString();
-		String[] lines = text.split("\n");
-		
-		// Simple heuristic for foldable lines
-		int openBraces = 0;
-		Map<Integer, Integer> bracePairs = new HashMap<>();
-		Stack<Integer> braceStack = new Stack<>();
-		
-		for (int i = 0; i < lines.length; i++) {
-			String line = lines[i];
-			if (line.contains("{") && !line.contains("//") && !line.contains("/*")) {
-				braceStack.push(i);
-				openBraces++;
-			}
-			if (line.contains("}") && !line.contains("//") && !line.contains("/*")) {
-				openBraces--;
-				if (!braceStack.isEmpty()) {
-					int start = braceStack.pop();
-					bracePairs.put(start, i);
-				}
-			}
+		// Color what is on screen right away while the full pass runs
+		if (mProgressiveHighlighting) {
+			highlightVisibleWindow(job);
 		}
 		
-		// Mark lines as foldable
-		for (Map.Entry<Integer, Integer> entry : bracePairs.entrySet()) {
-			if (entry.getValue() - entry.getKey() > 1) { // Only if there's something to fold
-				mFoldableLines.put(entry.getKey(), false); // Not folded by default
+		mHighlightJob = job;
+		SyntaxHighlighter.getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				job.run();
+				if (!job.isCancelled()) {
+					mHighlightHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							applyHighlightJob(job);
+						}
+					});
+				}
 			}
-		}
+		});
 	}
 	
-	private void updatePadding() {
-		if (mShowLineNumbers) {
-			// We'll handle the padding for line numbers in onDraw instead of setting actual padding
-			// This is to avoid issues with text selection and scrolling
-			setPadding(mLineNumberWidth, getPaddingTop(), getPaddingRight(), getPaddingBottom());
-		} else {
-			setPadding(0, getPaddingTop(), getPaddingRight(), getPaddingBottom());
+	private void cancelHighlightJob() {
+		if (mHighlightJob != null) {
+			mHighlightJob.cancel();
+			mHighlightJob = null;
 		}
 	}
 	
 	/**
-	* Convert a text offset to a line number
+	* Speculatively lexes the visible lines plus the margin when the pending job covers them.
 	*/
-	private int getLineNumberForOffset(int offset) {
-		for (int i = 0; i < mLineStarts.size(); i++) {
-			int start = mLineStarts.get(i);
-			if (i == mLineStarts.size() - 1 || offset < mLineStarts.get(i + 1)) {
-				return i;
-			}
+	private void highlightVisibleWindow(SyntaxHighlighter.Job job) {
+		int lastLine = mLineIndex.getLineCount() - 1;
+		int first = Math.max(0, getFirstVisibleLine() - mHighlightMargin);
+		int last = Math.min(lastLine, getLastVisibleLine() + mHighlightMargin);
+		if (first > last || mLineIndex.getLineStart(last) < job.getRangeStart() || job.getDirtyToLine() < last) {
+			return;
+		}
+		
+		SyntaxHighlighter.Job preview = mHighlighter.createPreviewJob(getDocument(), mLineIndex, first, last);
+		preview.run();
+		if (usesDrawTimeColoring()) {
+			mTokenBuffer.setLines(preview);
+			mFoldAnalyzer.invalidateLines(first, last);
+			mBracketIndex.invalidateLines(first, last);
+			invalidateTiles(preview.getRangeStart(), preview.getRangeEnd());
+			invalidate();
+		} else {
+			applyTokens((Spannable) getText(), preview, preview.getRangeStart(), preview.getRangeEnd(), 0, preview.getTokenCount());
 		}
-		return 0;
 	}
 	
-	@Override
-	protected void onDraw(Canvas canvas) {
-		// Draw background (parent will handle the main background)
-		// super.onDraw() will draw the text
-		
-		// Save canvas state
-		canvas.save();
-		
-		// Text will be drawn in the normal position by super.onDraw(),
-		// but we need to adjust our line number drawing based on scrolling
+	private void applyHighlightJob(SyntaxHighlighter.Job job) {
+		if (job == mHighlightJob) {
+			mHighlightJob = null;
+		}
 		
-		// Draw line numbers if enabled
-		if (mShowLineNumbers) {
-			// Draw gutter background - fixed position if enabled
-			Paint gutterPaint = new Paint();
-			gutterPaint.setColor(mGutterBackgroundColor);
-			
-			if (mFixedLineNumbers) {
-				// Fixed position - adjust for horizontal scroll
-				canvas.drawRect(0, 0, mLineNumberWidth, getHeight(), gutterPaint);
-				
-				// Draw gutter separator
-				Paint separatorPaint = new Paint();
-				separatorPaint.setColor(mGutterSeparatorColor);
-				canvas.drawLine(mLineNumberWidth - 1, 0, mLineNumberWidth - 1, getHeight(), separatorPaint);
-			} else {
-				// Scroll with text
-				canvas.drawRect(getScrollX(), getScrollY(), getScrollX() + mLineNumberWidth, getScrollY() + getHeight(), gutterPaint);
-				
-				// Draw gutter separator
-				Paint separatorPaint = new Paint();
-				separatorPaint.setColor(mGutterSeparatorColor);
-				canvas.drawLine(getScrollX() + mLineNumberWidth - 1, getScrollY(), getScrollX() + mLineNumberWidth - 1, getScrollY() + getHeight(), separatorPaint);
-			}
-			
-			// Draw line numbers
-			Layout layout = getLayout();
-			if (layout != null) {
-				int firstVisibleLine = getFirstVisibleLine();
-				int lastVisibleLine = getLastVisibleLine();
-				
-				for (int i = firstVisibleLine; i <= lastVisibleLine; i++) {
-					if (i >= mLineStarts.size()) break;
-					
-					int lineStart = mLineStarts.get(i);
-					int line = layout.getLineForOffset(lineStart);
-					int baseline = layout.getLineBaseline(line);
-					int top = layout.getLineTop(line);
-					
-					// Skip folded lines
-					if (mFoldedLines.contains(i)) continue;
-					
-					// Draw line highlight if this is the selected line
-					if (mEnableLineHighlighting && i == mSelectedLine) {
-						canvas.drawRect(
-						mFixedLineNumbers ? mLineNumberWidth : getScrollX() + mLineNumberWidth,
-						top,
-						getWidth() + getScrollX(),
-						layout.getLineBottom(line),
-						mSelectedLinePaint
-						);
-					}
-					
-					// Draw line number
-					String lineNumber = String.valueOf(i + 1);
-					float x;
-					if (mFixedLineNumbers) {
-						// Fixed position
-						x = mLineNumberWidth - mLineNumberPadding - mLineNumberPaint.measureText(lineNumber);
-					} else {
-						// Scroll with text
-						x = getScrollX() + mLineNumberWidth - mLineNumberPadding - mLineNumberPaint.measureText(lineNumber);
-					}
-					canvas.drawText(lineNumber, x, baseline, mLineNumberPaint);
-					
-					// Draw folding indicator if this line is foldable
-					if (mEnableFolding && mFoldableLines.containsKey(i)) {
-						boolean folded = mFoldableLines.get(i);
-						float indicatorX;
-						if (mFixedLineNumbers) {
-							indicatorX = mLineNumberWidth - mFoldingIndicatorSize - 2;
-						} else {
-							indicatorX = getScrollX() + mLineNumberWidth - mFoldingIndicatorSize - 2;
-						}
-						float indicatorY = baseline - mLineNumberPaint.getTextSize() / 2;
-						
-						if (folded) {
-							// Draw + symbol
-							canvas.drawLine(
-							indicatorX - mFoldingIndicatorSize / 2,
-							indicatorY,
-							indicatorX + mFoldingIndicatorSize / 2,
-							indicatorY,
-							mFoldingPaint
-							);
-							canvas.drawLine(
-							indicatorX,
-							indicatorY - mFoldingIndicatorSize / 2,
-							indicatorX,
-							indicatorY + mFoldingIndicatorSize / 2,
-							mFoldingPaint
-							);
-						} else {
-							// Draw - symbol
-							canvas.drawLine(
-							indicatorX - mFoldingIndicatorSize / 2,
-							indicatorY,
-							indicatorX + mFoldingIndicatorSize / 2,
-							indicatorY,
-							mFoldingPaint
-							);
-						}
-					}
-				}
-			}
+		// Stale results (the text changed while the job ran) are dropped
+		CharSequence text = getDocument();
+		if ((!usesDrawTimeColoring() && !(text instanceof Spannable)) || text.length() != job.getTextLength()
+		|| job.getVersion() != mHighlighter.getVersion()) {
+			return;
 		}
 		
-		// Draw cursor for typing animation
-		if (mTypingAnimationEnabled && mShowCursor && mTypingPosition < mFullCode.length()) {
-			Layout layout = getLayout();
-			if (layout != null) {
-				int line = layout.getLineForOffset(mTypingPosition);
-				int x = (int) layout.getPrimaryHorizontal(mTypingPosition);
-				int top = layout.getLineTop(line);
-				int bottom = layout.getLineBottom(line);
-				
-				Paint cursorPaint = new Paint();
-				cursorPaint.setColor(mCursorColor);
-				cursorPaint.setStrokeWidth(mCursorWidth);
-				canvas.drawLine(x + getPaddingLeft(), top, x + getPaddingLeft(), bottom, cursorPaint);
+		// Storing packed tokens is cheap, so draw-time coloring needs no progressive apply
+		if (usesDrawTimeColoring()) {
+			if (mHighlighter.commit(job)) {
+				storeTokens(job);
+				invalidate();
 			}
+			return;
 		}
 		
-		// Restore canvas state
-		canvas.restore();
+		if (mProgressiveHighlighting && job.getTokenCount() > PROGRESSIVE_BLOCK_TOKENS) {
+			startProgressiveApply(job);
+			return;
+		}
 		
-		// Draw the text
-		super.onDraw(canvas);
+		if (mHighlighter.commit(job)) {
+			storeTokens(job);
+			applyTokens((Spannable) text, job, job.getRangeStart(), job.getRangeEnd(), 0, job.getTokenCount());
+		}
 	}
 	
 	/**
-	* Calculate the first visible line based on current scroll position
+	* Keeps the tokens of a committed job in the token buffer, which backs draw-time
+	* coloring and {@link TokenCursor} in both coloring modes.
 	*/
-	private int getFirstVisibleLine() {
-		int scrollY = mParentScrollView != null ? mParentScrollView.getScrollY() : getScrollY();
-		Layout layout = getLayout();
-		if (layout == null) return 0;
+	private void storeTokens(SyntaxHighlighter.Job job) {
+		mTokenBuffer.setLines(job);
+		if (job.isTruncated()) {
+			mTokenBuffer.clearLines(job.getFromLine() + job.getLineCount());
+		}
+		if (usesDrawTimeColoring()) {
+			invalidateTiles(job.getRangeStart(), job.isTruncated() ? getDocument().length() : job.getRangeEnd());
+		}
+		
+		// Brackets in the new strings and comments no longer count for folding and matching
+		int lastLine = job.isTruncated() ? Integer.MAX_VALUE : job.getFromLine() + job.getLineCount() - 1;
+		mFoldAnalyzer.invalidateLines(job.getFromLine(), lastLine);
+		mBracketIndex.invalidateLines(job.getFromLine(), lastLine);
+		if (mEnableFolding) {
+			updateFoldableLines();
+		}
+		updateBracketMatch();
 		
-		return layout.getLineForVertical(scrollY);
+		// The job ran out of copied lines before the colors settled; the next one continues there
+		if (mHighlighter.isDirty() && !mHighlightingScheduled) {
+			mHighlightingScheduled = true;
+			mHighlightHandler.post(getHighlightRunnable());
+		}
 	}
 	
 	/**
-	* Calculate the last visible line based on current scroll position
+	* Replaces the color spans in {@code [regionStart, regionEnd]} with tokens {@code [fromToken, toToken)} of a job.
 	*/
-	private int getLastVisibleLine() {
-		int height = getHeight();
-		int scrollY = mParentScrollView != null ? mParentScrollView.getScrollY() : getScrollY();
-		Layout layout = getLayout();
-		if (layout == null) return 0;
+	private void applyTokens(Spannable spannable, SyntaxHighlighter.Job job, int regionStart, int regionEnd, int fromToken, int toToken) {
+		// Remove existing color spans in the region
+		TokenColorSpan[] spans = spannable.getSpans(regionStart, regionEnd, TokenColorSpan.class);
+		for (TokenColorSpan span : spans) {
+			int spanStart = spannable.getSpanStart(span);
+			int spanEnd = spannable.getSpanEnd(span);
+			if ((spanStart < regionEnd && spanEnd > regionStart) || (spanStart == spanEnd && spanStart >= regionStart)) {
+				spannable.removeSpan(span);
+			}
+		}
+		
+		// Apply the new tokens
+		for (int i = fromToken; i < toToken; i++) {
+			spannable.setSpan(
+			new TokenColorSpan(mTokenColors, job.getTokenType(i)),
+			job.getTokenStart(i),
+			job.getTokenEnd(i),
+			Spannable.SPAN_EXCLUSIVE_EXCLUSIVE
+			);
+		}
 		
-		return layout.getLineForVertical(scrollY + height);
+		// TextView redraws for the span changes; the tiles showing them must be rendered again
+		invalidateTiles(regionStart, regionEnd);
 	}
 	
-	@Override
-	public boolean onTouchEvent(MotionEvent event) {
-		boolean result = mGestureDetector.onTouchEvent(event);
+	private void startProgressiveApply(SyntaxHighlighter.Job job) {
+		stopProgressiveApply();
+		mApplyingJob = job;
+		int blockCount = (job.getTokenCount() + PROGRESSIVE_BLOCK_TOKENS - 1) / PROGRESSIVE_BLOCK_TOKENS;
+		mAppliedBlocks = new boolean[blockCount];
+		mAppliedBlockCount = 0;
+		if (mApplySliceRunnable == null) {
+			mApplySliceRunnable = new Runnable() {
+				@Override
+				public void run() {
+					applyHighlightSlice();
+				}
+			};
+		}
 		
-		// Handle folding on click in the gutter area
-		if (event.getAction() == MotionEvent.ACTION_UP) {
-			float x = event.getX();
-			float y = event.getY() + getScrollY(); // Adjust for scrolling
-			
-			if (mShowLineNumbers && ((mFixedLineNumbers && x <= mLineNumberWidth) || 
-			(!mFixedLineNumbers && x <= getScrollX() + mLineNumberWidth))) {
-				Layout layout = getLayout();
-				if (layout != null) {
-					int line = layout.getLineForVertical((int) y);
-					int offset = layout.getLineStart(line);
-					
+		// The first slice runs now so the viewport is colored in this frame
+		applyHighlightSlice();
+	}
+	
+	private void stopProgressiveApply() {
+		mApplyingJob = null;
+		mAppliedBlocks = null;
+		if (mApplySliceRunnable != null) {
+			mHighlightHandler.removeCallbacks(mApplySliceRunnable);
+		}
+	}
+	
+	/**
+	* Applies the token blocks around the viewport, then further blocks until the time slice is used up.
+	* The viewport is looked up on every slice, so scrolling re-prioritises the remaining work.
+	*/
+	private void applyHighlightSlice() {
+		SyntaxHighlighter.Job job = mApplyingJob;
+		if (job == null) {
+			return;
+		}
+		
+		// The text changed; the lines stay dirty and the next pass covers them
+		if (job.getVersion() != mHighlighter.getVersion()) {
+			stopProgressiveApply();
+			return;
+		}
+		
+		long deadline = SystemClock.uptimeMillis() + PROGRESSIVE_SLICE_MS;
+		Spannable spannable = (Spannable) getText();
+		int blockCount = mAppliedBlocks.length;
+		
+		int lastLine = mLineIndex.getLineCount() - 1;
+		int first = Math.max(0, Math.min(lastLine, getFirstVisibleLine() - mHighlightMargin));
+		int last = Math.max(0, Math.min(lastLine, getLastVisibleLine() + mHighlightMargin));
+		int firstBlock = Math.min(blockCount - 1, job.findToken(mLineIndex.getLineStart(first)) / PROGRESSIVE_BLOCK_TOKENS);
+		int lastBlock = Math.min(blockCount - 1, job.findToken(mLineIndex.getLineStart(last)) / PROGRESSIVE_BLOCK_TOKENS);
+		
+		for (int block = firstBlock; block <= lastBlock; block++) {
+			applyHighlightBlock(spannable, job, block);
+		}
+		
+		while (mAppliedBlockCount < blockCount && SystemClock.uptimeMillis() < deadline) {
+			applyHighlightBlock(spannable, job, findPendingBlock(firstBlock));
+		}
+		
+		if (mAppliedBlockCount < blockCount) {
+			mHighlightHandler.post(mApplySliceRunnable);
+		} else {
+			if (mHighlighter.commit(job)) {
+				storeTokens(job);
+			}
+			stopProgressiveApply();
+		}
+	}
+	
+	private void applyHighlightBlock(Spannable spannable, SyntaxHighlighter.Job job, int block) {
+		if (mAppliedBlocks[block]) {
+			return;
+		}
+		
+		int fromToken = block * PROGRESSIVE_BLOCK_TOKENS;
+		int toToken = Math.min(fromToken + PROGRESSIVE_BLOCK_TOKENS, job.getTokenCount());
+		int regionStart = block == 0 ? job.getRangeStart() : job.getTokenStart(fromToken);
+		int regionEnd = block == mAppliedBlocks.length - 1 ? job.getRangeEnd() : job.getTokenStart(toToken);
+		applyTokens(spannable, job, regionStart, regionEnd, fromToken, toToken);
+		
+		mAppliedBlocks[block] = true;
+		mAppliedBlockCount++;
+	}
+	
+	/**
+	* Returns the unapplied block closest to {@code center}.
+	*/
+	private int findPendingBlock(int center) {
+		int blockCount = mAppliedBlocks.length;
+		for (int distance = 0; distance < blockCount; distance++) {
+			if (center + distance < blockCount && !mAppliedBlocks[center + distance]) {
+				return center + distance;
+			}
+			if (center - distance >= 0 && !mAppliedBlocks[center - distance]) {
+				return center - distance;
+			}
+		}
+		return center;
+	}
+	
+	private static int countLineBreaks(CharSequence text, int start, int end) {
+		int count = 0;
+		for (int i = start; i < end; i++) {
+			if (text.charAt(i) == '\n') count++;
+		}
+		return count;
+	}
+	
+	private void updateLineStarts() {
+		mLineIndex.rebuild(getDocument());
+		updateLineNumberWidth(true);
+	}
+	
+	/**
+	* Resizes the line number gutter, which only changes when the line count gains or loses a digit.
+	*/
+	private void updateLineNumberWidth(boolean force) {
+		int lineCount = mLineIndex.getLineCount();
+		int digits = 1;
+		for (int n = lineCount; n >= 10; n /= 10) digits++;
+		if (!force && digits == mLineNumberDigits) {
+			return;
+		}
+		mLineNumberDigits = digits;
+		
+		// Update line number width
+		mLineNumberWidth = (int) mLineNumberText.format(lineCount) + mLineNumberPadding * 2;
+		
+		// Update padding
+		updatePadding();
+	}
+	
+	/**
+	* Brings the foldable regions up to date; only lines edited or lexed since the last call are scanned.
+	* Edits to editable code are analyzed as they are made, though its regions are only offered
+	* for folding once it is read-only. Nothing is analyzed while folding is off or the typing
+	* animation runs; the analyzer keeps track of the touched lines until then.
+	*/
+	private void updateFoldableLines() {
+		if (!mEnableFolding || mTypingAnimationEnabled) {
+			return;
+		}
+		// The model holds the analyzer's last regions, or none after it was cleared
+		boolean changed = mFoldAnalyzer.analyze(getDocument(), mLineIndex, mTokenBuffer);
+		if (!changed && mFoldModel.getRegionCount() == mFoldAnalyzer.getRegionCount()) {
+			return;
+		}
+		if (mFoldModel.setRegions(mFoldAnalyzer.getRegionStarts(), mFoldAnalyzer.getRegionEnds(), mFoldAnalyzer.getRegionCount())) {
+			// A folded region went away
+			requestLayout();
+		}
+		invalidateContent();
+	}
+	
+	private void updatePadding() {
+		if (mShowLineNumbers) {
+			// We'll handle the padding for line numbers in onDraw instead of setting actual padding
+			// This is to avoid issues with text selection and scrolling
+			setPadding(mLineNumberWidth, getPaddingTop(), getPaddingRight(), getPaddingBottom());
+		} else {
+			setPadding(0, getPaddingTop(), getPaddingRight(), getPaddingBottom());
+		}
+	}
+	
+	@Override
+	protected void onDraw(Canvas canvas) {
+		// Draw background (parent will handle the main background)
+		// super.onDraw() will draw the text
+		
+		// Read-only code is composited from cached tiles when they cover the viewport
+		if (isTileCacheUsable() && drawTiles(canvas)) {
+			mDrawnWithTiles = true;
+			return;
+		}
+		if (mDrawnWithTiles) {
+			// The drawn range describes tiles; the gutter cache must be rendered for it first
+			mDrawnWithTiles = false;
+			mDrawnLimit = -1;
+		}
+		
+		// Save canvas state
+		canvas.save();
+		
+		// Text will be drawn in the normal position by super.onDraw(),
+		// but we need to adjust our line number drawing based on scrolling
+		
+		boolean hasLayout = hasTextLayout();
+		boolean drawnRangeMoved = hasLayout && updateDrawnRange();
+		
+		// Draw line numbers if enabled
+		if (mShowLineNumbers && hasLayout) {
+			int gutterLeft = mFixedLineNumbers ? 0 : getScrollX();
+			drawGutter(canvas, gutterLeft, drawnRangeMoved);
+			drawSelectedLine(canvas, gutterLeft);
+		}
+		
+		// Draw cursor for typing animation
+		if (mVirtualLayout == null && mTypingAnimationEnabled && mShowCursor && mTypingPosition < mFullCode.length()) {
+			Layout layout = getLayout();
+			if (layout != null) {
+				int line = layout.getLineForOffset(mTypingPosition);
+				int x = (int) getPrimaryHorizontal(layout, line, mTypingPosition);
+				int top = layout.getLineTop(line);
+				int bottom = layout.getLineBottom(line);
+				
+				canvas.drawLine(x + getPaddingLeft(), top, x + getPaddingLeft(), bottom, mCursorPaint);
+			}
+		}
+		
+		// Outline the bracket at the cursor and its match
+		if (mVirtualLayout == null && mBracketAt >= 0 && hasLayout && isFocused()) {
+			drawBracketOutline(canvas, mBracketAt);
+			drawBracketOutline(canvas, mBracketMatch);
+		}
+		
+		// Restore canvas state
+		canvas.restore();
+		
+		// Draw the text; in the virtualized layout TextView has none and would only draw the hint
+		if (mVirtualLayout == null) {
+			super.onDraw(canvas);
+		}
+		
+		if (usesDrawTimeColoring() && hasLayout) {
+			drawColoredText(canvas, mDrawnFirstLine, mDrawnLastLine);
+		}
+	}
+	
+	/**
+	* Outlines the character at {@code offset}, in the coordinates the typing cursor is drawn in.
+	*/
+	private void drawBracketOutline(Canvas canvas, int offset) {
+		Layout layout = getLayout();
+		int line = layout.getLineForOffset(offset);
+		float left = getPrimaryHorizontal(layout, line, offset) + getPaddingLeft();
+		float right = getPrimaryHorizontal(layout, line, offset + 1) + getPaddingLeft();
+		canvas.drawRect(left, layout.getLineTop(line), right, layout.getLineBottom(line) - 1, mBracketMatchPaint);
+	}
+	
+	/**
+	* Draws the highlight of the selected line if it is shown.
+	*/
+	private void drawSelectedLine(Canvas canvas, int gutterLeft) {
+		if (mEnableLineHighlighting && mSelectedLine >= 0 && mSelectedLine < mLineIndex.getLineCount()
+		&& !mFoldModel.isHidden(mSelectedLine)) {
+			int line = getLayoutLineForOffset(mLineIndex.getLineStart(mSelectedLine));
+			canvas.drawRect(
+			gutterLeft + mLineNumberWidth,
+			getLayoutLineTop(line),
+			getWidth() + getScrollX(),
+			getLayoutLineBottom(line),
+			mSelectedLinePaint
+			);
+		}
+	}
+	
+	private boolean isTileCacheUsable() {
+		return mTileCacheBytes > 0 && !mIsEditable && hasTextLayout() && getDocument().length() > 0
+		&& !hasSelection() && !(mTypingAnimationEnabled && mTypingPosition < mFullCode.length());
+	}
+	
+	/**
+	* Composites the tiles around the viewport, rendering the ones that are not cached.
+	*
+	* @return False if the viewport needs more tiles than the cache holds; nothing is drawn then
+	*/
+	private boolean drawTiles(Canvas canvas) {
+		int size = TileCache.TILE_SIZE;
+		int top = getViewportTop();
+		int left = getViewportLeft();
+		int contentHeight = Math.max(getHeight(), getLayoutHeight() + getExtendedPaddingTop() + getExtendedPaddingBottom());
+		int contentRight = getScrollX() + getWidth();
+		
+		// One extra row above and below, so a fling finds the next row already rendered
+		int firstRow = Math.max(0, top / size - 1);
+		int lastRow = Math.min((contentHeight - 1) / size, (top + getViewportHeight()) / size + 1);
+		int firstColumn = Math.max(0, left / size);
+		int lastColumn = Math.min((contentRight - 1) / size, (left + getViewportWidth()) / size);
+		if (firstRow > lastRow || firstColumn > lastColumn) {
+			return false;
+		}
+		
+		if (mTileCache == null) {
+			mTileCache = new TileCache(mTileCacheBytes);
+		}
+		if ((lastRow - firstRow + 1) * (lastColumn - firstColumn + 1) > mTileCache.getCapacity()) {
+			return false;
+		}
+		
+		// TextView lays the text out again when it or the view size changes
+		Layout layout = getLayout();
+		if (layout != mTileLayout || getScrollX() != mTileScrollX || getWidth() != mTileWidth) {
+			mTileLayout = layout;
+			mTileScrollX = getScrollX();
+			mTileWidth = getWidth();
+			mTileCache.invalidateAll();
+		}
+		
+		// Cached tiles first, so rendering the missing ones cannot evict tiles of this frame
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				Bitmap tile = mTileCache.get(row, column);
+				if (tile != null) {
+					canvas.drawBitmap(tile, column * size, row * size, null);
+				}
+			}
+		}
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				if (mTileCache.get(row, column) != null) continue;
+				
+				Bitmap tile = mTileCache.obtain(row, column);
+				renderTile(tile, row, column);
+				canvas.drawBitmap(tile, column * size, row * size, null);
+			}
+		}
+		
+		mDrawnTop = firstRow * size;
+		mDrawnBottom = Math.min(contentHeight, (lastRow + 1) * size);
+		mDrawnLimit = mDrawnBottom >= contentHeight ? Integer.MAX_VALUE : mDrawnBottom;
+		mDrawnLeft = firstColumn * size;
+		int drawnRight = (lastColumn + 1) * size;
+		mDrawnRightLimit = drawnRight >= contentRight ? Integer.MAX_VALUE : drawnRight;
+		mDrawnFirstLine = getLayoutLineForVertical(mDrawnTop);
+		mDrawnLastLine = getLayoutLineForVertical(mDrawnBottom);
+		return true;
+	}
+	
+	/**
+	* Renders the content in the bounds of a tile into its bitmap.
+	*/
+	private void renderTile(Bitmap tile, int row, int column) {
+		int left = column * TileCache.TILE_SIZE;
+		int top = row * TileCache.TILE_SIZE;
+		if (mTileCanvas == null) {
+			mTileCanvas = new Canvas();
+		}
+		Canvas canvas = mTileCanvas;
+		canvas.setBitmap(tile);
+		canvas.save();
+		canvas.translate(-left, -top);
+		canvas.clipRect(left, top, left + TileCache.TILE_SIZE, top + TileCache.TILE_SIZE);
+		
+		// The lines reaching into the tile; text is offset by the top padding, the gutter is not
+		int firstLine = getLayoutLineForVertical(top - getExtendedPaddingTop());
+		int lastLine = getLayoutLineForVertical(top + TileCache.TILE_SIZE);
+		
+		if (mShowLineNumbers) {
+			int gutterLeft = mFixedLineNumbers ? 0 : getScrollX();
+			canvas.save();
+			canvas.translate(gutterLeft, 0);
+			renderGutter(canvas, top, top + TileCache.TILE_SIZE, firstLine, lastLine);
+			canvas.restore();
+			drawSelectedLine(canvas, gutterLeft);
+		}
+		
+		// The same text super.onDraw() would draw, spans and search highlight included
+		if (mVirtualLayout == null) {
+			TextPaint paint = getPaint();
+			paint.setColor(getCurrentTextColor());
+			paint.drawableState = getDrawableState();
+			canvas.save();
+			canvas.translate(getCompoundPaddingLeft(), getExtendedPaddingTop());
+			getLayout().draw(canvas);
+			canvas.restore();
+		}
+		
+		if (usesDrawTimeColoring()) {
+			drawColoredText(canvas, firstLine, lastLine);
+		}
+		
+		canvas.restore();
+		canvas.setBitmap(null);
+	}
+	
+	private void releaseTileCache() {
+		if (mTileCache != null) {
+			mTileCache.release();
+			mTileCache = null;
+		}
+		mTileCanvas = null;
+		mTileLayout = null;
+	}
+	
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		if (mVirtualLayout == null) {
+			super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+			return;
+		}
+		
+		// The size follows from the line count and the widest line; no text is laid out
+		mVirtualLayout.updateMetrics();
+		int width = getCompoundPaddingLeft() + mVirtualLayout.getWidth() + getCompoundPaddingRight();
+		int height = getExtendedPaddingTop() + mVirtualLayout.getHeight() + getExtendedPaddingBottom();
+		setMeasuredDimension(
+		resolveSize(Math.max(width, getSuggestedMinimumWidth()), widthMeasureSpec),
+		resolveSize(Math.max(height, getSuggestedMinimumHeight()), heightMeasureSpec)
+		);
+	}
+	
+	/**
+	* Paints lines {@code [firstLine, lastLine]} from the token buffer; TextView itself draws the text transparent.
+	*/
+	private void drawColoredText(Canvas canvas, int firstLine, int lastLine) {
+		Layout layout = getLayout();
+		CharSequence text = getDocument();
+		mTokenPaint.set(getPaint());
+		mDrawMonospace = mMonospaceMetrics.update(mTokenPaint);
+		int firstVisibleLine = firstLine;
+		int lastVisibleLine = Math.min(lastLine, getLayoutLineCount() - 1);
+		
+		canvas.save();
+		canvas.translate(getCompoundPaddingLeft(), getExtendedPaddingTop());
+		
+		if (mVirtualLayout != null) {
+			drawSearchHighlight(canvas, firstVisibleLine, lastVisibleLine);
+		}
+		
+		for (int line = firstVisibleLine; line <= lastVisibleLine; line = nextLayoutLine(line)) {
+			int lineStart = getLayoutLineStart(line);
+			int lineEnd;
+			float x;
+			if (mVirtualLayout != null) {
+				lineEnd = mVirtualLayout.getLineEnd(line);
+				x = 0;
+			} else {
+				lineEnd = layout.getLineEnd(line);
+				if (lineEnd > lineStart && text.charAt(lineEnd - 1) == '\n') lineEnd--;
+				x = layout.getLineLeft(line);
+			}
+			float baseline = getLayoutLineBaseline(line);
+			int position = lineStart;
+			
+			if (line < mTokenBuffer.getLineCount()) {
+				int endToken = mTokenBuffer.getLineEndToken(line);
+				for (int token = mTokenBuffer.getLineFirstToken(line); token < endToken; token++) {
+					int start = lineStart + mTokenBuffer.getRelativeStart(token);
+					int end = Math.min(start + mTokenBuffer.getLength(token), lineEnd);
+					if (start < position || start >= end) continue;
+					
+					if (start > position) {
+						x = drawTextRun(canvas, text, position, start, x, baseline, mTextColor);
+					}
+					x = drawTextRun(canvas, text, start, end, x, baseline, mTokenColors[mTokenBuffer.getType(token)]);
+					position = end;
+				}
+			}
+			
+			if (position < lineEnd) {
+				drawTextRun(canvas, text, position, lineEnd, x, baseline, mTextColor);
+			}
+		}
+		
+		canvas.restore();
+	}
+	
+	/**
+	* Draws the background of the current search result, which TextView would draw from its span.
+	*/
+	private void drawSearchHighlight(Canvas canvas, int firstLine, int lastLine) {
+		if (mCurrentSearchResult < 0 || mCurrentSearchResult >= mSearchResultCount) {
+			return;
+		}
+		int start = mSearchStarts[mCurrentSearchResult];
+		int line = mVirtualLayout.getLineForOffset(start);
+		if (line < firstLine || line > lastLine || mFoldModel.isHidden(line)) {
+			return;
+		}
+		int end = Math.min(mSearchEnds[mCurrentSearchResult], mVirtualLayout.getLineEnd(line));
+		canvas.drawRect(
+		mVirtualLayout.getPrimaryHorizontal(start),
+		mVirtualLayout.getLineTop(line),
+		mVirtualLayout.getPrimaryHorizontal(end),
+		mVirtualLayout.getLineBottom(line),
+		mSearchHighlightPaint
+		);
+	}
+	
+	/**
+	* Returns the layout line drawn after {@code line}, skipping folded lines.
+	*/
+	private int nextLayoutLine(int line) {
+		// Lines are only folded in the virtualized layout, where layout lines are document lines
+		return mVirtualLayout != null ? mFoldModel.nextVisibleLine(line) : line + 1;
+	}
+	
+	/**
+	* Draws {@code text[start, end)} in one color, expanding tabs like Layout does.
+	* 
+	* @return The x position after the run
+	*/
+	private float drawTextRun(Canvas canvas, CharSequence text, int start, int end, float x, float baseline, int color) {
+		mTokenPaint.setColor(color);
+		int runStart = start;
+		for (int i = start; i <= end; i++) {
+			if (i < end && text.charAt(i) != '\t') continue;
+			
+			int count = i - runStart;
+			if (count > 0) {
+				if (mDrawBuffer.length < count) {
+					mDrawBuffer = new char[Math.max(count, mDrawBuffer.length * 2)];
+				}
+				TextUtils.getChars(text, runStart, i, mDrawBuffer, 0);
+				canvas.drawText(mDrawBuffer, 0, count, x, baseline, mTokenPaint);
+				float width = mDrawMonospace ? mMonospaceMetrics.measure(text, runStart, i) : -1;
+				x += width >= 0 ? width : mTokenPaint.measureText(mDrawBuffer, 0, count);
+			}
+			if (i < end) {
+				x = mMonospaceMetrics.nextTabStop(x);
+			}
+			runStart = i + 1;
+		}
+		return x;
+	}
+	
+	/**
+	* Returns {@link Layout#getPrimaryHorizontal}, computed arithmetically when the text is monospace.
+	*/
+	private float getPrimaryHorizontal(Layout layout, int line, int offset) {
+		if (isPlainLeftToRight(layout, line)) {
+			float x = mMonospaceMetrics.getHorizontal(layout.getText(), layout.getLineStart(line), offset);
+			if (x >= 0) {
+				return x;
+			}
+		}
+		return layout.getPrimaryHorizontal(offset);
+	}
+	
+	/**
+	* Returns whether a line starts at x = 0 and advances left to right in a monospace font.
+	*/
+	private boolean isPlainLeftToRight(Layout layout, int line) {
+		return layout.getAlignment() == Layout.Alignment.ALIGN_NORMAL
+		&& layout.getParagraphDirection(line) == Layout.DIR_LEFT_TO_RIGHT
+		&& mMonospaceMetrics.update(getPaint());
+	}
+	
+	/**
+	* Hit-tests taps for caret placement and selection. Monospace lines are hit-tested by counting
+	* characters instead of measuring them, which matters on very long lines such as minified code.
+	*/
+	@Override
+	public int getOffsetForPosition(float x, float y) {
+		if (!hasTextLayout()) {
+			return -1;
+		}
+		
+		// Convert to content coordinates the way TextView does
+		float contentY = Math.min(Math.max(0, y - getTotalPaddingTop()), getHeight() - getTotalPaddingTop() - getTotalPaddingBottom() - 1) + getScrollY();
+		float contentX = Math.min(Math.max(0, x - getTotalPaddingLeft()), getWidth() - getTotalPaddingLeft() - getTotalPaddingRight() - 1) + getScrollX();
+		
+		if (mVirtualLayout != null) {
+			int line = mVirtualLayout.getLineForVertical((int) contentY);
+			return mVirtualLayout.getOffsetForHorizontal(line, contentX);
+		}
+		
+		Layout layout = getLayout();
+		int line = layout.getLineForVertical((int) contentY);
+		if (isPlainLeftToRight(layout, line)) {
+			// Like Layout, the last position of a line that is not the last one is before its break
+			int maxOffset = layout.getLineEnd(line);
+			if (line < layout.getLineCount() - 1) maxOffset--;
+			int offset = mMonospaceMetrics.getOffsetForHorizontal(layout.getText(), layout.getLineStart(line), maxOffset, contentX);
+			if (offset >= 0) {
+				return offset;
+			}
+		}
+		return super.getOffsetForPosition(x, y);
+	}
+	
+	/**
+	* Calculate the first visible line based on current scroll position
+	*/
+	private int getFirstVisibleLine() {
+		if (!hasTextLayout()) return 0;
+		
+		return getLayoutLineForVertical(getViewportTop());
+	}
+	
+	/**
+	* Calculate the last visible line based on current scroll position
+	*/
+	private int getLastVisibleLine() {
+		if (!hasTextLayout()) return 0;
+		
+		return getLayoutLineForVertical(getViewportTop() + getViewportHeight());
+	}
+	
+	/**
+	* Top of the visible part of the view, in content coordinates. Inside a scrolling container the
+	* view is as tall as its text, so only the part the container shows counts.
+	*/
+	private int getViewportTop() {
+		if (getLocalVisibleRect(mVisibleRect)) {
+			return getScrollY() + mVisibleRect.top;
+		}
+		return mParentScrollView != null ? mParentScrollView.getScrollY() : getScrollY();
+	}
+	
+	/**
+	* Height of the visible part of the view
+	*/
+	private int getViewportHeight() {
+		if (getLocalVisibleRect(mVisibleRect)) {
+			return mVisibleRect.height();
+		}
+		return mParentScrollView != null ? mParentScrollView.getHeight() : getHeight();
+	}
+	
+	/**
+	* Left edge of the visible part of the view, in content coordinates
+	*/
+	private int getViewportLeft() {
+		if (getLocalVisibleRect(mVisibleRect)) {
+			return getScrollX() + mVisibleRect.left;
+		}
+		return mParentHorizontalScrollView != null ? mParentHorizontalScrollView.getScrollX() : getScrollX();
+	}
+	
+	/**
+	* Width of the visible part of the view
+	*/
+	private int getViewportWidth() {
+		if (getLocalVisibleRect(mVisibleRect)) {
+			return mVisibleRect.width();
+		}
+		return mParentHorizontalScrollView != null ? mParentHorizontalScrollView.getWidth() : getWidth();
+	}
+	
+	// Line geometry of whichever layout is in use, the virtualized one or TextView's
+	
+	private boolean hasTextLayout() {
+		return mVirtualLayout != null || getLayout() != null;
+	}
+	
+	private int getLayoutLineCount() {
+		return mVirtualLayout != null ? mVirtualLayout.getLineCount() : getLayout().getLineCount();
+	}
+	
+	private int getLayoutHeight() {
+		return mVirtualLayout != null ? mVirtualLayout.getHeight() : getLayout().getHeight();
+	}
+	
+	private int getLayoutLineForVertical(int vertical) {
+		return mVirtualLayout != null ? mVirtualLayout.getLineForVertical(vertical) : getLayout().getLineForVertical(vertical);
+	}
+	
+	private int getLayoutLineForOffset(int offset) {
+		return mVirtualLayout != null ? mVirtualLayout.getLineForOffset(offset) : getLayout().getLineForOffset(offset);
+	}
+	
+	private int getLayoutLineStart(int line) {
+		return mVirtualLayout != null ? mVirtualLayout.getLineStart(line) : getLayout().getLineStart(line);
+	}
+	
+	private int getLayoutLineTop(int line) {
+		return mVirtualLayout != null ? mVirtualLayout.getLineTop(line) : getLayout().getLineTop(line);
+	}
+	
+	private int getLayoutLineBottom(int line) {
+		return mVirtualLayout != null ? mVirtualLayout.getLineBottom(line) : getLayout().getLineBottom(line);
+	}
+	
+	private int getLayoutLineBaseline(int line) {
+		return mVirtualLayout != null ? mVirtualLayout.getLineBaseline(line) : getLayout().getLineBaseline(line);
+	}
+	
+	/**
+	* Returns whether the last frame covered everything that is visible now.
+	*/
+	private boolean isViewportDrawn() {
+		if (mDrawnLimit < 0) {
+			return false;
+		}
+		int top = getViewportTop();
+		if (top < mDrawnTop || top + getViewportHeight() > mDrawnLimit) {
+			return false;
+		}
+		int left = getViewportLeft();
+		return left >= mDrawnLeft && left + getViewportWidth() <= mDrawnRightLimit;
+	}
+	
+	/**
+	* Re-renders the gutter and any cached tiles and recomputes the drawn range on the next frame.
+	*/
+	private void invalidateContent() {
+		mDrawnLimit = -1;
+		if (mTileCache != null) {
+			mTileCache.invalidateAll();
+		}
+		invalidate();
+	}
+	
+	/**
+	* Drops the cached tiles showing {@code [start, end]}; the caller still has to invalidate the view.
+	*/
+	private void invalidateTiles(int start, int end) {
+		if (mTileCache == null || !hasTextLayout()) {
+			return;
+		}
+		int top = getLayoutLineTop(getLayoutLineForOffset(start));
+		int bottom = getLayoutLineBottom(getLayoutLineForOffset(end)) + getExtendedPaddingTop();
+		mTileCache.invalidateRows(top / TileCache.TILE_SIZE, bottom / TileCache.TILE_SIZE);
+	}
+	
+	/**
+	* Moves the drawn range around the viewport if the viewport left it.
+	*
+	* @return True if the range moved and the gutter must be rendered again
+	*/
+	private boolean updateDrawnRange() {
+		if (isViewportDrawn()) {
+			return false;
+		}
+		int top = getViewportTop();
+		int height = getViewportHeight();
+		int contentHeight = Math.max(getHeight(), getLayoutHeight() + getExtendedPaddingTop() + getExtendedPaddingBottom());
+		
+		mDrawnTop = Math.max(0, top - height);
+		mDrawnBottom = Math.min(contentHeight, top + 2 * height);
+		mDrawnLimit = mDrawnBottom >= contentHeight ? Integer.MAX_VALUE : mDrawnBottom;
+		mDrawnLeft = Integer.MIN_VALUE;
+		mDrawnRightLimit = Integer.MAX_VALUE;
+		mDrawnFirstLine = getLayoutLineForVertical(mDrawnTop);
+		mDrawnLastLine = getLayoutLineForVertical(mDrawnBottom);
+		return true;
+	}
+	
+	/**
+	* Draws the gutter of the drawn range from its cache, rendering the cache first if needed.
+	*/
+	private void drawGutter(Canvas canvas, int left, boolean rangeMoved) {
+		int width = mLineNumberWidth;
+		int height = mDrawnBottom - mDrawnTop;
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+		if ((long) width * height > MAX_GUTTER_CACHE_PIXELS) {
+			// Too tall to cache, e.g. when no scrolling parent bounds the viewport
+			mGutterBitmap = null;
+			mGutterCanvas = null;
+			canvas.save();
+			canvas.translate(left, 0);
+			renderGutter(canvas, mDrawnTop, mDrawnBottom, mDrawnFirstLine, mDrawnLastLine);
+			canvas.restore();
+			return;
+		}
+		
+		if (mGutterBitmap == null || mGutterBitmap.getWidth() != width || mGutterBitmap.getHeight() < height) {
+			mGutterBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			mGutterCanvas = new Canvas(mGutterBitmap);
+			rangeMoved = true;
+		}
+		if (rangeMoved) {
+			mGutterBitmap.eraseColor(Color.TRANSPARENT);
+			mGutterCanvas.save();
+			mGutterCanvas.translate(0, -mDrawnTop);
+			renderGutter(mGutterCanvas, mDrawnTop, mDrawnBottom, mDrawnFirstLine, mDrawnLastLine);
+			mGutterCanvas.restore();
+		}
+		canvas.drawBitmap(mGutterBitmap, left, mDrawnTop, null);
+	}
+	
+	/**
+	* Renders the background, separator, line numbers and fold markers between {@code top} and {@code bottom},
+	* for layout lines {@code [firstLayoutLine, lastLayoutLine]}, with the gutter at x = 0.
+	* Nothing here allocates: paints are preallocated and numbers are formatted into a reused buffer.
+	* Package-private so the allocation test can render the gutter on its own.
+	*/
+	void renderGutter(Canvas canvas, int top, int bottom, int firstLayoutLine, int lastLayoutLine) {
+		canvas.drawRect(0, top, mLineNumberWidth, bottom, mGutterPaint);
+		canvas.drawLine(mLineNumberWidth - 1, top, mLineNumberWidth - 1, bottom, mGutterSeparatorPaint);
+		
+		int maxLayoutLine = getLayoutLineCount() - 1;
+		int firstLine = mLineIndex.findLine(getLayoutLineStart(Math.min(firstLayoutLine, maxLayoutLine)));
+		int lastLine = mLineIndex.findLine(getLayoutLineStart(Math.min(lastLayoutLine, maxLayoutLine)));
+		// Folded lines are skipped; they are only hidden in the virtualized layout, where layout lines are document lines
+		for (int i = firstLine; i <= lastLine; i = mFoldModel.nextVisibleLine(i)) {
+			int line = getLayoutLineForOffset(mLineIndex.getLineStart(i));
+			int baseline = getLayoutLineBaseline(line);
+			
+			// Draw line number
+			float numberWidth = mLineNumberText.format(i + 1);
+			float x = mLineNumberWidth - mLineNumberPadding - numberWidth;
+			canvas.drawText(mLineNumberText.getChars(), mLineNumberText.getStart(), mLineNumberText.getLength(), x, baseline, mLineNumberPaint);
+			
+			// Draw folding indicator if this line is foldable
+			int region = canFold() ? mFoldModel.findRegion(i) : -1;
+			if (region >= 0) {
+				boolean folded = mFoldModel.isFolded(region);
+				float indicatorX = mLineNumberWidth - mFoldingIndicatorSize - 2;
+				float indicatorY = baseline - mLineNumberPaint.getTextSize() / 2;
+				
+				if (folded) {
+					// Draw + symbol
+					canvas.drawLine(
+					indicatorX - mFoldingIndicatorSize / 2,
+					indicatorY,
+					indicatorX + mFoldingIndicatorSize / 2,
+					indicatorY,
+					mFoldingPaint
+					);
+					canvas.drawLine(
+					indicatorX,
+					indicatorY - mFoldingIndicatorSize / 2,
+					indicatorX,
+					indicatorY + mFoldingIndicatorSize / 2,
+					mFoldingPaint
+					);
+				} else {
+					// Draw - symbol
+					canvas.drawLine(
+					indicatorX - mFoldingIndicatorSize / 2,
+					indicatorY,
+					indicatorX + mFoldingIndicatorSize / 2,
+					indicatorY,
+					mFoldingPaint
+					);
+				}
+			}
+		}
+	}
+	
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		boolean result = mGestureDetector.onTouchEvent(event);
+		
+		// Handle folding on click in the gutter area
+		if (event.getAction() == MotionEvent.ACTION_UP) {
+			float x = event.getX();
+			float y = event.getY() + getScrollY(); // Adjust for scrolling
+			
+			if (mShowLineNumbers && ((mFixedLineNumbers && x <= mLineNumberWidth) || 
+			(!mFixedLineNumbers && x <= getScrollX() + mLineNumberWidth))) {
+				if (hasTextLayout()) {
+					int line = getLayoutLineForVertical((int) y);
+					int offset = getLayoutLineStart(line);
+					
 					// Find the corresponding line number
-					int lineNumber = getLineNumberForOffset(offset);
+					int lineNumber = mLineIndex.findLine(offset);
 					
 					// Toggle folding if this line is foldable
-					if (mEnableFolding && mFoldableLines.containsKey(lineNumber)) {
-						boolean folded = mFoldableLines.get(lineNumber);
-						mFoldableLines.put(lineNumber, !folded);
-						invalidate();
+					if (canFold() && mFoldModel.toggle(lineNumber)) {
+						onFoldsChanged();
 						return true;
 					}
 					
 					// Select this line
 					mSelectedLine = lineNumber;
-					invalidate();
+					invalidateContent();
 					return true;
 				}
 			} else {
 				// Handle normal text selection clicks
 				// Determine the line clicked and select it
-				Layout layout = getLayout();
-				if (layout != null) {
+				if (hasTextLayout()) {
 					// Adjust y for scrolling
-					int line = layout.getLineForVertical((int) (y - getScrollY()));
-					int offset = layout.getLineStart(line);
+					int line = getLayoutLineForVertical((int) (y - getScrollY()));
+					int offset = getLayoutLineStart(line);
 					
 					// Find the corresponding line number
-					mSelectedLine = getLineNumberForOffset(offset);
-					invalidate();
+					mSelectedLine = mLineIndex.findLine(offset);
+					invalidateContent();
 				}
 			}
 		}
@@ -1452,17 +2793,13 @@ public class CodeViewer extends TextView {
 	}
 	
 	/**
-	* Helper class to represent a syntax highlighting span.
+	* Span with no visual effect, re-attached over the whole text to make TextView redraw
+	* after the token palette changed.
 	*/
-	private static class CodeSpan {
-		int start;
-		int end;
-		String type;
-		
-		CodeSpan(int start, int end, String type) {
-			this.start = start;
-			this.end = end;
-			this.type = type;
+	private static class PaletteChangeSpan extends CharacterStyle implements UpdateAppearance {
+		@Override
+		public void updateDrawState(TextPaint paint) {
+			// Colors come from TokenColorSpan
 		}
 	}
 }
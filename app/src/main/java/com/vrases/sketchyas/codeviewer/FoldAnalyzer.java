@@ -0,0 +1,51 @@
+package com.vrases.sketchyas.codeviewer;
+
+/**
+* Finds the foldable regions of a document, rescanning only the lines that changed.
+* <p>
+* An analyzer keeps what it learned about each line between calls. Edits and new tokens
+* mark lines for scanning, and {@link #analyze} scans only those before deriving the
+* regions from the per-line results. Which analyzer a language uses is part of its
+* {@link Grammar}.
+*/
+interface FoldAnalyzer {
+
+	/**
+	* Marks every line of a document with the given number of lines for scanning.
+	*/
+	void reset(int lineCount);
+
+	/**
+	* Marks every line for scanning, e.g. when the document was replaced.
+	*/
+	void invalidateAll();
+
+	/**
+	* Updates the lines for an edit that replaced {@code removedLines + 1} lines starting at
+	* {@code firstLine} with {@code addedLines + 1} lines; the new lines are scanned again.
+	*/
+	void onLinesReplaced(int firstLine, int removedLines, int addedLines);
+
+	/**
+	* Marks lines {@code [fromLine, toLine]} for scanning, e.g. after their tokens changed.
+	*/
+	void invalidateLines(int fromLine, int toLine);
+
+	/**
+	* Scans the lines marked for scanning and derives the regions of the document.
+	*
+	* @param text The document
+	* @param lines The line starts of the document
+	* @param tokens The tokens of the document; lines may have none yet
+	* @return True if the regions differ from those of the previous call
+	*/
+	boolean analyze(CharSequence text, LineIndex lines, TokenBuffer tokens);
+
+	/** Returns the header lines of the regions, ascending. */
+	int[] getRegionStarts();
+
+	/** Returns the last line each region hides. */
+	int[] getRegionEnds();
+
+	int getRegionCount();
+}
@@ -0,0 +1,303 @@
+package com.vrases.sketchyas.codeviewer;
+
+/**
+* Foldable regions of a document and the lines that folding them hides.
+* <p>
+* A region is a header line followed by the lines it hides when folded. Regions are kept
+* sorted by header line in plain arrays, each with the index of its innermost enclosing
+* region, so the region of a header is a binary search and the regions containing a line
+* are a walk up from one. The folded regions collapse into sorted, disjoint runs of
+* hidden lines with a prefix sum of their lengths; mapping between document lines and
+* visible lines, and stepping over hidden lines, are binary searches over the runs.
+* Folding or unfolding rebuilds the runs in one pass over the regions.
+*/
+final class FoldModel {
+
+	// Regions sorted by header line: header mStarts[i] hides lines (mStarts[i], mEnds[i]]
+	private int[] mStarts = new int[16];
+	private int[] mEnds = new int[16];
+	private int[] mParents = new int[16]; // Innermost enclosing region, or -1
+	private boolean[] mFolded = new boolean[16];
+	private int mCount;
+
+	// Scratch space of setRegions: the folded regions to carry over, and a stack of enclosing regions
+	private int[] mKeptStarts = new int[16];
+	private int[] mKeptEnds = new int[16];
+	private int[] mStack = new int[16];
+
+	// Hidden lines [mRunStarts[k], mRunEnds[k]]; mHiddenBefore[k] lines are hidden by the runs before run k
+	private int[] mRunStarts = new int[16];
+	private int[] mRunEnds = new int[16];
+	private int[] mHiddenBefore = new int[17];
+	private int mRunCount;
+
+	/**
+	* Replaces the regions. Regions that are in both the old and the new set keep their folded state.
+	*
+	* @param starts Header lines, ascending and without duplicates
+	* @param ends The last line each region hides; greater than its header
+	* @param count The number of regions
+	* @return True if the hidden lines changed
+	*/
+	boolean setRegions(int[] starts, int[] ends, int count) {
+		int kept = 0;
+		for (int i = 0; i < mCount; i++) {
+			if (!mFolded[i]) continue;
+
+			if (kept == mKeptStarts.length) {
+				mKeptStarts = grow(mKeptStarts, kept + 1);
+				mKeptEnds = grow(mKeptEnds, kept + 1);
+			}
+			mKeptStarts[kept] = mStarts[i];
+			mKeptEnds[kept] = mEnds[i];
+			kept++;
+		}
+
+		if (count > mStarts.length) {
+			int capacity = Math.max(count, mStarts.length * 2);
+			mStarts = new int[capacity];
+			mEnds = new int[capacity];
+			mParents = new int[capacity];
+			mFolded = new boolean[capacity];
+			mStack = new int[capacity];
+		}
+		System.arraycopy(starts, 0, mStarts, 0, count);
+		System.arraycopy(ends, 0, mEnds, 0, count);
+		mCount = count;
+
+		// Both sets are sorted by header, so matching regions are found in one merge
+		boolean lostFold = false;
+		int j = 0;
+		for (int i = 0; i < count; i++) {
+			mFolded[i] = false;
+		}
+		for (int i = 0; i < kept; i++) {
+			while (j < count && mStarts[j] < mKeptStarts[i]) j++;
+			if (j < count && mStarts[j] == mKeptStarts[i] && mEnds[j] == mKeptEnds[i]) {
+				mFolded[j] = true;
+			} else {
+				lostFold = true;
+			}
+		}
+
+		// Innermost enclosing region of each region, from a stack of the open ones
+		int depth = 0;
+		for (int i = 0; i < count; i++) {
+			while (depth > 0 && mEnds[mStack[depth - 1]] < mStarts[i]) depth--;
+			mParents[i] = depth > 0 ? mStack[depth - 1] : -1;
+			mStack[depth++] = i;
+		}
+
+		// The folds that were kept hide the same lines as before
+		rebuildRuns();
+		return lostFold;
+	}
+
+	/** Removes all regions. */
+	void clear() {
+		mCount = 0;
+		mRunCount = 0;
+	}
+
+	/** Returns the number of regions. */
+	int getRegionCount() {
+		return mCount;
+	}
+
+	/**
+	* Returns the region with {@code headerLine} as its header, or -1.
+	*/
+	int findRegion(int headerLine) {
+		int low = 0;
+		int high = mCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (mStarts[mid] < headerLine) {
+				low = mid + 1;
+			} else if (mStarts[mid] > headerLine) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	boolean isFolded(int region) {
+		return mFolded[region];
+	}
+
+	/**
+	* Folds or unfolds the region with {@code headerLine} as its header.
+	*
+	* @return False if no region starts at that line
+	*/
+	boolean toggle(int headerLine) {
+		int region = findRegion(headerLine);
+		if (region < 0) {
+			return false;
+		}
+		mFolded[region] = !mFolded[region];
+		rebuildRuns();
+		return true;
+	}
+
+	/** Unfolds all regions. */
+	void unfoldAll() {
+		for (int i = 0; i < mCount; i++) {
+			mFolded[i] = false;
+		}
+		mRunCount = 0;
+	}
+
+	/**
+	* Unfolds the regions that hide {@code line}.
+	*
+	* @return True if any region was unfolded
+	*/
+	boolean reveal(int line) {
+		if (!isHidden(line)) {
+			return false;
+		}
+
+		// The regions containing the line are the last region with a header above it and its ancestors
+		int low = 0;
+		int high = mCount - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (mStarts[mid] < line) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		for (int region = low; region >= 0; region = mParents[region]) {
+			if (mStarts[region] < line && line <= mEnds[region]) {
+				mFolded[region] = false;
+			}
+		}
+		rebuildRuns();
+		return true;
+	}
+
+	/** Returns whether any region is folded. */
+	boolean hasFoldedRegions() {
+		return mRunCount > 0;
+	}
+
+	/** Returns the number of lines hidden by folded regions. */
+	int getHiddenLineCount() {
+		return mHiddenBefore[mRunCount];
+	}
+
+	boolean isHidden(int line) {
+		int run = findRun(line);
+		return run >= 0 && line <= mRunEnds[run];
+	}
+
+	/**
+	* Returns the position of a document line among the visible lines. A hidden line maps
+	* to the header of the folded region hiding it.
+	*/
+	int toVisibleLine(int line) {
+		int run = findRun(line);
+		if (run < 0) {
+			return line;
+		}
+		if (line <= mRunEnds[run]) {
+			return mRunStarts[run] - 1 - mHiddenBefore[run];
+		}
+		return line - mHiddenBefore[run + 1];
+	}
+
+	/**
+	* Returns the document line shown at a position among the visible lines.
+	*/
+	int toDocumentLine(int visibleLine) {
+		// Lines after run k have visible positions from mRunStarts[k] - mHiddenBefore[k] on
+		int low = 0;
+		int high = mRunCount - 1;
+		int run = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (mRunStarts[mid] - mHiddenBefore[mid] <= visibleLine) {
+				run = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return visibleLine + mHiddenBefore[run + 1];
+	}
+
+	/**
+	* Returns the first visible line after {@code line}.
+	*/
+	int nextVisibleLine(int line) {
+		int next = line + 1;
+		if (mRunCount == 0) {
+			return next;
+		}
+		int run = findRun(next);
+		return run >= 0 && next <= mRunEnds[run] ? mRunEnds[run] + 1 : next;
+	}
+
+	/**
+	* Collapses the folded regions into runs of hidden lines, skipping regions inside a run.
+	*/
+	private void rebuildRuns() {
+		int count = 0;
+		for (int i = 0; i < mCount; i++) {
+			if (!mFolded[i]) continue;
+
+			int start = mStarts[i] + 1;
+			int end = mEnds[i];
+			if (count > 0 && start <= mRunEnds[count - 1] + 1) {
+				// Inside the previous run, or overlapping it when regions do not nest
+				mRunEnds[count - 1] = Math.max(mRunEnds[count - 1], end);
+				continue;
+			}
+			if (count == mRunStarts.length) {
+				mRunStarts = grow(mRunStarts, count + 1);
+				mRunEnds = grow(mRunEnds, count + 1);
+			}
+			mRunStarts[count] = start;
+			mRunEnds[count] = end;
+			count++;
+		}
+		mRunCount = count;
+
+		if (mHiddenBefore.length < count + 1) {
+			mHiddenBefore = new int[mRunStarts.length + 1];
+		}
+		mHiddenBefore[0] = 0;
+		for (int k = 0; k < count; k++) {
+			mHiddenBefore[k + 1] = mHiddenBefore[k] + mRunEnds[k] - mRunStarts[k] + 1;
+		}
+	}
+
+	/**
+	* Returns the last run starting at or before {@code line}, or -1.
+	*/
+	private int findRun(int line) {
+		int low = 0;
+		int high = mRunCount - 1;
+		int run = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (mRunStarts[mid] <= line) {
+				run = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return run;
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		int[] grown = new int[Math.max(capacity, array.length * 2)];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
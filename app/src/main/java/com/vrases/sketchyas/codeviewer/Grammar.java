@@ -0,0 +1,332 @@
+package com.vrases.sketchyas.codeviewer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+* Immutable description of a language's lexical rules, consumed by {@link SyntaxLexer}.
+* <p>
+* Custom languages describe their rules with a {@link Builder} and are made available
+* to {@link CodeViewer} through a {@link LanguageDefinition}.
+*/
+public final class Grammar {
+
+	// Method call heuristics
+	public static final int METHOD_CALLS_NONE = 0;
+	public static final int METHOD_CALLS_LOWERCASE = 1;
+	public static final int METHOD_CALLS_ANY = 2;
+
+	// Annotation styles
+	public static final int ANNOTATIONS_NONE = 0;
+	public static final int ANNOTATIONS_AT = 1;
+	public static final int ANNOTATIONS_BRACKET = 2;
+
+	// Folding styles
+	public static final int FOLDING_BRACES = 0;
+	public static final int FOLDING_INDENTATION = 1;
+
+	final String name;
+	final Set<String> keywords;
+	final Set<String> builtInTypes;
+	final boolean ignoreKeywordCase;
+	final KeywordTable keywordTable;
+	final String lineComment;
+	final String blockCommentStart;
+	final String blockCommentEnd;
+	final boolean singleQuoteStrings;
+	final boolean tripleDoubleQuoteStrings;
+	final boolean tripleSingleQuoteStrings;
+	final boolean templateStrings;
+	final boolean verbatimStrings;
+	final String rawStringDelimiter;
+	final boolean dollarInIdentifiers;
+	final String numberSuffixes;
+	final int annotationStyle;
+	final boolean capitalizedTypes;
+	final String typeDeclarationKeyword;
+	final String functionDeclarationKeyword;
+	final int methodCallStyle;
+	final String operatorChars;
+	final int foldingStyle;
+
+	private Grammar(Builder builder) {
+		name = builder.name;
+		keywords = Collections.unmodifiableSet(new HashSet<>(builder.keywords));
+		builtInTypes = Collections.unmodifiableSet(new HashSet<>(builder.builtInTypes));
+		ignoreKeywordCase = builder.ignoreKeywordCase;
+		lineComment = builder.lineComment;
+		blockCommentStart = builder.blockCommentStart;
+		blockCommentEnd = builder.blockCommentEnd;
+		singleQuoteStrings = builder.singleQuoteStrings;
+		tripleDoubleQuoteStrings = builder.tripleDoubleQuoteStrings;
+		tripleSingleQuoteStrings = builder.tripleSingleQuoteStrings;
+		templateStrings = builder.templateStrings;
+		verbatimStrings = builder.verbatimStrings;
+		rawStringDelimiter = builder.rawStringDelimiter;
+		dollarInIdentifiers = builder.dollarInIdentifiers;
+		numberSuffixes = builder.numberSuffixes;
+		annotationStyle = builder.annotationStyle;
+		capitalizedTypes = builder.capitalizedTypes;
+		typeDeclarationKeyword = builder.typeDeclarationKeyword;
+		functionDeclarationKeyword = builder.functionDeclarationKeyword;
+		methodCallStyle = builder.methodCallStyle;
+		operatorChars = builder.operatorChars;
+		foldingStyle = builder.foldingStyle;
+		keywordTable = createKeywordTable();
+	}
+
+	/**
+	* Compiles the reserved words into a table the lexer can query without allocating.
+	*/
+	private KeywordTable createKeywordTable() {
+		Map<String, Integer> entries = new HashMap<>();
+		for (String type : builtInTypes) {
+			entries.put(type, TokenType.CLASS);
+		}
+		for (String keyword : keywords) {
+			entries.put(keyword, TokenType.KEYWORD);
+		}
+		if (typeDeclarationKeyword != null && keywords.contains(typeDeclarationKeyword)) {
+			entries.put(typeDeclarationKeyword, entries.get(typeDeclarationKeyword) | KeywordTable.FLAG_DECLARES_TYPE);
+		}
+		if (functionDeclarationKeyword != null && keywords.contains(functionDeclarationKeyword)) {
+			entries.put(functionDeclarationKeyword, entries.get(functionDeclarationKeyword) | KeywordTable.FLAG_DECLARES_FUNCTION);
+		}
+		return new KeywordTable(entries, ignoreKeywordCase);
+	}
+
+	/**
+	* Builds the grammar of a built-in language. Prefer {@link GrammarRegistry}, which
+	* compiles each language only once per process.
+	*
+	* @param language The canonical language name (e.g., "java", "javascript")
+	* @return The grammar, or null if the language is not built in
+	*/
+	static Grammar forLanguage(String language) {
+		if ("java".equals(language)) {
+			return new Builder("java")
+			.keywords("abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const", "continue", "default", "do", "double", "else", "enum", "extends", "final", "finally", "float", "for", "goto", "if", "implements", "import", "instanceof", "int", "interface", "long", "native", "new", "package", "private", "protected", "public", "return", "short", "static", "strictfp", "super", "switch", "synchronized", "this", "throw", "throws", "transient", "try", "void", "volatile", "while", "true", "false", "null")
+			.cStyleComments()
+			.numberSuffixes("fFdDlL")
+			.annotationStyle(ANNOTATIONS_AT)
+			.capitalizedTypes()
+			.methodCallStyle(METHOD_CALLS_LOWERCASE)
+			.build();
+		} else if ("kotlin".equals(language)) {
+			return new Builder("kotlin")
+			.keywords("abstract", "actual", "annotation", "as", "break", "by", "catch", "class", "companion", "const", "constructor", "continue", "crossinline", "data", "do", "dynamic", "else", "enum", "expect", "external", "false", "final", "finally", "for", "fun", "get", "if", "import", "in", "infix", "init", "inline", "inner", "interface", "internal", "is", "lateinit", "noinline", "null", "object", "open", "operator", "out", "override", "package", "private", "protected", "public", "reified", "return", "sealed", "set", "super", "suspend", "tailrec", "this", "throw", "true", "try", "typealias", "val", "var", "vararg", "when", "where", "while")
+			.cStyleComments()
+			.rawStrings("\"\"\"")
+			.numberSuffixes("fFdDL")
+			.annotationStyle(ANNOTATIONS_AT)
+			.capitalizedTypes()
+			.methodCallStyle(METHOD_CALLS_LOWERCASE)
+			.build();
+		} else if ("python".equals(language)) {
+			return new Builder("python")
+			.keywords("and", "as", "assert", "async", "await", "break", "class", "continue", "def", "del", "elif", "else", "except", "False", "finally", "for", "from", "global", "if", "import", "in", "is", "lambda", "None", "nonlocal", "not", "or", "pass", "raise", "return", "True", "try", "while", "with", "yield")
+			.lineComment("#")
+			.tripleDoubleQuoteStrings()
+			.tripleSingleQuoteStrings()
+			.numberSuffixes("j")
+			.annotationStyle(ANNOTATIONS_AT)
+			.typeDeclarationKeyword("class")
+			.functionDeclarationKeyword("def")
+			.operatorChars("+-*/%&|^!~=<>@")
+			.foldingStyle(FOLDING_INDENTATION)
+			.build();
+		} else if ("javascript".equals(language)) {
+			return new Builder("javascript")
+			.keywords("async", "await", "break", "case", "catch", "class", "const", "continue", "debugger", "default", "delete", "do", "else", "export", "extends", "finally", "for", "function", "if", "import", "in", "instanceof", "let", "new", "of", "return", "super", "switch", "this", "throw", "try", "typeof", "var", "void", "while", "with", "yield")
+			.cStyleComments()
+			.templateStrings()
+			.dollarInIdentifiers()
+			.typeDeclarationKeyword("class")
+			.methodCallStyle(METHOD_CALLS_ANY)
+			.build();
+		} else if ("typescript".equals(language)) {
+			return new Builder("typescript")
+			.keywords("abstract", "any", "as", "async", "await", "boolean", "break", "case", "catch", "class", "const", "constructor", "continue", "debugger", "declare", "default", "delete", "do", "else", "enum", "export", "extends", "finally", "for", "from", "function", "get", "if", "implements", "import", "in", "infer", "instanceof", "interface", "is", "keyof", "let", "module", "namespace", "never", "new", "null", "number", "object", "of", "package", "private", "protected", "public", "readonly", "require", "return", "set", "static", "string", "super", "switch", "symbol", "this", "throw", "try", "type", "typeof", "undefined", "unique", "unknown", "var", "void", "while", "with", "yield")
+			.cStyleComments()
+			.templateStrings()
+			.dollarInIdentifiers()
+			.annotationStyle(ANNOTATIONS_AT)
+			.typeDeclarationKeyword("class")
+			.methodCallStyle(METHOD_CALLS_ANY)
+			.build();
+		} else if ("csharp".equals(language)) {
+			return new Builder("csharp")
+			.keywords("abstract", "as", "base", "bool", "break", "byte", "case", "catch", "char", "checked", "class", "const", "continue", "decimal", "default", "delegate", "do", "double", "else", "enum", "event", "explicit", "extern", "false", "finally", "fixed", "float", "for", "foreach", "goto", "if", "implicit", "in", "int", "interface", "internal", "is", "lock", "long", "namespace", "new", "null", "object", "operator", "out", "override", "params", "private", "protected", "public", "readonly", "ref", "return", "sbyte", "sealed", "short", "sizeof", "stackalloc", "static", "string", "struct", "switch", "this", "throw", "true", "try", "typeof", "uint", "ulong", "unchecked", "unsafe", "ushort", "using", "virtual", "void", "volatile", "while")
+			.cStyleComments()
+			.verbatimStrings()
+			.numberSuffixes("fFdDmM")
+			.annotationStyle(ANNOTATIONS_BRACKET)
+			.typeDeclarationKeyword("class")
+			.methodCallStyle(METHOD_CALLS_ANY)
+			.build();
+		}
+		// Add more languages as needed
+		return null;
+	}
+
+	/**
+	* Collects the lexical rules of a language before freezing them into a {@link Grammar}.
+	*/
+	public static final class Builder {
+		private final String name;
+		private final Set<String> keywords = new HashSet<>();
+		private final Set<String> builtInTypes = new HashSet<>();
+		private boolean ignoreKeywordCase;
+		private String lineComment;
+		private String blockCommentStart;
+		private String blockCommentEnd;
+		private boolean singleQuoteStrings = true;
+		private boolean tripleDoubleQuoteStrings;
+		private boolean tripleSingleQuoteStrings;
+		private boolean templateStrings;
+		private boolean verbatimStrings;
+		private String rawStringDelimiter;
+		private boolean dollarInIdentifiers;
+		private String numberSuffixes = "";
+		private int annotationStyle = ANNOTATIONS_NONE;
+		private boolean capitalizedTypes;
+		private String typeDeclarationKeyword;
+		private String functionDeclarationKeyword;
+		private int methodCallStyle = METHOD_CALLS_NONE;
+		private String operatorChars = "+-*/%&|^!~=<>?:";
+		private int foldingStyle = FOLDING_BRACES;
+
+		public Builder(String name) {
+			this.name = name;
+		}
+
+		public Builder keywords(String... words) {
+			keywords.addAll(Arrays.asList(words));
+			return this;
+		}
+
+		/**
+		* Adds type names that need no declaration, such as {@code string} or {@code i32};
+		* they are colored like classes.
+		*/
+		public Builder builtInTypes(String... types) {
+			builtInTypes.addAll(Arrays.asList(types));
+			return this;
+		}
+
+		public Builder ignoreKeywordCase() {
+			ignoreKeywordCase = true;
+			return this;
+		}
+
+		public Builder cStyleComments() {
+			lineComment = "//";
+			blockCommentStart = "/*";
+			blockCommentEnd = "*/";
+			return this;
+		}
+
+		public Builder lineComment(String prefix) {
+			lineComment = prefix;
+			return this;
+		}
+
+		public Builder blockComment(String start, String end) {
+			blockCommentStart = start;
+			blockCommentEnd = end;
+			return this;
+		}
+
+		public Builder singleQuoteStrings(boolean enable) {
+			singleQuoteStrings = enable;
+			return this;
+		}
+
+		public Builder tripleDoubleQuoteStrings() {
+			tripleDoubleQuoteStrings = true;
+			return this;
+		}
+
+		public Builder tripleSingleQuoteStrings() {
+			tripleSingleQuoteStrings = true;
+			return this;
+		}
+
+		public Builder templateStrings() {
+			templateStrings = true;
+			return this;
+		}
+
+		public Builder verbatimStrings() {
+			verbatimStrings = true;
+			return this;
+		}
+
+		/**
+		* Adds strings that open and close with the same delimiter, may span lines and
+		* have no escapes, such as Go's {@code `...`} or Kotlin's {@code """..."""}.
+		* A backslash is an ordinary character inside them.
+		*/
+		public Builder rawStrings(String delimiter) {
+			rawStringDelimiter = delimiter;
+			return this;
+		}
+
+		public Builder dollarInIdentifiers() {
+			dollarInIdentifiers = true;
+			return this;
+		}
+
+		public Builder numberSuffixes(String suffixes) {
+			numberSuffixes = suffixes;
+			return this;
+		}
+
+		public Builder annotationStyle(int style) {
+			annotationStyle = style;
+			return this;
+		}
+
+		public Builder capitalizedTypes() {
+			capitalizedTypes = true;
+			return this;
+		}
+
+		public Builder typeDeclarationKeyword(String keyword) {
+			typeDeclarationKeyword = keyword;
+			return this;
+		}
+
+		public Builder functionDeclarationKeyword(String keyword) {
+			functionDeclarationKeyword = keyword;
+			return this;
+		}
+
+		public Builder methodCallStyle(int style) {
+			methodCallStyle = style;
+			return this;
+		}
+
+		public Builder operatorChars(String chars) {
+			operatorChars = chars;
+			return this;
+		}
+
+		/**
+		* Sets how foldable regions are found: from matching braces, or for languages
+		* structured by indentation, from lines indented deeper than the line before them.
+		*/
+		public Builder foldingStyle(int style) {
+			foldingStyle = style;
+			return this;
+		}
+
+		public Grammar build() {
+			return new Grammar(this);
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package com.vrases.sketchyas.codeviewer;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+* Reads declarative grammar files and converts grammars to and from a compact binary form.
+* <p>
+* Grammar files are JSON objects whose keys mirror the methods of {@link Grammar.Builder}:
+* <pre>
+* {
+*   "name": "go",
+*   "keywords": ["func", "package", "return"],
+*   "lineComment": "//",
+*   "blockComment": ["/*", "*&#47;"],
+*   "rawStrings": "`",
+*   "methodCallStyle": "any",
+*   "folding": "braces"
+* }
+* </pre>
+* Unknown keys and values of the wrong type are rejected, so a typo in a grammar file
+* fails loudly instead of silently producing a different highlighter.
+*/
+final class GrammarFile {
+
+	// Binary form
+	private static final int MAGIC = 0x43564752; // "CVGR"
+	static final int FORMAT_VERSION = 4;
+
+	// Flags of the binary form
+	private static final int FLAG_IGNORE_KEYWORD_CASE = 1;
+	private static final int FLAG_SINGLE_QUOTE_STRINGS = 1 << 1;
+	private static final int FLAG_TRIPLE_DOUBLE_QUOTE_STRINGS = 1 << 2;
+	private static final int FLAG_TRIPLE_SINGLE_QUOTE_STRINGS = 1 << 3;
+	private static final int FLAG_TEMPLATE_STRINGS = 1 << 4;
+	private static final int FLAG_VERBATIM_STRINGS = 1 << 5;
+	private static final int FLAG_DOLLAR_IN_IDENTIFIERS = 1 << 6;
+	private static final int FLAG_CAPITALIZED_TYPES = 1 << 7;
+
+	private GrammarFile() {
+	}
+
+	/**
+	* Parses and validates a grammar file.
+	*
+	* @param reader The JSON source
+	* @param expectedName The name the grammar is registered under; the file must declare the same name
+	* @return The grammar
+	* @throws IOException If the file cannot be read or is not a valid grammar
+	*/
+	static Grammar parse(Reader reader, String expectedName) throws IOException {
+		JsonReader json = new JsonReader(reader);
+		try {
+			Grammar.Builder builder = new Grammar.Builder(expectedName);
+			boolean named = false;
+
+			json.beginObject();
+			while (json.hasNext()) {
+				String key = json.nextName();
+				if ("name".equals(key)) {
+					String name = nextString(json, key);
+					if (!expectedName.equals(name)) {
+						throw new IOException("Grammar declares name \"" + name + "\", expected \"" + expectedName + "\"");
+					}
+					named = true;
+				} else if ("keywords".equals(key)) {
+					List<String> words = nextStringArray(json, key);
+					builder.keywords(words.toArray(new String[0]));
+				} else if ("builtInTypes".equals(key)) {
+					List<String> types = nextStringArray(json, key);
+					builder.builtInTypes(types.toArray(new String[0]));
+				} else if ("ignoreKeywordCase".equals(key)) {
+					if (nextBoolean(json, key)) builder.ignoreKeywordCase();
+				} else if ("lineComment".equals(key)) {
+					builder.lineComment(nextNonEmptyString(json, key));
+				} else if ("blockComment".equals(key)) {
+					List<String> delimiters = nextStringArray(json, key);
+					if (delimiters.size() != 2 || delimiters.get(0).isEmpty() || delimiters.get(1).isEmpty()) {
+						throw new IOException("\"blockComment\" must hold a start and an end delimiter");
+					}
+					builder.blockComment(delimiters.get(0), delimiters.get(1));
+				} else if ("singleQuoteStrings".equals(key)) {
+					builder.singleQuoteStrings(nextBoolean(json, key));
+				} else if ("tripleDoubleQuoteStrings".equals(key)) {
+					if (nextBoolean(json, key)) builder.tripleDoubleQuoteStrings();
+				} else if ("tripleSingleQuoteStrings".equals(key)) {
+					if (nextBoolean(json, key)) builder.tripleSingleQuoteStrings();
+				} else if ("templateStrings".equals(key)) {
+					if (nextBoolean(json, key)) builder.templateStrings();
+				} else if ("verbatimStrings".equals(key)) {
+					if (nextBoolean(json, key)) builder.verbatimStrings();
+				} else if ("rawStrings".equals(key)) {
+					builder.rawStrings(nextNonEmptyString(json, key));
+				} else if ("dollarInIdentifiers".equals(key)) {
+					if (nextBoolean(json, key)) builder.dollarInIdentifiers();
+				} else if ("numberSuffixes".equals(key)) {
+					builder.numberSuffixes(nextString(json, key));
+				} else if ("annotationStyle".equals(key)) {
+					String style = nextString(json, key);
+					if ("none".equals(style)) {
+						builder.annotationStyle(Grammar.ANNOTATIONS_NONE);
+					} else if ("at".equals(style)) {
+						builder.annotationStyle(Grammar.ANNOTATIONS_AT);
+					} else if ("bracket".equals(style)) {
+						builder.annotationStyle(Grammar.ANNOTATIONS_BRACKET);
+					} else {
+						throw new IOException("Unknown annotation style \"" + style + "\"");
+					}
+				} else if ("capitalizedTypes".equals(key)) {
+					if (nextBoolean(json, key)) builder.capitalizedTypes();
+				} else if ("typeDeclarationKeyword".equals(key)) {
+					builder.typeDeclarationKeyword(nextNonEmptyString(json, key));
+				} else if ("functionDeclarationKeyword".equals(key)) {
+					builder.functionDeclarationKeyword(nextNonEmptyString(json, key));
+				} else if ("methodCallStyle".equals(key)) {
+					String style = nextString(json, key);
+					if ("none".equals(style)) {
+						builder.methodCallStyle(Grammar.METHOD_CALLS_NONE);
+					} else if ("lowercase".equals(style)) {
+						builder.methodCallStyle(Grammar.METHOD_CALLS_LOWERCASE);
+					} else if ("any".equals(style)) {
+						builder.methodCallStyle(Grammar.METHOD_CALLS_ANY);
+					} else {
+						throw new IOException("Unknown method call style \"" + style + "\"");
+					}
+				} else if ("operatorChars".equals(key)) {
+					builder.operatorChars(nextString(json, key));
+				} else if ("folding".equals(key)) {
+					String style = nextString(json, key);
+					if ("braces".equals(style)) {
+						builder.foldingStyle(Grammar.FOLDING_BRACES);
+					} else if ("indentation".equals(style)) {
+						builder.foldingStyle(Grammar.FOLDING_INDENTATION);
+					} else {
+						throw new IOException("Unknown folding style \"" + style + "\"");
+					}
+				} else {
+					throw new IOException("Unknown grammar key \"" + key + "\"");
+				}
+			}
+			json.endObject();
+
+			if (!named) {
+				throw new IOException("Grammar \"" + expectedName + "\" does not declare its name");
+			}
+			return builder.build();
+		} catch (IllegalStateException e) {
+			// JsonReader reports structural errors this way
+			throw new IOException("Malformed grammar \"" + expectedName + "\": " + e.getMessage());
+		} finally {
+			json.close();
+		}
+	}
+
+	/**
+	* Writes a grammar in binary form.
+	*
+	* @param grammar The grammar
+	* @param stamp Identifies the source the grammar was built from; {@link #read} rejects other stamps
+	* @param out The destination
+	*/
+	static void write(Grammar grammar, long stamp, DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeLong(stamp);
+		out.writeUTF(grammar.name);
+
+		int flags = 0;
+		if (grammar.ignoreKeywordCase) flags |= FLAG_IGNORE_KEYWORD_CASE;
+		if (grammar.singleQuoteStrings) flags |= FLAG_SINGLE_QUOTE_STRINGS;
+		if (grammar.tripleDoubleQuoteStrings) flags |= FLAG_TRIPLE_DOUBLE_QUOTE_STRINGS;
+		if (grammar.tripleSingleQuoteStrings) flags |= FLAG_TRIPLE_SINGLE_QUOTE_STRINGS;
+		if (grammar.templateStrings) flags |= FLAG_TEMPLATE_STRINGS;
+		if (grammar.verbatimStrings) flags |= FLAG_VERBATIM_STRINGS;
+		if (grammar.dollarInIdentifiers) flags |= FLAG_DOLLAR_IN_IDENTIFIERS;
+		if (grammar.capitalizedTypes) flags |= FLAG_CAPITALIZED_TYPES;
+		out.writeInt(flags);
+
+		out.writeByte(grammar.annotationStyle);
+		out.writeByte(grammar.methodCallStyle);
+		out.writeByte(grammar.foldingStyle);
+		writeOptionalString(out, grammar.lineComment);
+		writeOptionalString(out, grammar.blockCommentStart);
+		writeOptionalString(out, grammar.blockCommentEnd);
+		writeOptionalString(out, grammar.rawStringDelimiter);
+		writeOptionalString(out, grammar.typeDeclarationKeyword);
+		writeOptionalString(out, grammar.functionDeclarationKeyword);
+		out.writeUTF(grammar.numberSuffixes);
+		out.writeUTF(grammar.operatorChars);
+
+		out.writeInt(grammar.keywords.size());
+		for (String keyword : grammar.keywords) {
+			out.writeUTF(keyword);
+		}
+		out.writeInt(grammar.builtInTypes.size());
+		for (String type : grammar.builtInTypes) {
+			out.writeUTF(type);
+		}
+	}
+
+	/**
+	* Reads a grammar written by {@link #write}.
+	*
+	* @param in The source
+	* @param stamp The stamp the grammar must have been written with
+	* @return The grammar, or null if the data was written by another format version or from another source
+	* @throws IOException If the data cannot be read
+	*/
+	static Grammar read(DataInputStream in, long stamp) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || in.readLong() != stamp) {
+			return null;
+		}
+
+		Grammar.Builder builder = new Grammar.Builder(in.readUTF());
+		int flags = in.readInt();
+		if ((flags & FLAG_IGNORE_KEYWORD_CASE) != 0) builder.ignoreKeywordCase();
+		builder.singleQuoteStrings((flags & FLAG_SINGLE_QUOTE_STRINGS) != 0);
+		if ((flags & FLAG_TRIPLE_DOUBLE_QUOTE_STRINGS) != 0) builder.tripleDoubleQuoteStrings();
+		if ((flags & FLAG_TRIPLE_SINGLE_QUOTE_STRINGS) != 0) builder.tripleSingleQuoteStrings();
+		if ((flags & FLAG_TEMPLATE_STRINGS) != 0) builder.templateStrings();
+		if ((flags & FLAG_VERBATIM_STRINGS) != 0) builder.verbatimStrings();
+		if ((flags & FLAG_DOLLAR_IN_IDENTIFIERS) != 0) builder.dollarInIdentifiers();
+		if ((flags & FLAG_CAPITALIZED_TYPES) != 0) builder.capitalizedTypes();
+
+		builder.annotationStyle(in.readByte());
+		builder.methodCallStyle(in.readByte());
+		builder.foldingStyle(in.readByte());
+		builder.lineComment(readOptionalString(in));
+		builder.blockComment(readOptionalString(in), readOptionalString(in));
+		builder.rawStrings(readOptionalString(in));
+		builder.typeDeclarationKeyword(readOptionalString(in));
+		builder.functionDeclarationKeyword(readOptionalString(in));
+		builder.numberSuffixes(in.readUTF());
+		builder.operatorChars(in.readUTF());
+
+		String[] keywords = new String[in.readInt()];
+		for (int i = 0; i < keywords.length; i++) {
+			keywords[i] = in.readUTF();
+		}
+		builder.keywords(keywords);
+
+		String[] types = new String[in.readInt()];
+		for (int i = 0; i < types.length; i++) {
+			types[i] = in.readUTF();
+		}
+		builder.builtInTypes(types);
+		return builder.build();
+	}
+
+	private static String nextString(JsonReader json, String key) throws IOException {
+		if (json.peek() != JsonToken.STRING) {
+			throw new IOException("\"" + key + "\" must be a string");
+		}
+		return json.nextString();
+	}
+
+	private static String nextNonEmptyString(JsonReader json, String key) throws IOException {
+		String value = nextString(json, key);
+		if (value.isEmpty()) {
+			throw new IOException("\"" + key + "\" must not be empty");
+		}
+		return value;
+	}
+
+	private static boolean nextBoolean(JsonReader json, String key) throws IOException {
+		if (json.peek() != JsonToken.BOOLEAN) {
+			throw new IOException("\"" + key + "\" must be true or false");
+		}
+		return json.nextBoolean();
+	}
+
+	private static List<String> nextStringArray(JsonReader json, String key) throws IOException {
+		if (json.peek() != JsonToken.BEGIN_ARRAY) {
+			throw new IOException("\"" + key + "\" must be an array of strings");
+		}
+		List<String> values = new ArrayList<>();
+		json.beginArray();
+		while (json.hasNext()) {
+			values.add(nextNonEmptyString(json, key));
+		}
+		json.endArray();
+		return values;
+	}
+
+	private static void writeOptionalString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readOptionalString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -0,0 +1,176 @@
+package com.vrases.sketchyas.codeviewer;
+
+import android.content.Context;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* Process-wide registry of languages and cache of their compiled grammars.
+* <p>
+* Registering a language only records its {@link LanguageDefinition}. The grammar is
+* built the first time any {@link CodeViewer} asks for the language and the resulting
+* lexer, which is immutable, is shared by all instances afterwards, so languages a
+* screen never uses cost nothing. Lookups are lock-free; only the first compilation of
+* a language synchronizes.
+*/
+public final class GrammarRegistry {
+
+	// Definitions by name and by alias
+	private static final ConcurrentHashMap<String, LanguageDefinition> sDefinitions = new ConcurrentHashMap<>();
+	// Compiled lexers by canonical name
+	private static final ConcurrentHashMap<String, SyntaxLexer> sLexers = new ConcurrentHashMap<>();
+	private static final AtomicInteger sHits = new AtomicInteger();
+	private static final AtomicInteger sMisses = new AtomicInteger();
+	private static volatile boolean sAssetLanguagesRegistered;
+
+	static {
+		register(new BuiltInLanguage("java"));
+		register(new BuiltInLanguage("kotlin"));
+		register(new BuiltInLanguage("python"));
+		register(new BuiltInLanguage("javascript", "js"));
+		register(new BuiltInLanguage("typescript", "ts"));
+		register(new BuiltInLanguage("csharp", "cs"));
+	}
+
+	private GrammarRegistry() {
+	}
+
+	/**
+	* Makes a language available to every {@link CodeViewer}. Registering a definition
+	* under a name that is already in use replaces the previous language.
+	*
+	* @param definition The language
+	*/
+	public static void register(LanguageDefinition definition) {
+		synchronized (sLexers) {
+			sDefinitions.put(definition.getName(), definition);
+			for (String alias : definition.getAliases()) {
+				sDefinitions.put(alias, definition);
+			}
+			sLexers.remove(definition.getName());
+		}
+	}
+
+	/**
+	* Registers the languages whose grammars ship as assets. Called by every
+	* {@link CodeViewer} and by {@link LanguageDetector#detect(Context, CharSequence, String)};
+	* only the first call does anything.
+	*/
+	static void registerAssetLanguages(Context context) {
+		if (sAssetLanguagesRegistered) {
+			return;
+		}
+		synchronized (sLexers) {
+			if (sAssetLanguagesRegistered) {
+				return;
+			}
+			registerIfAbsent(new AssetLanguageDefinition(context, "go", "golang"));
+			registerIfAbsent(new AssetLanguageDefinition(context, "rust", "rs"));
+			registerIfAbsent(new AssetLanguageDefinition(context, "sql"));
+			registerIfAbsent(new AssetLanguageDefinition(context, "yaml", "yml"));
+			registerIfAbsent(new AssetLanguageDefinition(context, "gradle", "groovy"));
+			sAssetLanguagesRegistered = true;
+		}
+	}
+
+	private static void registerIfAbsent(LanguageDefinition definition) {
+		// Languages the app registered itself take precedence over bundled ones
+		if (!sDefinitions.containsKey(definition.getName())) {
+			register(definition);
+		}
+	}
+
+	/**
+	* Returns whether a language identifier or alias is registered. The languages whose
+	* grammars ship as assets are registered when the first {@link CodeViewer} is created.
+	*/
+	public static boolean isSupported(String language) {
+		return language != null && sDefinitions.containsKey(language);
+	}
+
+	/**
+	* Returns the shared lexer for a language, compiling its grammar on first use.
+	*
+	* @param language The language identifier or alias (e.g., "java", "js")
+	* @return The lexer, or null if the language is not supported
+	*/
+	static SyntaxLexer getLexer(String language) {
+		LanguageDefinition definition = language != null ? sDefinitions.get(language) : null;
+		if (definition == null) {
+			return null;
+		}
+		String name = definition.getName();
+
+		SyntaxLexer lexer = sLexers.get(name);
+		if (lexer != null) {
+			sHits.incrementAndGet();
+			return lexer;
+		}
+
+		synchronized (sLexers) {
+			lexer = sLexers.get(name);
+			if (lexer != null) {
+				sHits.incrementAndGet();
+				return lexer;
+			}
+			sMisses.incrementAndGet();
+			Grammar grammar = definition.createGrammar();
+			if (grammar == null) {
+				return null;
+			}
+			lexer = new SyntaxLexer(grammar);
+			sLexers.put(name, lexer);
+			return lexer;
+		}
+	}
+
+	/**
+	* Returns how many lookups were served from the cache.
+	*/
+	public static int getHitCount() {
+		return sHits.get();
+	}
+
+	/**
+	* Returns how many lookups had to compile a grammar.
+	*/
+	public static int getMissCount() {
+		return sMisses.get();
+	}
+
+	/**
+	* Returns how many languages are currently compiled.
+	*/
+	public static int getCompiledCount() {
+		return sLexers.size();
+	}
+
+	/**
+	* A language whose grammar is defined in {@link Grammar#forLanguage}.
+	*/
+	private static final class BuiltInLanguage implements LanguageDefinition {
+		private final String mName;
+		private final String[] mAliases;
+
+		BuiltInLanguage(String name, String... aliases) {
+			mName = name;
+			mAliases = aliases;
+		}
+
+		@Override
+		public String getName() {
+			return mName;
+		}
+
+		@Override
+		public String[] getAliases() {
+			return mAliases;
+		}
+
+		@Override
+		public Grammar createGrammar() {
+			return Grammar.forLanguage(mName);
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package com.vrases.sketchyas.codeviewer;
+
+/**
+* Search for a literal query as it is typed, refining the results of the query before.
+* <p>
+* Every place a query occurs is also a place its prefixes occur, so the positions found for
+* a query are kept, and a query that extends it only checks those positions again instead
+* of the whole text. The positions of every prefix on the way are cached as a stack of
+* {@code int[]}, so deleting characters from the query returns the cached positions of the
+* shorter query. For whole words, the cached positions are those not preceded by a word
+* character, which stays true as the query grows; whether a word character follows is
+* checked for each result. A search stopped by the maximum number of results remembers
+* where it stopped; refining it checks its positions and then goes on from there.
+* <p>
+* The cached positions describe one version of the text; {@link #clear()} must be called
+* when the text changes.
+*/
+final class IncrementalSearch {
+
+	// Cached searches, each query a prefix of the next: the start offsets of its occurrences, ascending
+	private String[] mQueries = new String[8];
+	private int[][] mPositions = new int[8][];
+	private int[] mCounts = new int[8];
+	private int[] mScannedTo = new int[8]; // Every occurrence starting before this is in the positions
+	private int mDepth;
+
+	private boolean mIgnoreCase;
+	private boolean mWholeWord;
+	private int mMaxMatches;
+
+	// The whole words among the occurrences of the last search
+	private int[] mWholeWords = new int[16];
+
+	/**
+	* Forgets the cached searches, e.g. because the text changed.
+	*/
+	void clear() {
+		for (int i = 0; i < mDepth; i++) {
+			mQueries[i] = null;
+		}
+		mDepth = 0;
+	}
+
+	/**
+	* Finds the occurrences of a query, overlapping ones included.
+	*
+	* @param text The text, unchanged since the last search or {@link #clear()}
+	* @param query The string to find; not empty
+	* @param ignoreCase Whether letters match regardless of case
+	* @param wholeWord Whether only occurrences that are whole words count, as with {@link SearchJob#FLAG_WHOLE_WORD}
+	* @param maxMatches The number of counted occurrences after which the search stops
+	* @return The number of counted occurrences, whose start offsets {@link #getPositions()} returns
+	*/
+	int search(CharSequence text, String query, boolean ignoreCase, boolean wholeWord, int maxMatches) {
+		if (ignoreCase != mIgnoreCase || wholeWord != mWholeWord || maxMatches != mMaxMatches) {
+			clear();
+			mIgnoreCase = ignoreCase;
+			mWholeWord = wholeWord;
+			mMaxMatches = maxMatches;
+		}
+
+		// Keep only the searches for prefixes of the query
+		while (mDepth > 0 && !isPrefix(mQueries[mDepth - 1], query)) {
+			mQueries[--mDepth] = null;
+		}
+		if (mDepth > 0 && mQueries[mDepth - 1].length() == query.length()) {
+			return collectResults(text, mDepth - 1);
+		}
+
+		if (mDepth == mQueries.length) {
+			growStack();
+		}
+		int entry = mDepth;
+		int[] positions = mPositions[entry] != null ? mPositions[entry] : new int[16];
+		int count = 0;
+		int results = 0;
+		int scannedTo = -1;
+		int scanFrom = 0;
+
+		// The occurrences of the longest cached prefix are the only candidates up to where it was searched
+		if (entry > 0) {
+			int[] candidates = mPositions[entry - 1];
+			int candidateCount = mCounts[entry - 1];
+			if (candidateCount > positions.length) {
+				positions = new int[candidateCount];
+			}
+			for (int i = 0; i < candidateCount; i++) {
+				int position = candidates[i];
+				if (!matchesAt(text, position, query, ignoreCase)) continue;
+
+				positions[count++] = position;
+				if (isResult(text, position + query.length()) && ++results == maxMatches) {
+					scannedTo = position + 1;
+					break;
+				}
+			}
+			scanFrom = mScannedTo[entry - 1];
+		}
+
+		if (scannedTo < 0) {
+			scannedTo = text.length();
+			int last = text.length() - query.length();
+			for (int i = scanFrom; i <= last; i++) {
+				if (!matchesAt(text, i, query, ignoreCase) || (wholeWord && i > 0 && isWordChar(text.charAt(i - 1)))) continue;
+
+				if (count == positions.length) {
+					positions = grow(positions, count + 1);
+				}
+				positions[count++] = i;
+				if (isResult(text, i + query.length()) && ++results == maxMatches) {
+					scannedTo = i + 1;
+					break;
+				}
+			}
+		}
+
+		mQueries[entry] = query;
+		mPositions[entry] = positions;
+		mCounts[entry] = count;
+		mScannedTo[entry] = scannedTo;
+		mDepth = entry + 1;
+		return collectResults(text, entry);
+	}
+
+	/**
+	* Returns the start offsets of the occurrences counted by the last search, ascending.
+	*/
+	int[] getPositions() {
+		return mWholeWord ? mWholeWords : mPositions[mDepth - 1];
+	}
+
+	/**
+	* Returns whether an occurrence ending at {@code end} counts, which for whole words
+	* means no word character follows it.
+	*/
+	private boolean isResult(CharSequence text, int end) {
+		return !mWholeWord || end == text.length() || !isWordChar(text.charAt(end));
+	}
+
+	/**
+	* Picks the whole words among the occurrences of a cached search if only those count.
+	*
+	* @return The number of counted occurrences
+	*/
+	private int collectResults(CharSequence text, int entry) {
+		if (!mWholeWord) {
+			return mCounts[entry];
+		}
+		int[] positions = mPositions[entry];
+		int count = mCounts[entry];
+		int length = mQueries[entry].length();
+		if (count > mWholeWords.length) {
+			mWholeWords = grow(mWholeWords, count);
+		}
+		int results = 0;
+		for (int i = 0; i < count; i++) {
+			if (isResult(text, positions[i] + length)) {
+				mWholeWords[results++] = positions[i];
+			}
+		}
+		return results;
+	}
+
+	private boolean isPrefix(String prefix, String query) {
+		return prefix.length() <= query.length() && query.regionMatches(mIgnoreCase, 0, prefix, 0, prefix.length());
+	}
+
+	/**
+	* Compares like {@link String#regionMatches(boolean, int, String, int, int)}, without copying the text.
+	*/
+	private static boolean matchesAt(CharSequence text, int offset, String query, boolean ignoreCase) {
+		int length = query.length();
+		if (offset + length > text.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(offset + i);
+			char q = query.charAt(i);
+			if (c == q) continue;
+			if (!ignoreCase) {
+				return false;
+			}
+			char upperC = Character.toUpperCase(c);
+			char upperQ = Character.toUpperCase(q);
+			if (upperC != upperQ && Character.toLowerCase(upperC) != Character.toLowerCase(upperQ)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// The ASCII word characters of java.util.regex's \w, which decide whole words
+	private static boolean isWordChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
+
+	private void growStack() {
+		int capacity = mQueries.length * 2;
+		String[] queries = new String[capacity];
+		int[][] positions = new int[capacity][];
+		System.arraycopy(mQueries, 0, queries, 0, mDepth);
+		System.arraycopy(mPositions, 0, positions, 0, mDepth);
+		mQueries = queries;
+		mPositions = positions;
+		mCounts = grow(mCounts, capacity);
+		mScannedTo = grow(mScannedTo, capacity);
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		int[] grown = new int[Math.max(capacity, array.length * 2)];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
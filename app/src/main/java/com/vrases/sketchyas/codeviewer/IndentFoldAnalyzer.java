@@ -0,0 +1,223 @@
+package com.vrases.sketchyas.codeviewer;
+
+/**
+* Finds the foldable regions of indentation-structured code, such as Python or YAML.
+* <p>
+* A region starts at a line followed by more deeply indented lines and hides them, up to
+* the last non-blank line before the indentation returns to the header's level or less.
+* The indentation of every line is kept in an {@code int[]}; an edit only measures the
+* edited lines again, and the regions follow from a single pass over the array with a
+* stack of headers. Lines without code, because they are blank, hold only a comment or
+* continue a string from the line before, do not end regions.
+*/
+final class IndentFoldAnalyzer implements FoldAnalyzer {
+
+	// Columns a tab advances the indentation to a multiple of
+	private static final int TAB_WIDTH = 4;
+
+	// Line indentation while a line must be measured again, and for lines without code
+	private static final int UNKNOWN = -2;
+	private static final int NO_CODE = -1;
+
+	private int[] mIndents = new int[64];
+	private int mLineCount;
+
+	// Header lines whose region is still open, innermost last
+	private int[] mStack = new int[64];
+
+	// mHeaderEnds[line] is the last line hidden by the region starting at line, or -1
+	private int[] mHeaderEnds = new int[64];
+
+	// Regions of the last pass, sorted by header line
+	private int[] mRegionStarts = new int[16];
+	private int[] mRegionEnds = new int[16];
+	private int mRegionCount;
+
+	@Override
+	public void reset(int lineCount) {
+		mLineCount = 0;
+		ensureLineCapacity(lineCount);
+		mLineCount = lineCount;
+		for (int i = 0; i < lineCount; i++) {
+			mIndents[i] = UNKNOWN;
+		}
+	}
+
+	@Override
+	public void invalidateAll() {
+		invalidateLines(0, mLineCount - 1);
+	}
+
+	@Override
+	public void onLinesReplaced(int firstLine, int removedLines, int addedLines) {
+		if (firstLine + removedLines >= mLineCount) {
+			reset(firstLine + addedLines + 1);
+			return;
+		}
+		int delta = addedLines - removedLines;
+		int tailFrom = firstLine + removedLines + 1;
+		ensureLineCapacity(mLineCount + delta);
+		System.arraycopy(mIndents, tailFrom, mIndents, tailFrom + delta, mLineCount - tailFrom);
+		mLineCount += delta;
+
+		// Whether the next line continues a string depends on how the edited lines end
+		invalidateLines(firstLine, firstLine + addedLines + 1);
+	}
+
+	@Override
+	public void invalidateLines(int fromLine, int toLine) {
+		toLine = Math.min(toLine, mLineCount - 1);
+		for (int i = Math.max(0, fromLine); i <= toLine; i++) {
+			mIndents[i] = UNKNOWN;
+		}
+	}
+
+	@Override
+	public boolean analyze(CharSequence text, LineIndex lines, TokenBuffer tokens) {
+		int lineCount = lines.getLineCount();
+		if (lineCount != mLineCount) {
+			reset(lineCount);
+		}
+
+		int depth = 0;
+		int lastCodeLine = -1;
+		for (int line = 0; line < lineCount; line++) {
+			mHeaderEnds[line] = -1;
+			if (mIndents[line] == UNKNOWN) {
+				mIndents[line] = measureLine(text, lines, tokens, line);
+			}
+			int indent = mIndents[line];
+			if (indent == NO_CODE) continue;
+
+			// Lines indented no deeper than a header end its region
+			while (depth > 0 && mIndents[mStack[depth - 1]] >= indent) {
+				int header = mStack[--depth];
+				if (lastCodeLine > header) {
+					mHeaderEnds[header] = lastCodeLine;
+				}
+			}
+
+			if (depth == mStack.length) {
+				mStack = grow(mStack, depth + 1);
+			}
+			mStack[depth++] = line;
+			lastCodeLine = line;
+		}
+		while (depth > 0) {
+			int header = mStack[--depth];
+			if (lastCodeLine > header) {
+				mHeaderEnds[header] = lastCodeLine;
+			}
+		}
+
+		// Collect the regions in header order, noting whether they changed
+		boolean changed = false;
+		int count = 0;
+		for (int line = 0; line < lineCount; line++) {
+			int end = mHeaderEnds[line];
+			if (end < 0) continue;
+
+			if (count == mRegionStarts.length) {
+				mRegionStarts = grow(mRegionStarts, count + 1);
+				mRegionEnds = grow(mRegionEnds, count + 1);
+			}
+			if (count >= mRegionCount || mRegionStarts[count] != line || mRegionEnds[count] != end) {
+				changed = true;
+			}
+			mRegionStarts[count] = line;
+			mRegionEnds[count] = end;
+			count++;
+		}
+		changed |= count != mRegionCount;
+		mRegionCount = count;
+		return changed;
+	}
+
+	@Override
+	public int[] getRegionStarts() {
+		return mRegionStarts;
+	}
+
+	@Override
+	public int[] getRegionEnds() {
+		return mRegionEnds;
+	}
+
+	@Override
+	public int getRegionCount() {
+		return mRegionCount;
+	}
+
+	/**
+	* Returns the indentation of a line in columns, or {@link #NO_CODE}.
+	*/
+	private int measureLine(CharSequence text, LineIndex lines, TokenBuffer tokens, int line) {
+		int lineStart = lines.getLineStart(line);
+		int lineEnd = line + 1 < lines.getLineCount() ? lines.getLineStart(line + 1) - 1 : text.length();
+
+		int column = 0;
+		int i = lineStart;
+		while (i < lineEnd) {
+			char c = text.charAt(i);
+			if (c == ' ') {
+				column++;
+			} else if (c == '\t') {
+				column = (column / TAB_WIDTH + 1) * TAB_WIDTH;
+			} else if (c != '\r') {
+				break;
+			}
+			i++;
+		}
+		if (i == lineEnd) {
+			return NO_CODE;
+		}
+
+		if (line < tokens.getLineCount()) {
+			int first = tokens.getLineFirstToken(line);
+			if (first < tokens.getLineEndToken(line)) {
+				int type = tokens.getType(first);
+				int tokenStart = lineStart + tokens.getRelativeStart(first);
+				if (type == TokenType.COMMENT && tokenStart == i) {
+					return NO_CODE;
+				}
+				if (type == TokenType.STRING && tokenStart == lineStart && continuesString(lines, tokens, line)) {
+					return NO_CODE;
+				}
+			}
+		}
+		return column;
+	}
+
+	/**
+	* Returns whether the line before {@code line} ends inside a string token, so a string
+	* at the start of {@code line} continues it rather than starting a new one.
+	*/
+	private static boolean continuesString(LineIndex lines, TokenBuffer tokens, int line) {
+		if (line == 0) {
+			return false;
+		}
+		int last = tokens.getLineEndToken(line - 1) - 1;
+		if (last < tokens.getLineFirstToken(line - 1)) {
+			return false;
+		}
+		int previousLength = lines.getLineStart(line) - 1 - lines.getLineStart(line - 1);
+		return tokens.getType(last) == TokenType.STRING
+		&& tokens.getRelativeStart(last) + tokens.getLength(last) >= previousLength;
+	}
+
+	private void ensureLineCapacity(int capacity) {
+		if (capacity > mIndents.length) {
+			int size = Math.max(capacity, mIndents.length * 2);
+			int[] indents = new int[size];
+			System.arraycopy(mIndents, 0, indents, 0, mLineCount);
+			mIndents = indents;
+			mHeaderEnds = new int[size];
+		}
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		int[] grown = new int[Math.max(capacity, array.length * 2)];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
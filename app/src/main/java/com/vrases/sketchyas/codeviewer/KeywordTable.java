@@ -0,0 +1,172 @@
+package com.vrases.sketchyas.codeviewer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+* Perfect hash table that classifies identifiers straight from the document text.
+* <p>
+* The lexer feeds every identifier character through {@link #hash} while it scans the
+* identifier, then calls {@link #lookup} once. The table is built with a hash multiplier chosen
+* so that no two words share a slot, so a lookup is one probe and one comparison
+* no matter how many keywords the language has, and it never allocates.
+* <p>
+* An entry holds the token type of the word in its low bits plus flags telling the
+* lexer whether the word introduces a type or function name.
+*/
+final class KeywordTable {
+
+	// Entry layout: token type in the low bits, then flags
+	private static final int TYPE_MASK = (1 << TokenBuffer.TYPE_BITS) - 1;
+	static final int FLAG_DECLARES_TYPE = 1 << TokenBuffer.TYPE_BITS;
+	static final int FLAG_DECLARES_FUNCTION = 1 << (TokenBuffer.TYPE_BITS + 1);
+
+	private static final int MAX_SEED_ATTEMPTS = 64;
+	private static final int MAX_TABLE_SIZE = 1 << 16;
+
+	private final boolean mIgnoreCase;
+	private final char[][] mWords;
+	private final int[] mEntries;
+	private final int mMask;
+	private final int mMultiplier;
+	private final int mMinLength;
+	private final int mMaxLength;
+
+	/**
+	* @param entries Words mapped to their entries (a token type, optionally with flags)
+	* @param ignoreCase Whether words match regardless of case
+	* @throws IllegalArgumentException If no collision-free table can be built
+	*/
+	KeywordTable(Map<String, Integer> entries, boolean ignoreCase) {
+		mIgnoreCase = ignoreCase;
+
+		// Fold first so that words differing only in case become one entry
+		Map<String, Integer> folded = new LinkedHashMap<>();
+		for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+			folded.put(ignoreCase ? fold(entry.getKey()) : entry.getKey(), entry.getValue());
+		}
+
+		int count = folded.size();
+		char[][] words = new char[count][];
+		int[] values = new int[count];
+		int minLength = Integer.MAX_VALUE;
+		int maxLength = 0;
+		int n = 0;
+		for (Map.Entry<String, Integer> entry : folded.entrySet()) {
+			words[n] = entry.getKey().toCharArray();
+			values[n] = entry.getValue();
+			minLength = Math.min(minLength, words[n].length);
+			maxLength = Math.max(maxLength, words[n].length);
+			n++;
+		}
+		mMinLength = minLength;
+		mMaxLength = maxLength;
+
+		// Grow the table until some multiplier places every word in its own slot
+		int size = Integer.highestOneBit(Math.max(1, count) * 2 - 1) << 1;
+		int[] slots = null;
+		int multiplier = 0;
+		while (slots == null) {
+			if (size > MAX_TABLE_SIZE) {
+				throw new IllegalArgumentException("Cannot build a keyword table for " + count + " words");
+			}
+			for (int attempt = 0; attempt < MAX_SEED_ATTEMPTS && slots == null; attempt++) {
+				// Odd multipliers keep every character significant
+				multiplier = 31 + attempt * 2;
+				slots = place(words, size - 1, multiplier);
+			}
+			if (slots == null) {
+				size <<= 1;
+			}
+		}
+
+		mMask = size - 1;
+		mMultiplier = multiplier;
+		mWords = new char[size][];
+		mEntries = new int[size];
+		for (int i = 0; i < count; i++) {
+			mWords[slots[i]] = words[i];
+			mEntries[slots[i]] = values[i];
+		}
+	}
+
+	/**
+	* Returns the slot of every word, or null if two words collide under this multiplier.
+	*/
+	private static int[] place(char[][] words, int mask, int multiplier) {
+		boolean[] used = new boolean[mask + 1];
+		int[] slots = new int[words.length];
+		for (int i = 0; i < words.length; i++) {
+			int hash = 0;
+			for (char c : words[i]) {
+				hash = hash * multiplier + c;
+			}
+			int slot = slot(hash, mask);
+			if (used[slot]) {
+				return null;
+			}
+			used[slot] = true;
+			slots[i] = slot;
+		}
+		return slots;
+	}
+
+	private static int slot(int hash, int mask) {
+		int h = hash * 0x9E3779B1;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/**
+	* Adds one identifier character to a running hash that starts at 0.
+	*/
+	int hash(int hash, char c) {
+		if (mIgnoreCase) {
+			c = fold(c);
+		}
+		return hash * mMultiplier + c;
+	}
+
+	/**
+	* Classifies the identifier {@code text[start, end)}.
+	*
+	* @param hash The hash of the identifier's characters, computed with {@link #hash}
+	* @return The entry of the word, or 0 if it is not in the table
+	*/
+	int lookup(CharSequence text, int start, int end, int hash) {
+		int length = end - start;
+		if (length < mMinLength || length > mMaxLength) {
+			return 0;
+		}
+		int slot = slot(hash, mMask);
+		char[] word = mWords[slot];
+		if (word == null || word.length != length) {
+			return 0;
+		}
+		for (int k = 0; k < length; k++) {
+			char c = text.charAt(start + k);
+			if ((mIgnoreCase ? fold(c) : c) != word[k]) {
+				return 0;
+			}
+		}
+		return mEntries[slot];
+	}
+
+	static int getType(int entry) {
+		return entry & TYPE_MASK;
+	}
+
+	private static char fold(char c) {
+		if (c >= 'A' && c <= 'Z') {
+			return (char) (c + ('a' - 'A'));
+		}
+		return c < 128 ? c : Character.toLowerCase(c);
+	}
+
+	private static String fold(String word) {
+		char[] chars = word.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = fold(chars[i]);
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,29 @@
+package com.vrases.sketchyas.codeviewer;
+
+/**
+* Makes a language available to {@link CodeViewer}.
+* <p>
+* Definitions are registered with {@link GrammarRegistry#register} and are expected to
+* be cheap to create: the grammar itself is only built the first time a viewer asks
+* for the language, and the result is shared until the language is registered again.
+*/
+public interface LanguageDefinition {
+
+	/**
+	* Returns the canonical name the language is registered under (e.g., "java").
+	*/
+	String getName();
+
+	/**
+	* Returns additional identifiers that select this language (e.g., "js" for "javascript").
+	*/
+	String[] getAliases();
+
+	/**
+	* Builds the grammar. Called on first use of the language, and again after it is
+	* registered anew; a null result is not cached, so the next lookup retries.
+	*
+	* @return The grammar, or null if it could not be built
+	*/
+	Grammar createGrammar();
+}
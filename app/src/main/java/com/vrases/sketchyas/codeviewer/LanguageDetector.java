@@ -0,0 +1,274 @@
+package com.vrases.sketchyas.codeviewer;
+
+import android.content.Context;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+* Guesses the language of a document from cheap signals.
+* <p>
+* A file name extension decides on its own. Otherwise a shebang line decides, and failing
+* that only the first {@link #SAMPLE_CHARS} characters are examined: identifiers are
+* hashed as they are scanned and looked up in one {@link KeywordTable} of telltale words,
+* and a few line-level markers ({@code package x;}, {@code def f():}, {@code key: value})
+* add to the score. The cost is bounded by the sample size and does not depend on how
+* many grammars are registered, since no grammar is ever run.
+*/
+public final class LanguageDetector {
+
+	/** Number of leading characters examined. */
+	static final int SAMPLE_CHARS = 8 * 1024;
+
+	/** Minimum score a language needs before it is reported. */
+	private static final int MIN_SCORE = 4;
+
+	// Candidate languages, indexed by bit position in the word table
+	private static final String[] LANGUAGES = {
+		"java", "kotlin", "python", "javascript", "typescript", "csharp", "go", "rust", "sql", "yaml", "gradle"
+	};
+	private static final int JAVA = 0;
+	private static final int KOTLIN = 1;
+	private static final int PYTHON = 2;
+	private static final int JAVASCRIPT = 3;
+	private static final int TYPESCRIPT = 4;
+	private static final int CSHARP = 5;
+	private static final int GO = 6;
+	private static final int RUST = 7;
+	private static final int SQL = 8;
+	private static final int YAML = 9;
+	private static final int GRADLE = 10;
+
+	private static final Map<String, String> EXTENSIONS = new HashMap<>();
+	private static final KeywordTable WORDS;
+
+	static {
+		EXTENSIONS.put("java", "java");
+		EXTENSIONS.put("kt", "kotlin");
+		EXTENSIONS.put("kts", "kotlin");
+		EXTENSIONS.put("py", "python");
+		EXTENSIONS.put("pyw", "python");
+		EXTENSIONS.put("js", "javascript");
+		EXTENSIONS.put("mjs", "javascript");
+		EXTENSIONS.put("cjs", "javascript");
+		EXTENSIONS.put("jsx", "javascript");
+		EXTENSIONS.put("ts", "typescript");
+		EXTENSIONS.put("tsx", "typescript");
+		EXTENSIONS.put("cs", "csharp");
+		EXTENSIONS.put("go", "go");
+		EXTENSIONS.put("rs", "rust");
+		EXTENSIONS.put("sql", "sql");
+		EXTENSIONS.put("yml", "yaml");
+		EXTENSIONS.put("yaml", "yaml");
+		EXTENSIONS.put("gradle", "gradle");
+		EXTENSIONS.put("groovy", "gradle");
+
+		// Each word votes for every language whose bit is set in its entry
+		Map<String, Integer> words = new HashMap<>();
+		addWords(words, JAVA, "public", "private", "protected", "static", "void", "final", "extends", "implements", "throws", "new", "class", "import", "package", "boolean", "String", "System", "Override");
+		addWords(words, KOTLIN, "fun", "val", "var", "override", "companion", "object", "data", "when", "lateinit", "suspend", "import", "package", "class", "Override");
+		addWords(words, PYTHON, "def", "elif", "self", "None", "True", "False", "lambda", "import", "from", "pass", "yield", "print", "class", "in", "not", "and", "or");
+		addWords(words, JAVASCRIPT, "function", "const", "let", "var", "require", "module", "exports", "undefined", "console", "document", "window", "import", "export", "new");
+		addWords(words, TYPESCRIPT, "function", "const", "let", "interface", "type", "readonly", "number", "string", "boolean", "any", "import", "export", "undefined", "console", "implements");
+		addWords(words, CSHARP, "using", "namespace", "public", "private", "static", "void", "string", "var", "override", "get", "set", "Console", "class", "new", "readonly");
+		addWords(words, GO, "func", "package", "chan", "defer", "go", "fmt", "struct", "import", "var", "nil", "err");
+		addWords(words, RUST, "fn", "let", "mut", "impl", "pub", "use", "crate", "match", "struct", "enum", "trait", "Self", "self");
+		addWords(words, SQL, "SELECT", "FROM", "WHERE", "INSERT", "INTO", "UPDATE", "DELETE", "CREATE", "TABLE", "JOIN", "VALUES", "select", "from", "where", "insert", "into", "update", "create", "table", "join", "values");
+		addWords(words, GRADLE, "apply", "plugin", "plugins", "dependencies", "implementation", "repositories", "android", "buildscript", "classpath", "mavenCentral", "google", "compileSdkVersion", "defaultConfig");
+		WORDS = new KeywordTable(words, false);
+	}
+
+	private LanguageDetector() {
+	}
+
+	private static void addWords(Map<String, Integer> words, int language, String... list) {
+		for (String word : list) {
+			Integer mask = words.get(word);
+			words.put(word, (mask != null ? mask : 0) | (1 << language));
+		}
+	}
+
+	/**
+	* Guesses the language of a document, including the languages whose grammars ship as
+	* assets even if no {@link CodeViewer} has been created yet.
+	*
+	* @param context Any context; used to register the bundled languages on first use
+	* @param text The document; only its beginning is examined
+	* @param fileName The name or path the document was loaded from, or null if unknown
+	* @return A registered language name, or null if no language is a convincing match
+	*/
+	public static String detect(Context context, CharSequence text, String fileName) {
+		GrammarRegistry.registerAssetLanguages(context);
+		return detect(text, fileName);
+	}
+
+	/**
+	* Guesses the language of a document among the registered languages. The languages whose
+	* grammars ship as assets (go, rust, sql, yaml, gradle) are only registered once a
+	* {@link CodeViewer} has been created; use {@link #detect(Context, CharSequence, String)}
+	* to detect them before that.
+	*
+	* @param text The document; only its beginning is examined
+	* @param fileName The name or path the document was loaded from, or null if unknown
+	* @return A registered language name, or null if no language is a convincing match
+	*/
+	public static String detect(CharSequence text, String fileName) {
+		String language = detectFromFileName(fileName);
+		if (language != null) {
+			return language;
+		}
+		if (text == null) {
+			return null;
+		}
+
+		int end = Math.min(text.length(), SAMPLE_CHARS);
+		language = detectFromShebang(text, end);
+		if (language != null) {
+			return language;
+		}
+
+		int[] scores = new int[LANGUAGES.length];
+		scoreWords(text, end, scores);
+		scoreLines(text, end, scores);
+
+		int best = -1;
+		for (int i = 0; i < scores.length; i++) {
+			if (scores[i] >= MIN_SCORE && (best < 0 || scores[i] > scores[best])
+			&& GrammarRegistry.isSupported(LANGUAGES[i])) {
+				best = i;
+			}
+		}
+		return best >= 0 ? LANGUAGES[best] : null;
+	}
+
+	private static String detectFromFileName(String fileName) {
+		if (fileName == null) {
+			return null;
+		}
+		int dot = fileName.lastIndexOf('.');
+		if (dot < 0 || dot < fileName.lastIndexOf('/')) {
+			return null;
+		}
+		String language = EXTENSIONS.get(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+		return language != null && GrammarRegistry.isSupported(language) ? language : null;
+	}
+
+	private static String detectFromShebang(CharSequence text, int end) {
+		if (!SyntaxLexer.startsWith(text, 0, end, "#!")) {
+			return null;
+		}
+		int lineEnd = 2;
+		while (lineEnd < end && text.charAt(lineEnd) != '\n') lineEnd++;
+		String line = text.subSequence(0, lineEnd).toString();
+		if (line.contains("python")) {
+			return "python";
+		} else if (line.contains("node") || line.contains("deno")) {
+			return "javascript";
+		}
+		return null;
+	}
+
+	/**
+	* Adds one point per telltale word to every language the word belongs to.
+	*/
+	private static void scoreWords(CharSequence text, int end, int[] scores) {
+		KeywordTable table = WORDS;
+		int i = 0;
+		while (i < end) {
+			char c = text.charAt(i);
+			if (!Character.isLetter(c) && c != '_') {
+				i++;
+				continue;
+			}
+			int start = i;
+			int hash = 0;
+			while (i < end && (Character.isLetterOrDigit(c = text.charAt(i)) || c == '_')) {
+				hash = table.hash(hash, c);
+				i++;
+			}
+			int mask = table.lookup(text, start, i, hash);
+			while (mask != 0) {
+				int language = Integer.numberOfTrailingZeros(mask);
+				scores[language]++;
+				mask &= mask - 1;
+			}
+		}
+	}
+
+	/**
+	* Adds points for markers that only make sense at the start or end of a line.
+	*/
+	private static void scoreLines(CharSequence text, int end, int[] scores) {
+		int lineStart = 0;
+		while (lineStart < end) {
+			int lineEnd = lineStart;
+			while (lineEnd < end && text.charAt(lineEnd) != '\n') lineEnd++;
+
+			int first = lineStart;
+			while (first < lineEnd && (text.charAt(first) == ' ' || text.charAt(first) == '\t')) first++;
+			int last = lineEnd;
+			while (last > first && Character.isWhitespace(text.charAt(last - 1))) last--;
+
+			if (last > first) {
+				char tail = text.charAt(last - 1);
+				if (SyntaxLexer.startsWith(text, first, last, "package ")) {
+					// Java terminates the package clause, Kotlin and Go do not
+					if (tail == ';') {
+						scores[JAVA] += 3;
+					} else {
+						scores[KOTLIN] += 2;
+						scores[GO] += 2;
+					}
+				} else if (SyntaxLexer.startsWith(text, first, last, "def ") && tail == ':') {
+					scores[PYTHON] += 3;
+				} else if (SyntaxLexer.startsWith(text, first, last, "---") && lineStart == 0) {
+					scores[YAML] += 3;
+				} else if (isYamlEntry(text, first, last)) {
+					scores[YAML]++;
+				}
+				if (indexOf(text, first, last, ":=") >= 0) {
+					scores[GO]++;
+				}
+				if (indexOf(text, first, last, "=>") >= 0) {
+					scores[JAVASCRIPT]++;
+					scores[TYPESCRIPT]++;
+				}
+			}
+			lineStart = lineEnd + 1;
+		}
+	}
+
+	/**
+	* Returns whether a line looks like {@code key: value}, {@code key:} or {@code - item}.
+	*/
+	private static boolean isYamlEntry(CharSequence text, int first, int last) {
+		char c = text.charAt(first);
+		if (c == '-' && first + 1 < last && text.charAt(first + 1) == ' ') {
+			return true;
+		}
+		if (!Character.isLetter(c)) {
+			return false;
+		}
+		int i = first + 1;
+		while (i < last && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_' || text.charAt(i) == '-')) i++;
+		if (i >= last || text.charAt(i) != ':') {
+			return false;
+		}
+		// A colon ending the line or followed by a blank, and no code punctuation after it
+		if (i + 1 < last && text.charAt(i + 1) != ' ') {
+			return false;
+		}
+		char tail = text.charAt(last - 1);
+		return tail != ';' && tail != '{' && tail != '(' && tail != ',';
+	}
+
+	private static int indexOf(CharSequence text, int from, int end, String needle) {
+		for (int i = from; i + needle.length() <= end; i++) {
+			if (SyntaxLexer.startsWith(text, i, end, needle)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
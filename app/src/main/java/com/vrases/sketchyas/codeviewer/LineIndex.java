@@ -0,0 +1,106 @@
+package com.vrases.sketchyas.codeviewer;
+
+/**
+* Start offsets of the lines of a document, kept in a growable {@code int[]}.
+* <p>
+* Line to offset is an array read and offset to line a binary search, so folding,
+* search navigation and touch handling can map between the two as often as they like
+* without boxing or scanning. Edits update the index in place: only the line breaks
+* inside the edit are scanned, and the starts of later lines are shifted.
+*/
+final class LineIndex {
+
+	// mStarts[line] is the offset of the first character of the line; mStarts[0] is always 0
+	private int[] mStarts = new int[64];
+	private int mLineCount = 1;
+
+	/**
+	* Recomputes the line starts of {@code text}.
+	*/
+	void rebuild(CharSequence text) {
+		mStarts[0] = 0;
+		int count = 1;
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			if (text.charAt(i) == '\n') {
+				if (count == mStarts.length) {
+					grow(count + 1);
+				}
+				mStarts[count++] = i + 1;
+			}
+		}
+		mLineCount = count;
+	}
+
+	/**
+	* Updates the index for an edit; must be called before any other lookup on the new text.
+	*
+	* @param text The text after the edit
+	* @param start The offset of the edit
+	* @param removedChars The number of characters the edit removed
+	* @param addedChars The number of characters the edit inserted
+	*/
+	void onTextReplaced(CharSequence text, int start, int removedChars, int addedChars) {
+		// Lines starting inside the removed range go away
+		int firstLine = findLine(start);
+		int removedLines = findLine(start + removedChars) - firstLine;
+
+		int addedLines = 0;
+		for (int i = start; i < start + addedChars; i++) {
+			if (text.charAt(i) == '\n') addedLines++;
+		}
+
+		int tailFrom = firstLine + removedLines + 1;
+		int lineDelta = addedLines - removedLines;
+		if (mLineCount + lineDelta > mStarts.length) {
+			grow(mLineCount + lineDelta);
+		}
+		System.arraycopy(mStarts, tailFrom, mStarts, tailFrom + lineDelta, mLineCount - tailFrom);
+		mLineCount += lineDelta;
+
+		int charDelta = addedChars - removedChars;
+		if (charDelta != 0) {
+			for (int line = tailFrom + lineDelta; line < mLineCount; line++) {
+				mStarts[line] += charDelta;
+			}
+		}
+
+		int line = firstLine + 1;
+		for (int i = start; i < start + addedChars; i++) {
+			if (text.charAt(i) == '\n') mStarts[line++] = i + 1;
+		}
+	}
+
+	/** Returns the number of lines; an empty document has one line. */
+	int getLineCount() {
+		return mLineCount;
+	}
+
+	/** Returns the offset of the first character of a line. */
+	int getLineStart(int line) {
+		return mStarts[line];
+	}
+
+	/**
+	* Returns the line containing {@code offset}. Offsets past the end map to the last line.
+	*/
+	int findLine(int offset) {
+		int low = 0;
+		int high = mLineCount - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (mStarts[mid] <= offset) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private void grow(int capacity) {
+		int[] grown = new int[Math.max(capacity, mStarts.length * 2)];
+		System.arraycopy(mStarts, 0, grown, 0, mStarts.length);
+		mStarts = grown;
+	}
+}
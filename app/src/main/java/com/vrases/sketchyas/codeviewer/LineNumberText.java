@@ -0,0 +1,67 @@
+package com.vrases.sketchyas.codeviewer;
+
+import android.graphics.Paint;
+
+/**
+* Formats and measures line numbers without allocating.
+* <p>
+* A number is written right-aligned into one reusable {@code char[]}, ready for
+* {@link android.graphics.Canvas#drawText(char[], int, int, float, float, Paint)}, and
+* its width is the sum of the widths of its digits, measured once per paint. The gutter
+* font is monospace, so this matches what measuring the whole string would return.
+*/
+final class LineNumberText {
+
+	// Enough for any positive int
+	private static final int MAX_DIGITS = 10;
+
+	private final char[] mChars = new char[MAX_DIGITS];
+	private final float[] mDigitWidths = new float[10];
+	private int mStart = MAX_DIGITS;
+
+	/**
+	* Measures the digits of {@code paint}; call again whenever its text size or typeface changes.
+	*/
+	void setPaint(Paint paint) {
+		char[] digit = mChars;
+		for (int d = 0; d <= 9; d++) {
+			digit[0] = (char) ('0' + d);
+			mDigitWidths[d] = paint.measureText(digit, 0, 1);
+		}
+		mStart = MAX_DIGITS;
+	}
+
+	/**
+	* Formats a number into {@link #getChars()}, starting at {@link #getStart()}.
+	*
+	* @param number The number; must not be negative
+	* @return The width of the formatted number
+	*/
+	float format(int number) {
+		float width = 0;
+		int i = MAX_DIGITS;
+		do {
+			int d = number % 10;
+			mChars[--i] = (char) ('0' + d);
+			width += mDigitWidths[d];
+			number /= 10;
+		} while (number != 0);
+		mStart = i;
+		return width;
+	}
+
+	/** Returns the buffer holding the last formatted number. */
+	char[] getChars() {
+		return mChars;
+	}
+
+	/** Returns the index of the first digit of the last formatted number. */
+	int getStart() {
+		return mStart;
+	}
+
+	/** Returns the number of digits of the last formatted number. */
+	int getLength() {
+		return MAX_DIGITS - mStart;
+	}
+}
@@ -0,0 +1,112 @@
+package com.vrases.sketchyas.codeviewer;
+
+import android.graphics.Paint;
+import android.graphics.Typeface;
+
+/**
+* Horizontal positions in monospace text, computed from one cached advance width.
+* <p>
+* With a monospace font every ordinary character advances by the same amount, so the x
+* position of a column and the column under an x position follow from counting
+* characters and expanding tabs; nothing is measured or shaped. Characters the font may
+* draw wider or narrower (CJK, combining marks, right-to-left scripts, surrogate pairs,
+* control characters) make the methods return -1, and callers fall back to measuring.
+*/
+final class MonospaceMetrics {
+
+	private final int mTabIncrement;
+
+	// The paint state mAdvance was measured for
+	private float mTextSize = -1;
+	private Typeface mTypeface;
+	private boolean mMonospace;
+	private float mAdvance;
+
+	/**
+	* @param tabIncrement The distance between tab stops, in pixels
+	*/
+	MonospaceMetrics(int tabIncrement) {
+		mTabIncrement = tabIncrement;
+	}
+
+	/**
+	* Measures the advance width again if the text size or typeface of {@code paint} changed.
+	*
+	* @return True if the font is monospace and the other methods can be used
+	*/
+	boolean update(Paint paint) {
+		if (paint.getTextSize() != mTextSize || paint.getTypeface() != mTypeface) {
+			mTextSize = paint.getTextSize();
+			mTypeface = paint.getTypeface();
+			mAdvance = paint.measureText("M");
+			mMonospace = mAdvance > 0 && paint.measureText("i") == mAdvance
+			&& paint.measureText(" ") == mAdvance && paint.measureText("_") == mAdvance;
+		}
+		return mMonospace;
+	}
+
+	float nextTabStop(float x) {
+		return (int) ((x + mTabIncrement) / mTabIncrement) * mTabIncrement;
+	}
+
+	/**
+	* Returns the width of {@code text[start, end)}, which must not contain tabs, or -1.
+	*/
+	float measure(CharSequence text, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (!hasFixedAdvance(text.charAt(i))) {
+				return -1;
+			}
+		}
+		return (end - start) * mAdvance;
+	}
+
+	/**
+	* Returns the x position of {@code offset} relative to the start of its line, or -1.
+	*/
+	float getHorizontal(CharSequence text, int lineStart, int offset) {
+		float x = 0;
+		for (int i = lineStart; i < offset; i++) {
+			char c = text.charAt(i);
+			if (c == '\t') {
+				x = nextTabStop(x);
+			} else if (hasFixedAdvance(c)) {
+				x += mAdvance;
+			} else {
+				return -1;
+			}
+		}
+		return x;
+	}
+
+	/**
+	* Returns the character boundary in {@code [lineStart, maxOffset]} closest to {@code x}, or -1.
+	*/
+	int getOffsetForHorizontal(CharSequence text, int lineStart, int maxOffset, float x) {
+		float left = 0;
+		for (int i = lineStart; i < maxOffset; i++) {
+			char c = text.charAt(i);
+			float right;
+			if (c == '\t') {
+				right = nextTabStop(left);
+			} else if (hasFixedAdvance(c)) {
+				right = left + mAdvance;
+			} else {
+				return -1;
+			}
+			if (x < right) {
+				return x - left <= right - x ? i : i + 1;
+			}
+			left = right;
+		}
+		return maxOffset;
+	}
+
+	/**
+	* Returns whether a monospace font draws {@code c} exactly one advance wide: printable
+	* Latin, Greek and Cyrillic characters, without combining marks or the invisible soft hyphen.
+	*/
+	static boolean hasFixedAdvance(char c) {
+		return (c >= 0x20 && c < 0x7F) || (c >= 0xA0 && c < 0x0300 && c != 0xAD) || (c >= 0x0370 && c < 0x0530);
+	}
+}
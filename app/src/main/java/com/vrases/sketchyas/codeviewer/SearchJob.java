@@ -0,0 +1,214 @@
+package com.vrases.sketchyas.codeviewer;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+* One search of an immutable text snapshot, for a literal string or a regular expression.
+* <p>
+* The job can run on any thread. Matches are handed to a {@link Callback} in batches as they
+* are found, as start and end offsets in {@code int[]} arrays, so the first matches can be
+* shown before a large document has been searched to the end. Overlapping matches of a
+* literal string are all found, as with repeated {@link String#indexOf(String, int)}; a
+* regular expression continues after each of its matches. The search stops after a
+* maximum number of matches, or soon after {@link #cancel()}: the snapshot is read through a
+* wrapper that checks for cancellation, which also stops a regular expression that
+* backtracks for a long time without finding anything.
+*/
+final class SearchJob implements Runnable {
+
+	/** The query is a regular expression rather than a literal string. */
+	static final int FLAG_REGEX = 1;
+
+	/** Letters match regardless of case. */
+	static final int FLAG_IGNORE_CASE = 2;
+
+	/** Matches must not be preceded or followed by a word character. */
+	static final int FLAG_WHOLE_WORD = 4;
+
+	/** Number of matches handed over at most in one batch. */
+	private static final int BATCH_SIZE = 1024;
+
+	/** Time after which the matches found so far are handed over even if the batch is not full. */
+	private static final long BATCH_INTERVAL_NANOS = 50 * 1000 * 1000L;
+
+	private static ExecutorService sExecutor;
+
+	/**
+	* Receives the matches of a job, on the thread running it.
+	*/
+	interface Callback {
+		/**
+		* Called for each batch of matches, in document order. The arrays belong to the receiver.
+		*/
+		void onMatches(SearchJob job, int[] starts, int[] ends, int count);
+
+		/**
+		* Called once after the last batch unless the job was cancelled.
+		*
+		* @param capped True if the search stopped at the maximum number of matches
+		*/
+		void onFinished(SearchJob job, boolean capped);
+	}
+
+	private final CancellableText mText;
+	private final Pattern mPattern;
+	private final boolean mOverlapping;
+	private final int mMaxMatches;
+	private final Callback mCallback;
+
+	private volatile boolean mCancelled;
+
+	/**
+	* @param text The text to search; must not change while the job runs
+	* @param query The string or regular expression to find
+	* @param flags {@link #FLAG_REGEX}, {@link #FLAG_IGNORE_CASE} and {@link #FLAG_WHOLE_WORD}, combined
+	* @param maxMatches The number of matches after which the search stops
+	* @throws PatternSyntaxException If the query is not a valid regular expression
+	*/
+	SearchJob(CharSequence text, String query, int flags, int maxMatches, Callback callback) {
+		mText = new CancellableText(text);
+		mPattern = compile(query, flags);
+		mOverlapping = (flags & FLAG_REGEX) == 0;
+		mMaxMatches = maxMatches;
+		mCallback = callback;
+	}
+
+	/**
+	* Returns the process-wide worker that runs search jobs, separate from highlighting so
+	* neither has to wait for the other.
+	*/
+	static synchronized ExecutorService getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "CodeViewer-search");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.NORM_PRIORITY - 1);
+					return thread;
+				}
+			});
+		}
+		return sExecutor;
+	}
+
+	/**
+	* Returns the pattern a query is searched with.
+	*
+	* @throws PatternSyntaxException If the query is not a valid regular expression
+	*/
+	static Pattern compile(String query, int flags) {
+		String regex = (flags & FLAG_REGEX) != 0 ? query : Pattern.quote(query);
+		if ((flags & FLAG_WHOLE_WORD) != 0) {
+			regex = "(?<!\\w)(?:" + regex + ")(?!\\w)";
+		}
+		int patternFlags = Pattern.MULTILINE;
+		if ((flags & FLAG_IGNORE_CASE) != 0) {
+			patternFlags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+		}
+		return Pattern.compile(regex, patternFlags);
+	}
+
+	@Override
+	public void run() {
+		int[] starts = new int[Math.min(BATCH_SIZE, mMaxMatches)];
+		int[] ends = new int[starts.length];
+		int count = 0;
+		int total = 0;
+		long batchStarted = System.nanoTime();
+
+		try {
+			Matcher matcher = mPattern.matcher(mText);
+			int from = 0;
+			while (total < mMaxMatches && from <= mText.length() && matcher.find(from)) {
+				// Empty matches, such as of "a*", have nothing to highlight
+				boolean empty = matcher.end() == matcher.start();
+				from = mOverlapping || empty ? matcher.start() + 1 : matcher.end();
+				if (empty) continue;
+
+				starts[count] = matcher.start();
+				ends[count] = matcher.end();
+				count++;
+				total++;
+				if (count == starts.length || System.nanoTime() - batchStarted > BATCH_INTERVAL_NANOS) {
+					if (mCancelled) {
+						return;
+					}
+					mCallback.onMatches(this, starts, ends, count);
+					starts = new int[Math.min(BATCH_SIZE, Math.max(1, mMaxMatches - total))];
+					ends = new int[starts.length];
+					count = 0;
+					batchStarted = System.nanoTime();
+				}
+			}
+		} catch (CancellationException e) {
+			return;
+		}
+
+		if (mCancelled) {
+			return;
+		}
+		if (count > 0) {
+			mCallback.onMatches(this, starts, ends, count);
+		}
+		mCallback.onFinished(this, total >= mMaxMatches);
+	}
+
+	/**
+	* Asks a running job to stop; it hands over no further matches.
+	*/
+	void cancel() {
+		mCancelled = true;
+		mText.mCancelled = true;
+	}
+
+	boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	* Read-only view of the snapshot that throws {@link CancellationException} once the job is
+	* cancelled, checked every few thousand reads so the matcher stops wherever it is.
+	*/
+	private static final class CancellableText implements CharSequence {
+
+		private static final int CHECK_INTERVAL_MASK = 4096 - 1;
+
+		private final CharSequence mText;
+		private volatile boolean mCancelled;
+		private int mReads;
+
+		CancellableText(CharSequence text) {
+			mText = text;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if ((++mReads & CHECK_INTERVAL_MASK) == 0 && mCancelled) {
+				throw new CancellationException();
+			}
+			return mText.charAt(index);
+		}
+
+		@Override
+		public int length() {
+			return mText.length();
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return mText.subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return mText.toString();
+		}
+	}
+}
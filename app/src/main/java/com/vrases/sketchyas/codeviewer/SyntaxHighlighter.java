@@ -0,0 +1,582 @@
+package com.vrases.sketchyas.codeviewer;
+
+import android.text.GetChars;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+* Incremental, versioned driver for {@link SyntaxLexer}.
+* <p>
+* The lexer state at the end of every line is kept as a checkpoint. Edits mark a
+* range of lines dirty and bump the document version. {@link #createJob} copies the
+* dirty lines and a margin after them together with the checkpoints they need, so the
+* cost of an edit does not grow with the document; the job can then run on any thread.
+* It restarts from the first dirty line and stops as soon as it has passed the edited
+* lines and produces the same end state as before. If the copy runs out first, the lines
+* after it stay dirty and the next job continues there. {@link #commit} accepts the
+* result only if no edit happened in the meantime.
+* <p>
+* A pass may be given a time budget. When it runs out, the lines lexed so far are kept
+* and the rest of the document is left as plain text until an edit before it
+* starts a new pass, so a pathological file can never keep the worker busy indefinitely.
+* The budget is checked between lines and every few thousand characters within a line,
+* so one huge minified line is given up on as well.
+* <p>
+* All methods except {@link Job#run()} must be called on the UI thread.
+*/
+final class SyntaxHighlighter {
+
+	/** End state of a line that has not been lexed yet. */
+	private static final int STATE_UNKNOWN = -1;
+
+	/** Number of lines a job lexes between cancellation and budget checks. */
+	private static final int CANCEL_CHECK_INTERVAL = 64;
+
+	/** Number of characters after which a job checks again even within fewer lines. */
+	private static final int CANCEL_CHECK_CHARS = 16 * 1024;
+
+	/** Number of characters after the dirty lines a job copies, for the end state to settle in. */
+	static final int SNAPSHOT_MARGIN_CHARS = 32 * 1024;
+
+	private static ExecutorService sExecutor;
+
+	private SyntaxLexer mLexer;
+	private int mVersion = 0;
+
+	// Per-line end states
+	private int[] mLineStates = new int[0];
+	private int mLineCount = 0;
+
+	// End states before the edit of the lines the last job covers; reused, since a job is only
+	// created once the previous one was cancelled or has finished
+	private int[] mPreviousStates = new int[64];
+
+	// Dirty line range, inclusive; mDirtyFrom > mDirtyTo means clean
+	private int mDirtyFrom = 0;
+	private int mDirtyTo = Integer.MAX_VALUE;
+
+	// Lines from mPlainFrom on were given up on when a pass ran out of time
+	private int mPlainFrom = Integer.MAX_VALUE;
+	private long mTimeBudgetNanos = 0;
+
+	/**
+	* Returns the process-wide worker that runs highlighting jobs.
+	*/
+	static synchronized ExecutorService getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "CodeViewer-highlight");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.NORM_PRIORITY - 1);
+					return thread;
+				}
+			});
+		}
+		return sExecutor;
+	}
+
+	void setLexer(SyntaxLexer lexer) {
+		mLexer = lexer;
+		invalidateAll();
+	}
+
+	SyntaxLexer getLexer() {
+		return mLexer;
+	}
+
+	int getVersion() {
+		return mVersion;
+	}
+
+	/**
+	* Limits how long one pass may lex before it leaves the rest of the document plain.
+	*
+	* @param millis The budget in milliseconds, or 0 for no limit
+	*/
+	void setTimeBudget(long millis) {
+		mTimeBudgetNanos = Math.max(0, millis) * 1000000L;
+	}
+
+	/**
+	* Forgets all checkpoints so the next job covers the whole document.
+	*/
+	void invalidateAll() {
+		mVersion++;
+		mLineCount = 0;
+		mDirtyFrom = 0;
+		mDirtyTo = Integer.MAX_VALUE;
+		mPlainFrom = Integer.MAX_VALUE;
+	}
+
+	boolean isDirty() {
+		return mDirtyFrom <= mDirtyTo;
+	}
+
+	/**
+	* Records an edit that replaced {@code removedLines + 1} lines starting at
+	* {@code firstLine} with {@code addedLines + 1} lines.
+	*
+	* @param firstLine The line containing the start of the edit
+	* @param removedLines The number of line breaks removed by the edit
+	* @param addedLines The number of line breaks inserted by the edit
+	*/
+	void onLinesReplaced(int firstLine, int removedLines, int addedLines) {
+		mVersion++;
+		if (mLineCount == 0 || firstLine + removedLines >= mLineCount) {
+			invalidateAll();
+			return;
+		}
+
+		// Splice the checkpoint array so lines after the edit keep their states
+		int delta = addedLines - removedLines;
+		int tailFrom = firstLine + removedLines + 1;
+		int newCount = mLineCount + delta;
+		if (newCount > mLineStates.length) {
+			int[] grown = new int[Math.max(newCount, mLineStates.length * 2)];
+			System.arraycopy(mLineStates, 0, grown, 0, mLineCount);
+			mLineStates = grown;
+		}
+		System.arraycopy(mLineStates, tailFrom, mLineStates, tailFrom + delta, mLineCount - tailFrom);
+		for (int i = firstLine; i <= firstLine + addedLines; i++) {
+			mLineStates[i] = STATE_UNKNOWN;
+		}
+		mLineCount = newCount;
+
+		// Keep the plain region anchored to its text; an edit reaching into it moves its start
+		if (mPlainFrom != Integer.MAX_VALUE) {
+			if (firstLine + removedLines < mPlainFrom) {
+				mPlainFrom += delta;
+			} else if (firstLine < mPlainFrom) {
+				mPlainFrom = firstLine;
+			}
+		}
+
+		// Grow the dirty range to cover the edited lines
+		if (isDirty()) {
+			if (mDirtyTo != Integer.MAX_VALUE && mDirtyTo > firstLine + removedLines) {
+				mDirtyTo += delta;
+			}
+			mDirtyFrom = Math.min(mDirtyFrom, firstLine);
+			mDirtyTo = Math.max(mDirtyTo, firstLine + addedLines);
+		} else {
+			mDirtyFrom = firstLine;
+			mDirtyTo = firstLine + addedLines;
+		}
+	}
+
+	/**
+	* Captures everything needed to re-lex the dirty lines of {@code text}.
+	*
+	* @param text The current document
+	* @param lines The line index of {@code text}
+	* @return A job ready to run on any thread, or null if nothing is dirty
+	*/
+	Job createJob(CharSequence text, LineIndex lines) {
+		if (mLexer == null || !isDirty()) {
+			return null;
+		}
+
+		int lineCount = lines.getLineCount();
+		if (mLineCount != lineCount) {
+			// Checkpoints are out of sync with the text; start over
+			if (mLineStates.length < lineCount) {
+				mLineStates = new int[lineCount];
+			}
+			for (int i = 0; i < lineCount; i++) {
+				mLineStates[i] = STATE_UNKNOWN;
+			}
+			mLineCount = lineCount;
+			mDirtyFrom = 0;
+			mDirtyTo = Integer.MAX_VALUE;
+			mPlainFrom = Integer.MAX_VALUE;
+		}
+
+		// Edits inside the plain region do not restart highlighting there
+		if (mDirtyFrom >= mPlainFrom) {
+			mDirtyFrom = 1;
+			mDirtyTo = 0;
+			return null;
+		}
+
+		int fromLine = Math.min(mDirtyFrom, lineCount - 1);
+		int state = fromLine > 0 ? mLineStates[fromLine - 1] : SyntaxLexer.STATE_DEFAULT;
+		if (state == STATE_UNKNOWN) {
+			fromLine = 0;
+			state = SyntaxLexer.STATE_DEFAULT;
+		}
+
+		// Copy the dirty lines and a margin of whole lines after them; a full pass copies everything
+		int length = text.length();
+		int windowLastLine = lineCount - 1;
+		int windowEnd = length;
+		if (mDirtyTo < lineCount - 1) {
+			int marginEnd = lines.getLineStart(mDirtyTo + 1) + SNAPSHOT_MARGIN_CHARS;
+			if (marginEnd < length) {
+				windowLastLine = lines.findLine(marginEnd);
+				if (windowLastLine < lineCount - 1) {
+					windowEnd = lines.getLineStart(windowLastLine + 1) - 1;
+				}
+			}
+		}
+		int startOffset = lines.getLineStart(fromLine);
+
+		int previousCount = windowLastLine - fromLine + 1;
+		if (mPreviousStates.length < previousCount) {
+			mPreviousStates = new int[Math.max(previousCount, mPreviousStates.length * 2)];
+		}
+		System.arraycopy(mLineStates, fromLine, mPreviousStates, 0, previousCount);
+
+		return new Job(mLexer, new TextWindow(text, startOffset, windowEnd), length, windowEnd, mVersion,
+		fromLine, Integer.MAX_VALUE, startOffset, state, mDirtyTo, mPreviousStates, previousCount, false, mTimeBudgetNanos);
+	}
+
+	/**
+	* Creates a job that lexes a fixed window of lines of the live text, for showing
+	* colors before the full job has finished. Lines whose preceding checkpoint is not
+	* known yet are lexed speculatively from the default state. The result is only
+	* meant to be drawn; {@link #commit} always rejects it.
+	*
+	* @param text The current document; the job must run before it changes
+	* @param lines The line index of {@code text}
+	* @param fromLine The first line of the window
+	* @param toLine The last line of the window, inclusive
+	*/
+	Job createPreviewJob(CharSequence text, LineIndex lines, int fromLine, int toLine) {
+		int state = SyntaxLexer.STATE_DEFAULT;
+		if (fromLine > 0 && fromLine <= mLineCount && mLineStates[fromLine - 1] != STATE_UNKNOWN) {
+			state = mLineStates[fromLine - 1];
+		}
+		return new Job(mLexer, text, text.length(), text.length(), mVersion, fromLine, toLine,
+		lines.getLineStart(fromLine), state, Integer.MAX_VALUE, null, 0, true, 0);
+	}
+
+	/**
+	* Stores the checkpoints computed by a finished job.
+	*
+	* @return True if the job matches the current document and its tokens should be applied
+	*/
+	boolean commit(Job job) {
+		if (job.mVersion != mVersion || !job.mCompleted || job.mCancelled || job.mPreview) {
+			return false;
+		}
+		System.arraycopy(job.mStates, 0, mLineStates, job.mFromLine, job.mStateCount);
+		int lexedTo = job.mFromLine + job.mStateCount;
+		if (job.mTruncated) {
+			for (int i = lexedTo; i < mLineCount; i++) {
+				mLineStates[i] = STATE_UNKNOWN;
+			}
+			mPlainFrom = lexedTo;
+		} else if (job.mWindowExhausted) {
+			// The end state had not settled by the end of the copied lines; the next job continues
+			// from there, unless the lines it reached were given up on
+			mDirtyFrom = lexedTo;
+			mDirtyTo = lexedTo;
+			if (lexedTo > mPlainFrom) {
+				mPlainFrom = lexedTo;
+			}
+			return true;
+		} else if (lexedTo > mPlainFrom) {
+			// The pass lexed through the plain region to the end of the document
+			mPlainFrom = Integer.MAX_VALUE;
+		}
+		mDirtyFrom = 1;
+		mDirtyTo = 0;
+		return true;
+	}
+
+	/**
+	* One re-lexing pass over an immutable text snapshot.
+	*/
+	static final class Job implements Runnable, SyntaxLexer.TokenSink {
+		private final SyntaxLexer mLexer;
+		private final CharSequence mText;
+		private final int mTextLength;
+		private final int mWindowEnd; // Lines ending after this offset were not copied
+		private final int mVersion;
+		private final int mFromLine;
+		private final int mLastLine;
+		private final int mStartOffset;
+		private final int mStartState;
+		private final int mDirtyTo;
+		private final int[] mPreviousStates;
+		private final int mPreviousStateCount;
+		private final boolean mPreview;
+		private final long mBudgetNanos;
+
+		private volatile boolean mCancelled;
+		private volatile boolean mCompleted;
+		private long mDeadline; // System.nanoTime() the budget runs out at, or 0
+		private boolean mTruncated;
+		private boolean mWindowExhausted;
+
+		// Results
+		private int mRangeEnd;
+		private int[] mStates;
+		private int[] mLineOffsets;
+		private int[] mLineFirstTokens;
+		private int mStateCount;
+		private int[] mTokenStarts = new int[256];
+		private int[] mTokenEnds = new int[256];
+		private int[] mTokenTypes = new int[256];
+		private int mTokenCount;
+
+		private Job(SyntaxLexer lexer, CharSequence text, int textLength, int windowEnd, int version, int fromLine, int lastLine,
+		int startOffset, int startState, int dirtyTo, int[] previousStates, int previousStateCount, boolean preview, long budgetNanos) {
+			mLexer = lexer;
+			mText = text;
+			mTextLength = textLength;
+			mWindowEnd = windowEnd;
+			mVersion = version;
+			mFromLine = fromLine;
+			mLastLine = lastLine;
+			mStartOffset = startOffset;
+			mStartState = startState;
+			mDirtyTo = dirtyTo;
+			mPreviousStates = previousStates;
+			mPreviousStateCount = previousStateCount;
+			mPreview = preview;
+			mBudgetNanos = budgetNanos;
+			int capacity = Math.max(1, Math.min(previousStateCount, 1024));
+			mStates = new int[capacity];
+			mLineOffsets = new int[capacity];
+			mLineFirstTokens = new int[capacity];
+		}
+
+		@Override
+		public void run() {
+			CharSequence text = mText;
+			int length = mTextLength;
+			int windowEnd = mWindowEnd;
+			int state = mStartState;
+			int lineStart = mStartOffset;
+			int line = mFromLine;
+			long deadline = mBudgetNanos > 0 ? System.nanoTime() + mBudgetNanos : 0;
+			mDeadline = deadline;
+			int checkedAt = lineStart;
+
+			while (true) {
+				if ((line - mFromLine) % CANCEL_CHECK_INTERVAL == 0 || lineStart - checkedAt >= CANCEL_CHECK_CHARS) {
+					if (mCancelled) {
+						return;
+					}
+					if (deadline != 0 && line > mFromLine && System.nanoTime() - deadline > 0) {
+						// Out of time: everything after the lexed lines is shown as plain text
+						mTruncated = true;
+						mRangeEnd = length;
+						break;
+					}
+					checkedAt = lineStart;
+				}
+
+				int lineEnd = lineStart;
+				while (lineEnd < windowEnd && text.charAt(lineEnd) != '\n') lineEnd++;
+				int index = line - mFromLine;
+				if (index == mStates.length) {
+					int capacity = Math.max(index * 2, 16);
+					mStates = grow(mStates, capacity);
+					mLineOffsets = grow(mLineOffsets, capacity);
+					mLineFirstTokens = grow(mLineFirstTokens, capacity);
+				}
+				mLineOffsets[index] = lineStart;
+				mLineFirstTokens[index] = mTokenCount;
+
+				state = mLexer.lexLine(text, lineStart, lineEnd, state, this);
+				if (state == SyntaxLexer.STOPPED) {
+					if (mCancelled) {
+						return;
+					}
+					// Out of time within a long line: the line is left plain along with the rest
+					mTokenCount = mLineFirstTokens[index];
+					mTruncated = true;
+					mRangeEnd = length;
+					break;
+				}
+				mRangeEnd = lineEnd;
+				mStates[index] = state;
+				mStateCount = index + 1;
+
+				int previous = index < mPreviousStateCount ? mPreviousStates[index] : STATE_UNKNOWN;
+				if (lineEnd == length || line >= mLastLine || (line >= mDirtyTo && previous == state)) {
+					break;
+				}
+				if (lineEnd == windowEnd) {
+					mWindowExhausted = true;
+					break;
+				}
+
+				lineStart = lineEnd + 1;
+				line++;
+			}
+
+			mCompleted = true;
+		}
+
+		/**
+		* Asks a running job to stop; its result will be rejected by {@link #commit}.
+		*/
+		void cancel() {
+			mCancelled = true;
+		}
+
+		boolean isCancelled() {
+			return mCancelled;
+		}
+
+		/**
+		* Returns whether the job ran out of time before reaching the end of its range.
+		* Its range then extends to the end of the text, past the last lexed line.
+		*/
+		boolean isTruncated() {
+			return mTruncated;
+		}
+
+		int getVersion() {
+			return mVersion;
+		}
+
+		/**
+		* Returns the last line the edits touched; the job may lex further until the state converges.
+		*/
+		int getDirtyToLine() {
+			return mDirtyTo;
+		}
+
+		int getFromLine() {
+			return mFromLine;
+		}
+
+		/** Returns the number of lines the job lexed, starting at {@link #getFromLine()}. */
+		int getLineCount() {
+			return mStateCount;
+		}
+
+		/** Returns the start offset of the {@code index}-th lexed line. */
+		int getLineOffset(int index) {
+			return mLineOffsets[index];
+		}
+
+		/** Returns the first token of the {@code index}-th lexed line; {@code getLineCount()} gives the token count. */
+		int getLineFirstToken(int index) {
+			return index < mStateCount ? mLineFirstTokens[index] : mTokenCount;
+		}
+
+		int getTextLength() {
+			return mTextLength;
+		}
+
+		int getRangeStart() {
+			return mStartOffset;
+		}
+
+		int getRangeEnd() {
+			return mRangeEnd;
+		}
+
+		int getTokenCount() {
+			return mTokenCount;
+		}
+
+		int getTokenStart(int index) {
+			return mTokenStarts[index];
+		}
+
+		int getTokenEnd(int index) {
+			return mTokenEnds[index];
+		}
+
+		int getTokenType(int index) {
+			return mTokenTypes[index];
+		}
+
+		/**
+		* Returns the index of the first token ending after {@code offset}, or the token count if none does.
+		*/
+		int findToken(int offset) {
+			int low = 0;
+			int high = mTokenCount;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (mTokenEnds[mid] <= offset) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		@Override
+		public boolean shouldStop() {
+			return mCancelled || (mDeadline != 0 && System.nanoTime() - mDeadline > 0);
+		}
+
+		@Override
+		public void onToken(int start, int end, int type) {
+			if (mTokenCount == mTokenStarts.length) {
+				int capacity = mTokenCount * 2;
+				mTokenStarts = grow(mTokenStarts, capacity);
+				mTokenEnds = grow(mTokenEnds, capacity);
+				mTokenTypes = grow(mTokenTypes, capacity);
+			}
+			mTokenStarts[mTokenCount] = start;
+			mTokenEnds[mTokenCount] = end;
+			mTokenTypes[mTokenCount] = type;
+			mTokenCount++;
+		}
+	}
+
+	/**
+	* A copy of the lines a job lexes that keeps their offsets in the document. Only the
+	* copied range can be read; {@link #length()} is the length of the whole document.
+	*/
+	private static final class TextWindow implements CharSequence {
+		private final char[] mChars;
+		private final int mStart;
+		private final int mLength;
+
+		TextWindow(CharSequence text, int start, int end) {
+			mChars = new char[end - start];
+			mStart = start;
+			mLength = text.length();
+			if (text instanceof String) {
+				((String) text).getChars(start, end, mChars, 0);
+			} else if (text instanceof GetChars) {
+				((GetChars) text).getChars(start, end, mChars, 0);
+			} else {
+				for (int i = start; i < end; i++) {
+					mChars[i - start] = text.charAt(i);
+				}
+			}
+		}
+
+		@Override
+		public int length() {
+			return mLength;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return mChars[index - mStart];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new String(mChars, start - mStart, end - start);
+		}
+
+		@Override
+		public String toString() {
+			return new String(mChars);
+		}
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		int[] grown = new int[capacity];
+		System.arraycopy(array, 0, grown, 0, Math.min(array.length, capacity));
+		return grown;
+	}
+}
@@ -0,0 +1,404 @@
+package com.vrases.sketchyas.codeviewer;
+
+/**
+* Single-pass tokenizer driven by a {@link Grammar}.
+* <p>
+* Each line is scanned exactly once, left to right, and every character belongs to
+* at most one token, so keywords inside strings or comments are never recolored.
+* Constructs that can span lines (block comments, triple-quoted, template, verbatim
+* and raw strings) are carried from one line to the next as an integer state.
+* The lexer keeps no mutable fields and may be shared between threads.
+*/
+final class SyntaxLexer {
+
+	// Line end states
+	static final int STATE_DEFAULT = 0;
+	static final int STATE_BLOCK_COMMENT = 1;
+	static final int STATE_TRIPLE_DOUBLE_QUOTE = 2;
+	static final int STATE_TRIPLE_SINGLE_QUOTE = 3;
+	static final int STATE_TEMPLATE_STRING = 4;
+	static final int STATE_VERBATIM_STRING = 5;
+	static final int STATE_RAW_STRING = 6;
+
+	/** Returned instead of a state when the sink asked to stop in the middle of a line. */
+	static final int STOPPED = -2;
+
+	/** Number of characters lexed within a line between checks of {@link TokenSink#shouldStop()}. */
+	private static final int STOP_CHECK_CHARS = 4 * 1024;
+
+	/**
+	* Receives the tokens of a line in ascending, non-overlapping order.
+	* Plain text is not reported.
+	*/
+	interface TokenSink {
+		void onToken(int start, int end, int type);
+
+		/**
+		* Returns whether lexing should stop; asked every few thousand characters within
+		* long lines, so a single huge line cannot outlast a time budget.
+		*/
+		boolean shouldStop();
+	}
+
+	private final Grammar mGrammar;
+
+	SyntaxLexer(Grammar grammar) {
+		mGrammar = grammar;
+	}
+
+	Grammar getGrammar() {
+		return mGrammar;
+	}
+
+	/**
+	* Tokenizes one line.
+	*
+	* @param text The document
+	* @param start Offset of the first character of the line
+	* @param end Offset just past the last character of the line, excluding the line break
+	* @param state The state at the end of the previous line
+	* @param sink Receives the tokens found on the line
+	* @return The state at the end of this line, or {@link #STOPPED} if the sink asked to stop
+	*/
+	int lexLine(CharSequence text, int start, int end, int state, TokenSink sink) {
+		Grammar g = mGrammar;
+		int i = start;
+
+		// Finish a construct left open by a previous line
+		if (state != STATE_DEFAULT) {
+			int close = scanToClose(text, i, end, state);
+			int type = state == STATE_BLOCK_COMMENT ? TokenType.COMMENT : TokenType.STRING;
+			if (close < 0) {
+				if (end > i) sink.onToken(i, end, type);
+				return state;
+			}
+			if (close > i) sink.onToken(i, close, type);
+			i = close;
+		}
+
+		boolean expectType = false;
+		boolean expectFunction = false;
+		int checkAt = i + STOP_CHECK_CHARS;
+
+		while (i < end) {
+			if (i >= checkAt) {
+				if (sink.shouldStop()) {
+					return STOPPED;
+				}
+				checkAt = i + STOP_CHECK_CHARS;
+			}
+			char c = text.charAt(i);
+
+			if (c == ' ' || c == '\t' || c == '\r') {
+				i++;
+				continue;
+			}
+
+			// Comments
+			if (g.lineComment != null && startsWith(text, i, end, g.lineComment)) {
+				sink.onToken(i, end, TokenType.COMMENT);
+				return STATE_DEFAULT;
+			}
+			if (g.blockCommentStart != null && startsWith(text, i, end, g.blockCommentStart)) {
+				int close = scanToClose(text, i + g.blockCommentStart.length(), end, STATE_BLOCK_COMMENT);
+				if (close < 0) {
+					sink.onToken(i, end, TokenType.COMMENT);
+					return STATE_BLOCK_COMMENT;
+				}
+				sink.onToken(i, close, TokenType.COMMENT);
+				i = close;
+				continue;
+			}
+
+			// Strings that may span lines
+			int multiLineState = STATE_DEFAULT;
+			int openLength = 0;
+			if (g.rawStringDelimiter != null && startsWith(text, i, end, g.rawStringDelimiter)) {
+				multiLineState = STATE_RAW_STRING;
+				openLength = g.rawStringDelimiter.length();
+			} else if (g.tripleDoubleQuoteStrings && startsWith(text, i, end, "\"\"\"")) {
+				multiLineState = STATE_TRIPLE_DOUBLE_QUOTE;
+				openLength = 3;
+			} else if (g.tripleSingleQuoteStrings && startsWith(text, i, end, "'''")) {
+				multiLineState = STATE_TRIPLE_SINGLE_QUOTE;
+				openLength = 3;
+			} else if (g.templateStrings && c == '`') {
+				multiLineState = STATE_TEMPLATE_STRING;
+				openLength = 1;
+			} else if (g.verbatimStrings && c == '@' && i + 1 < end && text.charAt(i + 1) == '"') {
+				multiLineState = STATE_VERBATIM_STRING;
+				openLength = 2;
+			}
+			if (multiLineState != STATE_DEFAULT) {
+				int close = scanToClose(text, i + openLength, end, multiLineState);
+				if (close < 0) {
+					sink.onToken(i, end, TokenType.STRING);
+					return multiLineState;
+				}
+				sink.onToken(i, close, TokenType.STRING);
+				i = close;
+				continue;
+			}
+
+			// Single-line strings and character literals
+			if (c == '"' || (c == '\'' && g.singleQuoteStrings)) {
+				int close = scanQuoted(text, i + 1, end, c);
+				sink.onToken(i, close, TokenType.STRING);
+				i = close;
+				continue;
+			}
+
+			// Numbers
+			if (c >= '0' && c <= '9') {
+				int close = scanNumber(text, i, end);
+				sink.onToken(i, close, TokenType.NUMBER);
+				i = close;
+				continue;
+			}
+
+			// Annotations, decorators and attributes
+			if (c == '@' && g.annotationStyle == Grammar.ANNOTATIONS_AT
+			&& i + 1 < end && isIdentifierStart(text.charAt(i + 1))) {
+				int j = i + 1;
+				while (j < end && (isIdentifierPart(text.charAt(j)) || text.charAt(j) == '.')) j++;
+				sink.onToken(i, j, TokenType.ANNOTATION);
+				i = j;
+				continue;
+			}
+			if (c == '[' && g.annotationStyle == Grammar.ANNOTATIONS_BRACKET && isLineLeading(text, start, i)) {
+				int close = scanAttribute(text, i + 1, end);
+				if (close > 0) {
+					sink.onToken(i, close, TokenType.ANNOTATION);
+					i = close;
+					continue;
+				}
+			}
+
+			// Identifiers and keywords
+			if (isIdentifierStart(c)) {
+				// Hash while scanning so the word is classified without being copied
+				KeywordTable table = g.keywordTable;
+				int hash = table.hash(0, c);
+				int j = i + 1;
+				while (j < end) {
+					char d = text.charAt(j);
+					if (!isIdentifierPart(d)) break;
+					hash = table.hash(hash, d);
+					j++;
+				}
+				int entry = table.lookup(text, i, j, hash);
+
+				int type = TokenType.PLAIN;
+				if (expectType) {
+					type = TokenType.CLASS;
+				} else if (expectFunction) {
+					type = TokenType.METHOD;
+				} else if (entry != 0) {
+					type = KeywordTable.getType(entry);
+				} else if (g.capitalizedTypes && c >= 'A' && c <= 'Z') {
+					type = TokenType.CLASS;
+				} else if (isMethodCall(text, c, j, end)) {
+					type = TokenType.METHOD;
+				}
+
+				boolean reserved = !expectType && !expectFunction;
+				expectType = reserved && (entry & KeywordTable.FLAG_DECLARES_TYPE) != 0;
+				expectFunction = reserved && (entry & KeywordTable.FLAG_DECLARES_FUNCTION) != 0;
+
+				if (type != TokenType.PLAIN) sink.onToken(i, j, type);
+				i = j;
+				continue;
+			}
+
+			// Operators
+			if (g.operatorChars.indexOf(c) >= 0) {
+				int j = i + 1;
+				while (j < end && g.operatorChars.indexOf(text.charAt(j)) >= 0
+				&& !startsCommentAt(text, j, end)) {
+					j++;
+				}
+				sink.onToken(i, j, TokenType.OPERATOR);
+				i = j;
+				continue;
+			}
+
+			// Punctuation and anything else stays plain
+			i++;
+		}
+
+		return STATE_DEFAULT;
+	}
+
+	/**
+	* Finds the end of a construct that spans lines.
+	*
+	* @return The offset just past the closing delimiter, or -1 if the line ends first
+	*/
+	private int scanToClose(CharSequence text, int from, int end, int state) {
+		switch (state) {
+			case STATE_BLOCK_COMMENT:
+			return indexAfter(text, from, end, mGrammar.blockCommentEnd);
+
+			case STATE_TRIPLE_DOUBLE_QUOTE:
+			return indexAfterEscaped(text, from, end, "\"\"\"");
+
+			case STATE_TRIPLE_SINGLE_QUOTE:
+			return indexAfterEscaped(text, from, end, "'''");
+
+			case STATE_TEMPLATE_STRING:
+			return indexAfterEscaped(text, from, end, "`");
+
+			case STATE_RAW_STRING:
+			// Raw strings have no escapes, so a trailing backslash does not hide the delimiter
+			return indexAfter(text, from, end, mGrammar.rawStringDelimiter);
+
+			case STATE_VERBATIM_STRING:
+			// Verbatim strings have no escapes; a doubled quote stands for one quote
+			for (int i = from; i < end; i++) {
+				if (text.charAt(i) == '"') {
+					if (i + 1 < end && text.charAt(i + 1) == '"') {
+						i++;
+					} else {
+						return i + 1;
+					}
+				}
+			}
+			return -1;
+
+			default:
+			return from;
+		}
+	}
+
+	/**
+	* Scans a quoted literal that ends at the matching quote or at the end of the line.
+	*/
+	private static int scanQuoted(CharSequence text, int from, int end, char quote) {
+		for (int i = from; i < end; i++) {
+			char c = text.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == quote) {
+				return i + 1;
+			}
+		}
+		return end;
+	}
+
+	private int scanNumber(CharSequence text, int from, int end) {
+		int i = from;
+		if (text.charAt(i) == '0' && i + 1 < end && (text.charAt(i + 1) == 'x' || text.charAt(i + 1) == 'X')) {
+			i += 2;
+			while (i < end && (isHexDigit(text.charAt(i)) || text.charAt(i) == '_')) i++;
+		} else {
+			i = skipDigits(text, i, end);
+			if (i + 1 < end && text.charAt(i) == '.' && isDigit(text.charAt(i + 1))) {
+				i = skipDigits(text, i + 1, end);
+			}
+			if (i < end && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+				int j = i + 1;
+				if (j < end && (text.charAt(j) == '+' || text.charAt(j) == '-')) j++;
+				if (j < end && isDigit(text.charAt(j))) {
+					i = skipDigits(text, j, end);
+				}
+			}
+		}
+		if (i < end && mGrammar.numberSuffixes.indexOf(text.charAt(i)) >= 0) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	* Scans a C#-style attribute such as {@code [Serializable]}.
+	*
+	* @return The offset just past the closing bracket, or -1 if this is not an attribute
+	*/
+	private static int scanAttribute(CharSequence text, int from, int end) {
+		int i = skipBlanks(text, from, end);
+		if (i >= end || !isIdentifierStartChar(text.charAt(i))) return -1;
+		while (i < end && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_' || text.charAt(i) == '.')) i++;
+		i = skipBlanks(text, i, end);
+		return i < end && text.charAt(i) == ']' ? i + 1 : -1;
+	}
+
+	private boolean isMethodCall(CharSequence text, char first, int wordEnd, int end) {
+		int style = mGrammar.methodCallStyle;
+		if (style == Grammar.METHOD_CALLS_NONE) return false;
+		if (style == Grammar.METHOD_CALLS_LOWERCASE && !(first >= 'a' && first <= 'z')) return false;
+		int i = skipBlanks(text, wordEnd, end);
+		return i < end && text.charAt(i) == '(';
+	}
+
+	private boolean startsCommentAt(CharSequence text, int i, int end) {
+		return (mGrammar.lineComment != null && startsWith(text, i, end, mGrammar.lineComment))
+		|| (mGrammar.blockCommentStart != null && startsWith(text, i, end, mGrammar.blockCommentStart));
+	}
+
+	private boolean isIdentifierStart(char c) {
+		return isIdentifierStartChar(c) || (c == '$' && mGrammar.dollarInIdentifiers);
+	}
+
+	private boolean isIdentifierPart(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || (c == '$' && mGrammar.dollarInIdentifiers);
+	}
+
+	private static boolean isIdentifierStartChar(char c) {
+		return Character.isLetter(c) || c == '_';
+	}
+
+	private static boolean isLineLeading(CharSequence text, int lineStart, int i) {
+		for (int j = lineStart; j < i; j++) {
+			char c = text.charAt(j);
+			if (c != ' ' && c != '\t') return false;
+		}
+		return true;
+	}
+
+	private static int indexAfter(CharSequence text, int from, int end, String delimiter) {
+		int last = end - delimiter.length();
+		for (int i = from; i <= last; i++) {
+			if (startsWith(text, i, end, delimiter)) return i + delimiter.length();
+		}
+		return -1;
+	}
+
+	private static int indexAfterEscaped(CharSequence text, int from, int end, String delimiter) {
+		for (int i = from; i < end; i++) {
+			char c = text.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (startsWith(text, i, end, delimiter)) {
+				return i + delimiter.length();
+			}
+		}
+		return -1;
+	}
+
+	static boolean startsWith(CharSequence text, int i, int end, String prefix) {
+		int length = prefix.length();
+		if (i + length > end) return false;
+		for (int k = 0; k < length; k++) {
+			if (text.charAt(i + k) != prefix.charAt(k)) return false;
+		}
+		return true;
+	}
+
+	private static int skipBlanks(CharSequence text, int i, int end) {
+		while (i < end && (text.charAt(i) == ' ' || text.charAt(i) == '\t')) i++;
+		return i;
+	}
+
+	private static int skipDigits(CharSequence text, int i, int end) {
+		while (i < end && (isDigit(text.charAt(i)) || text.charAt(i) == '_')) i++;
+		return i;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isHexDigit(char c) {
+		return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+}
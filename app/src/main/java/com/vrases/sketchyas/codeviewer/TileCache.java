@@ -0,0 +1,121 @@
+package com.vrases.sketchyas.codeviewer;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+/**
+* Least recently used cache of square bitmap tiles holding rendered content.
+* <p>
+* Tiles are addressed by row and column in content coordinates. The cache holds at most
+* as many tiles as fit in its byte budget; once full, obtaining a new tile reuses the
+* bitmap of the least recently used one, so scrolling through a document allocates no
+* bitmaps after the cache has filled up. The number of tiles is small, so lookups are a
+* scan over plain arrays.
+*/
+final class TileCache {
+
+	/** Width and height of a tile, in pixels. */
+	static final int TILE_SIZE = 256;
+
+	private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+
+	private final long[] mKeys;
+	private final long[] mLastUsed;
+	private final boolean[] mValid;
+	private final Bitmap[] mBitmaps;
+	private int mCount;
+	private long mClock;
+
+	/**
+	* @param maxBytes The memory the tiles may take; at least one tile is always allowed
+	*/
+	TileCache(int maxBytes) {
+		int capacity = Math.max(1, maxBytes / TILE_BYTES);
+		mKeys = new long[capacity];
+		mLastUsed = new long[capacity];
+		mValid = new boolean[capacity];
+		mBitmaps = new Bitmap[capacity];
+	}
+
+	/** Returns the maximum number of tiles. */
+	int getCapacity() {
+		return mBitmaps.length;
+	}
+
+	/**
+	* Returns the rendered tile at a position, or null if it is not cached.
+	*/
+	Bitmap get(int row, int column) {
+		long key = key(row, column);
+		for (int i = 0; i < mCount; i++) {
+			if (mValid[i] && mKeys[i] == key) {
+				mLastUsed[i] = ++mClock;
+				return mBitmaps[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	* Returns a cleared bitmap to render the tile at a position into, evicting the least
+	* recently used tile if the cache is full. The tile counts as cached from now on.
+	*/
+	Bitmap obtain(int row, int column) {
+		int slot = -1;
+		for (int i = 0; i < mCount; i++) {
+			if (!mValid[i]) {
+				slot = i;
+				break;
+			}
+		}
+		if (slot < 0 && mCount < mBitmaps.length) {
+			slot = mCount++;
+			mBitmaps[slot] = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+		}
+		if (slot < 0) {
+			slot = 0;
+			for (int i = 1; i < mCount; i++) {
+				if (mLastUsed[i] < mLastUsed[slot]) slot = i;
+			}
+		}
+
+		mKeys[slot] = key(row, column);
+		mLastUsed[slot] = ++mClock;
+		mValid[slot] = true;
+		Bitmap bitmap = mBitmaps[slot];
+		bitmap.eraseColor(Color.TRANSPARENT);
+		return bitmap;
+	}
+
+	/**
+	* Drops the tiles of rows {@code [fromRow, toRow]}; their bitmaps are kept for reuse.
+	*/
+	void invalidateRows(int fromRow, int toRow) {
+		for (int i = 0; i < mCount; i++) {
+			int row = (int) (mKeys[i] >> 32);
+			if (row >= fromRow && row <= toRow) {
+				mValid[i] = false;
+			}
+		}
+	}
+
+	/** Drops all tiles; their bitmaps are kept for reuse. */
+	void invalidateAll() {
+		for (int i = 0; i < mCount; i++) {
+			mValid[i] = false;
+		}
+	}
+
+	/** Drops all tiles and frees their bitmaps. */
+	void release() {
+		for (int i = 0; i < mCount; i++) {
+			mBitmaps[i] = null;
+			mValid[i] = false;
+		}
+		mCount = 0;
+	}
+
+	private static long key(int row, int column) {
+		return ((long) row << 32) | (column & 0xFFFFFFFFL);
+	}
+}
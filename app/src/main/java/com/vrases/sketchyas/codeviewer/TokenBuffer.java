@@ -0,0 +1,197 @@
+package com.vrases.sketchyas.codeviewer;
+
+/**
+* Packed, object-free storage for the tokens of a whole document.
+* <p>
+* Tokens are kept in one {@code int[]}, two ints per token: the start offset relative
+* to the start of its line, and the length shifted left by {@link #TYPE_BITS} with the
+* token type in the low bits. A per-line index holds the first token of every line.
+* Because offsets are line-relative, edits only touch the tokens and index entries of
+* the lines they change; every other line stays valid as it is.
+*/
+final class TokenBuffer {
+
+	static final int TYPE_BITS = 4;
+	private static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+
+	// Two ints per token: relative start, then (length << TYPE_BITS) | type
+	private int[] mData = new int[512];
+	private int mTokenCount = 0;
+
+	// mLineIndex[line] is the first token of the line; mLineIndex[mLineCount] == mTokenCount
+	private int[] mLineIndex = new int[64];
+	private int mLineCount = 1;
+
+	/**
+	* Drops all tokens and sizes the buffer for a document with the given number of lines.
+	*/
+	void reset(int lineCount) {
+		lineCount = Math.max(1, lineCount);
+		if (mLineIndex.length < lineCount + 1) {
+			mLineIndex = new int[lineCount + 1];
+		}
+		for (int i = 0; i <= lineCount; i++) {
+			mLineIndex[i] = 0;
+		}
+		mLineCount = lineCount;
+		mTokenCount = 0;
+	}
+
+	int getLineCount() {
+		return mLineCount;
+	}
+
+	int getTokenCount() {
+		return mTokenCount;
+	}
+
+	/** Returns the index of the first token of a line. */
+	int getLineFirstToken(int line) {
+		return mLineIndex[line];
+	}
+
+	/** Returns the index just past the last token of a line. */
+	int getLineEndToken(int line) {
+		return mLineIndex[line + 1];
+	}
+
+	/** Returns a token's start offset relative to the start of its line. */
+	int getRelativeStart(int token) {
+		return mData[token * 2];
+	}
+
+	int getLength(int token) {
+		return mData[token * 2 + 1] >>> TYPE_BITS;
+	}
+
+	int getType(int token) {
+		return mData[token * 2 + 1] & TYPE_MASK;
+	}
+
+	/**
+	* Keeps tokens aligned with the text after an edit, the way spans would move.
+	* Edits inside one line shift the tokens after the edit point; edits that add or
+	* remove line breaks clear the lines involved until they are lexed again.
+	*
+	* @param firstLine The line containing the start of the edit
+	* @param column The offset of the edit within that line
+	* @param removedChars The number of characters removed
+	* @param addedChars The number of characters inserted
+	* @param removedLines The number of line breaks removed
+	* @param addedLines The number of line breaks inserted
+	*/
+	void onTextReplaced(int firstLine, int column, int removedChars, int addedChars, int removedLines, int addedLines) {
+		if (firstLine + removedLines >= mLineCount) {
+			reset(firstLine + addedLines + 1);
+			return;
+		}
+
+		if (removedLines == 0 && addedLines == 0) {
+			int delta = addedChars - removedChars;
+			int removedEnd = column + removedChars;
+			for (int token = mLineIndex[firstLine]; token < mLineIndex[firstLine + 1]; token++) {
+				int start = mData[token * 2];
+				int end = start + getLength(token);
+				if (start >= removedEnd) {
+					start += delta;
+					end += delta;
+				} else if (end > column) {
+					// The token overlaps the edit; keep only what is left of it
+					end = end > removedEnd ? end + delta : column;
+					start = Math.min(start, column);
+				}
+				mData[token * 2] = start;
+				mData[token * 2 + 1] = (Math.max(0, end - start) << TYPE_BITS) | getType(token);
+			}
+			return;
+		}
+
+		replaceLines(firstLine, removedLines + 1, addedLines + 1);
+	}
+
+	/**
+	* Drops the tokens of every line from {@code fromLine} to the end of the document.
+	*/
+	void clearLines(int fromLine) {
+		if (fromLine < mLineCount) {
+			replaceLines(fromLine, mLineCount - fromLine, mLineCount - fromLine);
+		}
+	}
+
+	/**
+	* Replaces {@code oldCount} lines starting at {@code fromLine} with {@code newCount} empty lines.
+	*/
+	private void replaceLines(int fromLine, int oldCount, int newCount) {
+		int firstToken = mLineIndex[fromLine];
+		int removedTokens = mLineIndex[fromLine + oldCount] - firstToken;
+		spliceTokens(firstToken, removedTokens, 0);
+
+		int delta = newCount - oldCount;
+		ensureLineCapacity(mLineCount + delta + 1);
+		System.arraycopy(mLineIndex, fromLine + oldCount, mLineIndex, fromLine + newCount, mLineCount + 1 - fromLine - oldCount);
+		for (int i = fromLine; i < fromLine + newCount; i++) {
+			mLineIndex[i] = firstToken;
+		}
+		for (int i = fromLine + newCount; i <= mLineCount + delta; i++) {
+			mLineIndex[i] -= removedTokens;
+		}
+		mLineCount += delta;
+	}
+
+	/**
+	* Stores the tokens a highlighting job produced, replacing those of the lines it covered.
+	*/
+	void setLines(SyntaxHighlighter.Job job) {
+		int fromLine = job.getFromLine();
+		int lineCount = Math.min(job.getLineCount(), mLineCount - fromLine);
+		if (lineCount <= 0) {
+			return;
+		}
+
+		int firstToken = mLineIndex[fromLine];
+		int oldTokens = mLineIndex[fromLine + lineCount] - firstToken;
+		int newTokens = job.getLineFirstToken(lineCount) - job.getLineFirstToken(0);
+		spliceTokens(firstToken, oldTokens, newTokens);
+
+		int token = firstToken;
+		for (int i = 0; i < lineCount; i++) {
+			mLineIndex[fromLine + i] = token;
+			int lineOffset = job.getLineOffset(i);
+			for (int k = job.getLineFirstToken(i); k < job.getLineFirstToken(i + 1); k++) {
+				int start = job.getTokenStart(k);
+				mData[token * 2] = start - lineOffset;
+				mData[token * 2 + 1] = ((job.getTokenEnd(k) - start) << TYPE_BITS) | job.getTokenType(k);
+				token++;
+			}
+		}
+
+		int delta = newTokens - oldTokens;
+		if (delta != 0) {
+			for (int i = fromLine + lineCount; i <= mLineCount; i++) {
+				mLineIndex[i] += delta;
+			}
+		}
+	}
+
+	/**
+	* Removes {@code removed} tokens at {@code at} and opens a gap of {@code added} tokens in their place.
+	*/
+	private void spliceTokens(int at, int removed, int added) {
+		int newCount = mTokenCount - removed + added;
+		if (newCount * 2 > mData.length) {
+			int[] grown = new int[Math.max(newCount * 2, mData.length * 2)];
+			System.arraycopy(mData, 0, grown, 0, mTokenCount * 2);
+			mData = grown;
+		}
+		System.arraycopy(mData, (at + removed) * 2, mData, (at + added) * 2, (mTokenCount - at - removed) * 2);
+		mTokenCount = newCount;
+	}
+
+	private void ensureLineCapacity(int capacity) {
+		if (capacity > mLineIndex.length) {
+			int[] grown = new int[Math.max(capacity, mLineIndex.length * 2)];
+			System.arraycopy(mLineIndex, 0, grown, 0, mLineCount + 1);
+			mLineIndex = grown;
+		}
+	}
+}
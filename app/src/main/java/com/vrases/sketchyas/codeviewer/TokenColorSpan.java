@@ -0,0 +1,31 @@
+package com.vrases.sketchyas.codeviewer;
+
+import android.text.TextPaint;
+import android.text.style.CharacterStyle;
+import android.text.style.UpdateAppearance;
+
+/**
+* Colors a token by looking its type up in a palette shared by all spans of a view.
+* <p>
+* Changing the palette array re-colors every span at the next draw, so switching
+* themes never has to touch the spans or run the lexer again.
+*/
+final class TokenColorSpan extends CharacterStyle implements UpdateAppearance {
+
+	private final int[] mPalette;
+	private final int mType;
+
+	TokenColorSpan(int[] palette, int type) {
+		mPalette = palette;
+		mType = type;
+	}
+
+	int getType() {
+		return mType;
+	}
+
+	@Override
+	public void updateDrawState(TextPaint paint) {
+		paint.setColor(mPalette[mType]);
+	}
+}
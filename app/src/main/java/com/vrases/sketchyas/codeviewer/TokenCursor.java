@@ -0,0 +1,162 @@
+package com.vrases.sketchyas.codeviewer;
+
+/**
+* Read-only view of the tokens produced by a {@link CodeViewer}'s highlighter.
+* <p>
+* A cursor reads the viewer's packed token storage directly: moving to the next token
+* only advances an index, and a cursor can be pointed at a new range as often as
+* needed, so iterating any number of tokens allocates nothing. Plain text is not
+* reported; every token has a {@link TokenType} id.
+* <pre>
+* TokenCursor cursor = codeViewer.getTokenCursor();
+* cursor.setLineRange(0, 99);
+* while (cursor.next()) {
+*     if (cursor.getType() == TokenType.METHOD) { ... cursor.getStart() ... }
+* }
+* </pre>
+* A cursor must be used on the UI thread and is only valid until the text changes;
+* set its range again after an edit. Lines that were edited but not highlighted again
+* yet report their old tokens, shifted along with the text.
+*/
+public final class TokenCursor {
+
+	private final TokenBuffer mBuffer;
+	private final LineIndex mLines;
+
+	// Current position; mToken is -1 before the first call to next()
+	private int mLine;
+	private int mLineStart;
+	private int mLineEndToken;
+	private int mToken;
+
+	// Range being iterated: up to line mLastLine and offset mRangeEnd
+	private int mLastLine;
+	private int mRangeEnd;
+
+	TokenCursor(TokenBuffer buffer, LineIndex lines) {
+		mBuffer = buffer;
+		mLines = lines;
+		setLineRange(0, -1);
+	}
+
+	/**
+	* Positions the cursor before the first token of line {@code firstLine}; iteration
+	* ends after the last token of line {@code lastLine}.
+	*
+	* @return This cursor
+	*/
+	public TokenCursor setLineRange(int firstLine, int lastLine) {
+		int lineCount = getLineCount();
+		firstLine = Math.max(0, firstLine);
+		lastLine = Math.min(lastLine, lineCount - 1);
+		mRangeEnd = Integer.MAX_VALUE;
+		moveToLine(firstLine, lastLine);
+		return this;
+	}
+
+	/**
+	* Positions the cursor before the first token that ends after {@code start};
+	* iteration ends before the first token that starts at or after {@code end}.
+	*
+	* @return This cursor
+	*/
+	public TokenCursor setRange(int start, int end) {
+		mRangeEnd = end;
+		int lineCount = getLineCount();
+		if (lineCount == 0 || end <= start) {
+			moveToLine(0, -1);
+			return this;
+		}
+		moveToLine(findLine(start), findLine(end - 1));
+
+		// Skip the tokens of the first line that end before the range
+		while (mToken + 1 < mLineEndToken && mLineStart + tokenEnd(mToken + 1) <= start) {
+			mToken++;
+		}
+		return this;
+	}
+
+	/**
+	* Advances to the next token in the range.
+	*
+	* @return False if there are no more tokens
+	*/
+	public boolean next() {
+		while (true) {
+			if (mToken + 1 < mLineEndToken) {
+				mToken++;
+				if (getStart() >= mRangeEnd) {
+					mLastLine = mLine - 1;
+					mLineEndToken = mToken;
+					return false;
+				}
+				// Tokens an edit deleted entirely stay behind empty until the line is lexed again
+				if (mBuffer.getLength(mToken) == 0) {
+					continue;
+				}
+				return true;
+			}
+			if (mLine >= mLastLine) {
+				return false;
+			}
+			mLine++;
+			mLineStart = mLines.getLineStart(mLine);
+			mToken = mBuffer.getLineFirstToken(mLine) - 1;
+			mLineEndToken = mBuffer.getLineEndToken(mLine);
+		}
+	}
+
+	/** Returns the {@link TokenType} id of the current token. */
+	public int getType() {
+		return mBuffer.getType(mToken);
+	}
+
+	/** Returns the offset of the first character of the current token. */
+	public int getStart() {
+		return mLineStart + mBuffer.getRelativeStart(mToken);
+	}
+
+	/** Returns the offset just past the last character of the current token. */
+	public int getEnd() {
+		return mLineStart + tokenEnd(mToken);
+	}
+
+	/** Returns the number of characters of the current token. */
+	public int getLength() {
+		return mBuffer.getLength(mToken);
+	}
+
+	/** Returns the line of the current token. */
+	public int getLine() {
+		return mLine;
+	}
+
+	private int tokenEnd(int token) {
+		return mBuffer.getRelativeStart(token) + mBuffer.getLength(token);
+	}
+
+	private void moveToLine(int firstLine, int lastLine) {
+		mLastLine = lastLine;
+		if (firstLine > lastLine) {
+			mLastLine = -1;
+			mLine = 0;
+			mLineStart = 0;
+			mToken = -1;
+			mLineEndToken = 0;
+			return;
+		}
+		mLine = firstLine;
+		mLineStart = mLines.getLineStart(firstLine);
+		mToken = mBuffer.getLineFirstToken(firstLine) - 1;
+		mLineEndToken = mBuffer.getLineEndToken(firstLine);
+	}
+
+	private int getLineCount() {
+		// The two only disagree while an edit is being processed
+		return Math.min(mBuffer.getLineCount(), mLines.getLineCount());
+	}
+
+	private int findLine(int offset) {
+		return Math.min(mLines.findLine(offset), getLineCount() - 1);
+	}
+}
@@ -0,0 +1,26 @@
+package com.vrases.sketchyas.codeviewer;
+
+/**
+* Token categories produced by the syntax lexer.
+* <p>
+* Ids are small, dense integers so they can be stored in primitive arrays and
+* used directly as an index into a color palette.
+*/
+public final class TokenType {
+
+	public static final int PLAIN = 0;
+	public static final int KEYWORD = 1;
+	public static final int STRING = 2;
+	public static final int COMMENT = 3;
+	public static final int NUMBER = 4;
+	public static final int ANNOTATION = 5;
+	public static final int CLASS = 6;
+	public static final int METHOD = 7;
+	public static final int OPERATOR = 8;
+
+	/** Number of token types; valid ids are {@code 0 .. COUNT - 1}. */
+	public static final int COUNT = 9;
+
+	private TokenType() {
+	}
+}
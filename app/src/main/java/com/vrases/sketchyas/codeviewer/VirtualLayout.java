@@ -0,0 +1,201 @@
+package com.vrases.sketchyas.codeviewer;
+
+import android.graphics.Paint;
+import android.text.TextPaint;
+
+/**
+* Line geometry for documents too large for a {@link android.text.Layout}.
+* <p>
+* Lines are never wrapped and all have the same height, so the position of any line is
+* a multiplication and the line at a given height a division; nothing is laid out or
+* measured up front. Offsets map to lines through the viewer's {@link LineIndex}. Only
+* horizontal positions need the text, and only for the lines that are asked about.
+* <p>
+* The content width is an estimate: every character counts as wide as the widest
+* common glyph, which is exact for the monospace fonts code is shown in and an upper
+* bound for others. With a monospace font, x positions and hit-testing are arithmetic
+* too, through {@link MonospaceMetrics}.
+* <p>
+* Lines hidden by folded regions take no space: a line's position is that of its visible
+* index in the {@link FoldModel}, and a hidden line sits at the header that hides it.
+*/
+final class VirtualLayout {
+
+	private final TextPaint mPaint;
+	private final LineIndex mLines;
+	private final MonospaceMetrics mMetrics;
+	private final FoldModel mFolds;
+	private CharSequence mText = "";
+
+	private int mLineHeight;
+	private int mBaselineOffset;
+	private float mCharWidth;
+	private int mWidth;
+
+	/**
+	* @param paint The paint the text is drawn with
+	* @param lines The line starts of the text; kept up to date by the caller
+	* @param metrics Advance widths and tab stops of {@code paint}
+	* @param folds The folded regions of the text; kept up to date by the caller
+	*/
+	VirtualLayout(TextPaint paint, LineIndex lines, MonospaceMetrics metrics, FoldModel folds) {
+		mPaint = paint;
+		mLines = lines;
+		mMetrics = metrics;
+		mFolds = folds;
+		updateMetrics();
+	}
+
+	/**
+	* Sets the text the layout describes; the line index must already describe it.
+	*/
+	void setText(CharSequence text) {
+		mText = text;
+		mWidth = estimateWidth();
+	}
+
+	/**
+	* Re-reads the font metrics; call after the text size or typeface of the paint may have changed.
+	*/
+	void updateMetrics() {
+		Paint.FontMetricsInt metrics = mPaint.getFontMetricsInt();
+		mLineHeight = Math.max(1, metrics.descent - metrics.ascent);
+		mBaselineOffset = -metrics.ascent;
+
+		float charWidth = mPaint.measureText("M");
+		if (charWidth != mCharWidth) {
+			mCharWidth = charWidth;
+			mWidth = estimateWidth();
+		}
+	}
+
+	CharSequence getText() {
+		return mText;
+	}
+
+	int getLineCount() {
+		return mLines.getLineCount();
+	}
+
+	int getHeight() {
+		return (getLineCount() - mFolds.getHiddenLineCount()) * mLineHeight;
+	}
+
+	/** Returns the estimated width of the widest line. */
+	int getWidth() {
+		return mWidth;
+	}
+
+	int getLineTop(int line) {
+		return mFolds.toVisibleLine(line) * mLineHeight;
+	}
+
+	int getLineBottom(int line) {
+		return (mFolds.toVisibleLine(line) + 1) * mLineHeight;
+	}
+
+	int getLineBaseline(int line) {
+		return mFolds.toVisibleLine(line) * mLineHeight + mBaselineOffset;
+	}
+
+	/** Returns the visible line at {@code vertical}, clamped to the first and last one. */
+	int getLineForVertical(int vertical) {
+		if (vertical <= 0) {
+			return 0;
+		}
+		int visibleLineCount = getLineCount() - mFolds.getHiddenLineCount();
+		return mFolds.toDocumentLine(Math.min(vertical / mLineHeight, visibleLineCount - 1));
+	}
+
+	int getLineForOffset(int offset) {
+		return mLines.findLine(offset);
+	}
+
+	int getLineStart(int line) {
+		return mLines.getLineStart(line);
+	}
+
+	/** Returns the offset just past the last character of a line, excluding its line break. */
+	int getLineEnd(int line) {
+		return line + 1 < getLineCount() ? mLines.getLineStart(line + 1) - 1 : mText.length();
+	}
+
+	/**
+	* Returns the x position of {@code offset} within its line, expanding tabs like the viewer draws them.
+	*/
+	float getPrimaryHorizontal(int offset) {
+		int start = getLineStart(getLineForOffset(offset));
+		if (mMetrics.update(mPaint)) {
+			float x = mMetrics.getHorizontal(mText, start, offset);
+			if (x >= 0) {
+				return x;
+			}
+		}
+
+		float x = 0;
+		int runStart = start;
+		for (int i = start; i <= offset; i++) {
+			if (i < offset && mText.charAt(i) != '\t') continue;
+
+			if (i > runStart) {
+				x += mPaint.measureText(mText, runStart, i);
+			}
+			if (i < offset) {
+				x = mMetrics.nextTabStop(x);
+			}
+			runStart = i + 1;
+		}
+		return x;
+	}
+
+	/**
+	* Returns the offset in {@code line} closest to {@code horizontal}.
+	*/
+	int getOffsetForHorizontal(int line, float horizontal) {
+		int start = getLineStart(line);
+		int end = getLineEnd(line);
+		if (mMetrics.update(mPaint)) {
+			int offset = mMetrics.getOffsetForHorizontal(mText, start, end, horizontal);
+			if (offset >= 0) {
+				return offset;
+			}
+		}
+
+		// Measure character by character, keeping surrogate pairs together
+		float left = 0;
+		int i = start;
+		while (i < end) {
+			char c = mText.charAt(i);
+			int next = Character.isHighSurrogate(c) && i + 1 < end ? i + 2 : i + 1;
+			float right = c == '\t' ? mMetrics.nextTabStop(left) : left + mPaint.measureText(mText, i, next);
+			if (horizontal < right) {
+				return horizontal - left <= right - horizontal ? i : next;
+			}
+			left = right;
+			i = next;
+		}
+		return end;
+	}
+
+	/**
+	* Estimates the width of the widest line in one pass over the characters, without measuring.
+	*/
+	private int estimateWidth() {
+		CharSequence text = mText;
+		int length = text.length();
+		float widest = 0;
+		float x = 0;
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c == '\n') {
+				widest = Math.max(widest, x);
+				x = 0;
+			} else if (c == '\t') {
+				x = mMetrics.nextTabStop(x);
+			} else {
+				x += mCharWidth;
+			}
+		}
+		return (int) Math.ceil(Math.max(widest, x));
+	}
+}
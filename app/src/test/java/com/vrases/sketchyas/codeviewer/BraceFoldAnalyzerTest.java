@@ -0,0 +1,64 @@
+package com.vrases.sketchyas.codeviewer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BraceFoldAnalyzerTest {
+
+	// Quotes, comment markers and line breaks, so braces move in and out of strings and comments
+	private static final String ALPHABET = "{}{}\n\n\"/*ab ";
+
+	@Test
+	public void foldsBetweenBraces() {
+		EditedDocument document = new EditedDocument("java", "a {\n\tb {\n\t\tc\n\t}\n}\n\"{\"\n{\n}");
+		BraceFoldAnalyzer analyzer = new BraceFoldAnalyzer();
+		analyzer.reset(document.lines.getLineCount());
+		analyzer.analyze(document.text, document.lines, document.tokens);
+
+		// The brace in the string and the region with nothing to hide do not fold
+		assertEquals(2, analyzer.getRegionCount());
+		assertEquals(0, analyzer.getRegionStarts()[0]);
+		assertEquals(3, analyzer.getRegionEnds()[0]);
+		assertEquals(1, analyzer.getRegionStarts()[1]);
+		assertEquals(2, analyzer.getRegionEnds()[1]);
+	}
+
+	@Test
+	public void incrementalEditsMatchFullAnalysis() {
+		Random random = new Random(21);
+		EditedDocument document = new EditedDocument("java", "class A {\n\tvoid b() {\n\t\tc();\n\t}\n}\n");
+		BraceFoldAnalyzer analyzer = new BraceFoldAnalyzer();
+		analyzer.reset(document.lines.getLineCount());
+
+		for (int step = 0; step < 5000; step++) {
+			document.replaceRandomly(random, ALPHABET);
+			analyzer.onLinesReplaced(document.getFirstLine(), document.getRemovedLines(), document.getAddedLines());
+
+			// Highlighting lags behind typing, so analyze with stale tokens in between
+			if (step % 3 == 0 && document.highlight()) {
+				analyzer.invalidateLines(document.getLexedFromLine(), document.getLexedToLine());
+			}
+			analyzer.analyze(document.text, document.lines, document.tokens);
+
+			if (step % 3 == 0) {
+				assertSameRegions("step " + step, document, analyzer);
+			}
+		}
+	}
+
+	private static void assertSameRegions(String message, EditedDocument document, BraceFoldAnalyzer analyzer) {
+		BraceFoldAnalyzer expected = new BraceFoldAnalyzer();
+		expected.reset(document.lines.getLineCount());
+		expected.analyze(document.text, document.lines, document.lexFromScratch());
+
+		int count = expected.getRegionCount();
+		assertEquals(message, count, analyzer.getRegionCount());
+		assertArrayEquals(message, Arrays.copyOf(expected.getRegionStarts(), count), Arrays.copyOf(analyzer.getRegionStarts(), count));
+		assertArrayEquals(message, Arrays.copyOf(expected.getRegionEnds(), count), Arrays.copyOf(analyzer.getRegionEnds(), count));
+	}
+}
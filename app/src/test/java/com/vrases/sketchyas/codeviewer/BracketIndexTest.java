@@ -0,0 +1,64 @@
+package com.vrases.sketchyas.codeviewer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BracketIndexTest {
+
+	// Brackets of every kind, quotes, comment markers and line breaks, so brackets move in and out of strings and comments
+	private static final String ALPHABET = "(){}[]{}\n\n\"/*a ";
+
+	@Test
+	public void matchesCodeBrackets() {
+		String code = "a(b[c]) {\n\t\")\" // }\n}\n(]";
+		EditedDocument document = new EditedDocument("java", code);
+		BracketIndex index = new BracketIndex();
+
+		assertEquals(6, index.findMatch(document.text, document.lines, document.tokens, 1));
+		assertEquals(3, index.findMatch(document.text, document.lines, document.tokens, 5));
+		assertEquals(code.indexOf("}\n("), index.findMatch(document.text, document.lines, document.tokens, 8));
+
+		// Brackets in strings and comments, and brackets of the wrong kind, are not matched
+		assertEquals(-1, index.findMatch(document.text, document.lines, document.tokens, code.indexOf(')', 10)));
+		assertEquals(-1, index.findMatch(document.text, document.lines, document.tokens, code.indexOf("}\n}")));
+		assertEquals(-1, index.findMatch(document.text, document.lines, document.tokens, code.length() - 2));
+		assertEquals(-1, index.findMatch(document.text, document.lines, document.tokens, 0));
+	}
+
+	@Test
+	public void incrementalEditsMatchFullScan() {
+		Random random = new Random(23);
+		EditedDocument document = new EditedDocument("java", "class A {\n\tvoid b(int[] c) {\n\t\td(c[0]);\n\t}\n}\n");
+		BracketIndex index = new BracketIndex();
+
+		for (int step = 0; step < 5000; step++) {
+			document.replaceRandomly(random, ALPHABET);
+			index.onLinesReplaced(document.getFirstLine(), document.getRemovedLines(), document.getAddedLines());
+
+			// Highlighting lags behind typing, so several edits may pile up between matches
+			if (step % 3 == 0 && document.highlight()) {
+				index.invalidateLines(document.getLexedFromLine(), document.getLexedToLine());
+			}
+			if (step % 2 == 0) {
+				index.findMatch(document.text, document.lines, document.tokens, random.nextInt(document.text.length() + 1));
+			}
+
+			if (step % 3 == 0) {
+				assertSameMatches("step " + step, document, index);
+			}
+		}
+	}
+
+	private static void assertSameMatches(String message, EditedDocument document, BracketIndex index) {
+		TokenBuffer tokens = document.lexFromScratch();
+		BracketIndex expected = new BracketIndex();
+		for (int offset = 0; offset < document.text.length(); offset++) {
+			assertEquals(message + ", offset " + offset,
+			expected.findMatch(document.text, document.lines, tokens, offset),
+			index.findMatch(document.text, document.lines, document.tokens, offset));
+		}
+	}
+}
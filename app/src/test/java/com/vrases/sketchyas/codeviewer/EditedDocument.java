@@ -0,0 +1,120 @@
+package com.vrases.sketchyas.codeviewer;
+
+import java.util.Random;
+
+/**
+* A document edited the way CodeViewer edits it: line starts, lexer checkpoints and tokens
+* follow each edit incrementally, and highlighting passes re-lex only the edited lines.
+* Tests feed the same edits and passes to an incremental structure and compare it with one
+* built from scratch.
+*/
+final class EditedDocument {
+
+	final StringBuilder text;
+	final LineIndex lines = new LineIndex();
+	final TokenBuffer tokens = new TokenBuffer();
+
+	private final String mLanguage;
+	private final SyntaxHighlighter mHighlighter = new SyntaxHighlighter();
+
+	// The last edit replaced mRemovedLines + 1 lines from mFirstLine with mAddedLines + 1 lines
+	private int mFirstLine;
+	private int mRemovedLines;
+	private int mAddedLines;
+
+	// Lines the last highlighting pass re-lexed
+	private int mLexedFromLine;
+	private int mLexedToLine;
+
+	EditedDocument(String language, String initialText) {
+		mLanguage = language;
+		text = new StringBuilder(initialText);
+		lines.rebuild(text);
+		tokens.reset(lines.getLineCount());
+		mHighlighter.setLexer(new SyntaxLexer(Grammar.forLanguage(language)));
+		highlight();
+	}
+
+	/**
+	* Replaces {@code removedChars} characters at {@code start} with {@code insert}.
+	*/
+	void replace(int start, int removedChars, String insert) {
+		mFirstLine = lines.findLine(start);
+		int column = start - lines.getLineStart(mFirstLine);
+		mRemovedLines = countLineBreaks(text, start, start + removedChars);
+		mAddedLines = countLineBreaks(insert, 0, insert.length());
+
+		text.replace(start, start + removedChars, insert);
+		mHighlighter.onLinesReplaced(mFirstLine, mRemovedLines, mAddedLines);
+		tokens.onTextReplaced(mFirstLine, column, removedChars, insert.length(), mRemovedLines, mAddedLines);
+		lines.onTextReplaced(text, start, removedChars, insert.length());
+	}
+
+	/**
+	* Replaces a few random characters with a random string made of {@code alphabet}.
+	*/
+	void replaceRandomly(Random random, String alphabet) {
+		int start = random.nextInt(text.length() + 1);
+		int removed = Math.min(random.nextInt(5), text.length() - start);
+		StringBuilder insert = new StringBuilder();
+		for (int i = random.nextInt(5); i > 0; i--) {
+			insert.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		replace(start, removed, insert.toString());
+	}
+
+	int getFirstLine() {
+		return mFirstLine;
+	}
+
+	int getRemovedLines() {
+		return mRemovedLines;
+	}
+
+	int getAddedLines() {
+		return mAddedLines;
+	}
+
+	/**
+	* Runs a highlighting pass over the edited lines and stores its tokens.
+	*
+	* @return False if nothing needed lexing
+	*/
+	boolean highlight() {
+		SyntaxHighlighter.Job job = mHighlighter.createJob(text, lines);
+		if (job == null) {
+			return false;
+		}
+		job.run();
+		if (!mHighlighter.commit(job)) {
+			return false;
+		}
+		tokens.setLines(job);
+		mLexedFromLine = job.getFromLine();
+		mLexedToLine = job.getFromLine() + job.getLineCount() - 1;
+		return true;
+	}
+
+	int getLexedFromLine() {
+		return mLexedFromLine;
+	}
+
+	int getLexedToLine() {
+		return mLexedToLine;
+	}
+
+	/**
+	* Returns the tokens of the current text, lexed from scratch.
+	*/
+	TokenBuffer lexFromScratch() {
+		return new EditedDocument(mLanguage, text.toString()).tokens;
+	}
+
+	private static int countLineBreaks(CharSequence s, int start, int end) {
+		int count = 0;
+		for (int i = start; i < end; i++) {
+			if (s.charAt(i) == '\n') count++;
+		}
+		return count;
+	}
+}
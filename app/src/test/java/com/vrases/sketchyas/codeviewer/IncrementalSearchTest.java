@@ -0,0 +1,65 @@
+package com.vrases.sketchyas.codeviewer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IncrementalSearchTest {
+
+	// Few letters in both cases, and word and non-word separators, so queries repeat and overlap
+	private static final String ALPHABET = "aabAB_ .";
+
+	@Test
+	public void countsOnlyWholeWordsTowardsTheMaximum() {
+		IncrementalSearch search = new IncrementalSearch();
+		String text = "ab abc ab abx ab";
+
+		// Occurrences followed by a word character come first, but must not use up the maximum
+		assertEquals(2, search.search(text, "ab", false, true, 2));
+		assertArrayEquals(new int[] {0, 7}, Arrays.copyOf(search.getPositions(), 2));
+		assertEquals(3, search.search(text, "ab", false, true, 3));
+		assertEquals(1, search.search(text, "abc", false, true, 3));
+		assertEquals(3, search.search(text, "ab", false, true, 3));
+	}
+
+	@Test
+	public void typedQueriesMatchSearchJob() {
+		Random random = new Random(25);
+		for (int round = 0; round < 200; round++) {
+			String text = randomString(random, 300);
+			boolean ignoreCase = random.nextBoolean();
+			boolean wholeWord = random.nextBoolean();
+			int maxMatches = random.nextBoolean() ? Integer.MAX_VALUE : 1 + random.nextInt(20);
+			int flags = (ignoreCase ? SearchJob.FLAG_IGNORE_CASE : 0) | (wholeWord ? SearchJob.FLAG_WHOLE_WORD : 0);
+
+			// Type and delete characters as in a search box
+			IncrementalSearch search = new IncrementalSearch();
+			StringBuilder query = new StringBuilder();
+			for (int step = 0; step < 30; step++) {
+				if (query.length() > 0 && random.nextInt(3) == 0) {
+					query.setLength(query.length() - 1 - random.nextInt(query.length()));
+				} else {
+					query.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+				}
+				if (query.length() == 0) continue;
+
+				String message = "round " + round + ", query \"" + query + "\", flags " + flags + ", max " + maxMatches;
+				int[] expected = SearchJobTest.search(text, query.toString(), flags, maxMatches, new boolean[1]);
+				int count = search.search(text, query.toString(), ignoreCase, wholeWord, maxMatches);
+				assertArrayEquals(message, expected, Arrays.copyOf(search.getPositions(), count));
+			}
+		}
+	}
+
+	private static String randomString(Random random, int length) {
+		StringBuilder s = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			s.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return s.toString();
+	}
+}
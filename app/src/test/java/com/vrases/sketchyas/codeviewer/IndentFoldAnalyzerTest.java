@@ -0,0 +1,62 @@
+package com.vrases.sketchyas.codeviewer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IndentFoldAnalyzerTest {
+
+	// Indentation, quotes, comment markers and line breaks, so lines move in and out of strings and comments
+	private static final String ALPHABET = "\n\n    \t\"\"\"#ab:";
+
+	@Test
+	public void foldsIndentedBlocks() {
+		EditedDocument document = new EditedDocument("python", "def a():\n    b()\n    # note\n\n    c = \"\"\"x\ny\"\"\"\nd()\n");
+		IndentFoldAnalyzer analyzer = new IndentFoldAnalyzer();
+		analyzer.reset(document.lines.getLineCount());
+		analyzer.analyze(document.text, document.lines, document.tokens);
+
+		// The comment, the blank line and the continued string do not end the region
+		assertEquals(1, analyzer.getRegionCount());
+		assertEquals(0, analyzer.getRegionStarts()[0]);
+		assertEquals(4, analyzer.getRegionEnds()[0]);
+	}
+
+	@Test
+	public void incrementalEditsMatchFullAnalysis() {
+		Random random = new Random(21);
+		EditedDocument document = new EditedDocument("python", "class A:\n    def b():\n        c()\n\nd = 1\n");
+		IndentFoldAnalyzer analyzer = new IndentFoldAnalyzer();
+		analyzer.reset(document.lines.getLineCount());
+
+		for (int step = 0; step < 5000; step++) {
+			document.replaceRandomly(random, ALPHABET);
+			analyzer.onLinesReplaced(document.getFirstLine(), document.getRemovedLines(), document.getAddedLines());
+
+			// Highlighting lags behind typing, so analyze with stale tokens in between
+			if (step % 3 == 0 && document.highlight()) {
+				analyzer.invalidateLines(document.getLexedFromLine(), document.getLexedToLine());
+			}
+			analyzer.analyze(document.text, document.lines, document.tokens);
+
+			if (step % 3 == 0) {
+				assertSameRegions("step " + step, document, analyzer);
+			}
+		}
+	}
+
+	private static void assertSameRegions(String message, EditedDocument document, IndentFoldAnalyzer analyzer) {
+		IndentFoldAnalyzer expected = new IndentFoldAnalyzer();
+		expected.reset(document.lines.getLineCount());
+		expected.analyze(document.text, document.lines, document.lexFromScratch());
+
+		int count = expected.getRegionCount();
+		assertEquals(message, count, analyzer.getRegionCount());
+		assertArrayEquals(message, Arrays.copyOf(expected.getRegionStarts(), count), Arrays.copyOf(analyzer.getRegionStarts(), count));
+		assertArrayEquals(message, Arrays.copyOf(expected.getRegionEnds(), count), Arrays.copyOf(analyzer.getRegionEnds(), count));
+	}
+}
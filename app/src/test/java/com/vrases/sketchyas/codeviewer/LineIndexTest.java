@@ -0,0 +1,54 @@
+package com.vrases.sketchyas.codeviewer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LineIndexTest {
+
+	private static final String[] INSERTS = {"", "x", "\n", "\n\n", "ab\ncd", " y\n z\n"};
+
+	@Test
+	public void findsLinesOfOffsets() {
+		LineIndex lines = new LineIndex();
+		lines.rebuild("a\nbc\n\nd");
+		assertEquals(4, lines.getLineCount());
+		assertEquals(6, lines.getLineStart(3));
+		assertEquals(0, lines.findLine(1));
+		assertEquals(1, lines.findLine(4));
+		assertEquals(2, lines.findLine(5));
+		assertEquals(3, lines.findLine(6));
+	}
+
+	@Test
+	public void incrementalEditsMatchRebuild() {
+		Random random = new Random(7);
+		StringBuilder text = new StringBuilder("a\nbc\n\nd");
+		LineIndex lines = new LineIndex();
+		lines.rebuild(text);
+
+		for (int step = 0; step < 20000; step++) {
+			int start = random.nextInt(text.length() + 1);
+			int removed = Math.min(text.length() > 3000 ? 200 : random.nextInt(4), text.length() - start);
+			String insert = INSERTS[random.nextInt(INSERTS.length)];
+			text.replace(start, start + removed, insert);
+			lines.onTextReplaced(text, start, removed, insert.length());
+
+			if (step % 97 == 0) {
+				assertSameLines("step " + step, text, lines);
+			}
+		}
+		assertSameLines("end", text, lines);
+	}
+
+	private static void assertSameLines(String message, CharSequence text, LineIndex lines) {
+		LineIndex expected = new LineIndex();
+		expected.rebuild(text);
+		assertEquals(message, expected.getLineCount(), lines.getLineCount());
+		for (int line = 0; line < expected.getLineCount(); line++) {
+			assertEquals(message + ", line " + line, expected.getLineStart(line), lines.getLineStart(line));
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package com.vrases.sketchyas.codeviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.sun.management.ThreadMXBean;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+public class LineNumberTextTest {
+
+	private static final int LINE_COUNT = 100000;
+	private static final int PASSES = 5;
+
+	@Test
+	public void formatsNumbersRightAligned() {
+		LineNumberText text = new LineNumberText();
+		assertEquals("0", formatted(text, 0));
+		assertEquals("7", formatted(text, 7));
+		assertEquals("1234", formatted(text, 1234));
+		assertEquals("2147483647", formatted(text, Integer.MAX_VALUE));
+		assertEquals(text.getChars().length, text.getStart() + text.getLength());
+	}
+
+	@Test
+	public void formattingDoesNotAllocate() {
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long thread = Thread.currentThread().getId();
+		LineNumberText text = new LineNumberText();
+
+		// Measure what reading the counter itself allocates
+		threads.getThreadAllocatedBytes(thread);
+		long probe = threads.getThreadAllocatedBytes(thread);
+		long probeCost = threads.getThreadAllocatedBytes(thread) - probe;
+
+		// The first passes may allocate while the JIT compiles them; a real allocation shows up in every pass
+		float sink = 0;
+		long allocated = Long.MAX_VALUE;
+		for (int pass = 0; pass < PASSES; pass++) {
+			long before = threads.getThreadAllocatedBytes(thread);
+			sink += formatAll(text);
+			allocated = Math.min(allocated, threads.getThreadAllocatedBytes(thread) - before - probeCost);
+		}
+
+		assertEquals("bytes allocated formatting " + LINE_COUNT + " line numbers", 0, allocated);
+		assertTrue(sink > 0);
+	}
+
+	/**
+	* Formats every line number the way the gutter does, returning the widths so the work is not optimized away.
+	*/
+	private static float formatAll(LineNumberText text) {
+		float widths = 0;
+		for (int line = 1; line <= LINE_COUNT; line++) {
+			widths += text.format(line);
+			widths += text.getChars()[text.getStart()] + text.getLength();
+		}
+		return widths;
+	}
+
+	private static String formatted(LineNumberText text, int number) {
+		text.format(number);
+		return new String(text.getChars(), text.getStart(), text.getLength());
+	}
+}
@@ -0,0 +1,71 @@
+package com.vrases.sketchyas.codeviewer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SearchJobTest {
+
+	@Test
+	public void findsOverlappingLiteralMatches() {
+		assertArrayEquals(new int[] {0, 1, 2}, search("aaaa", "aa", 0, Integer.MAX_VALUE));
+		assertArrayEquals(new int[] {0, 2}, search("a.a.", "a.", 0, Integer.MAX_VALUE));
+		assertArrayEquals(new int[] {0, 1, 2}, search("AaAa", "aa", SearchJob.FLAG_IGNORE_CASE, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void regularExpressionsContinueAfterEachMatch() {
+		assertArrayEquals(new int[] {0, 2}, search("aaaa", "aa", SearchJob.FLAG_REGEX, Integer.MAX_VALUE));
+		assertArrayEquals(new int[] {1, 3}, search("baba", "a*", SearchJob.FLAG_REGEX, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void findsWholeWords() {
+		assertArrayEquals(new int[] {0, 13}, search("int x; int_y int", "int", SearchJob.FLAG_WHOLE_WORD, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void stopsAtTheMaximum() {
+		boolean[] capped = new boolean[1];
+		int[] starts = search("aaaa", "a", 0, 2, capped);
+		assertArrayEquals(new int[] {0, 1}, starts);
+		assertTrue(capped[0]);
+
+		search("aaaa", "a", 0, 5, capped);
+		assertFalse(capped[0]);
+	}
+
+	private static int[] search(String text, String query, int flags, int maxMatches) {
+		return search(text, query, flags, maxMatches, new boolean[1]);
+	}
+
+	/**
+	* Returns the starts of the matches, checking each end and noting whether the search was capped.
+	*/
+	static int[] search(String text, final String query, final int flags, int maxMatches, final boolean[] capped) {
+		final int[][] starts = {new int[0]};
+		new SearchJob(text, query, flags, maxMatches, new SearchJob.Callback() {
+			@Override
+			public void onMatches(SearchJob job, int[] batchStarts, int[] batchEnds, int count) {
+				int total = starts[0].length;
+				starts[0] = Arrays.copyOf(starts[0], total + count);
+				for (int i = 0; i < count; i++) {
+					if ((flags & SearchJob.FLAG_REGEX) == 0 && batchEnds[i] - batchStarts[i] != query.length()) {
+						throw new AssertionError("match " + (total + i) + " ends at " + batchEnds[i]);
+					}
+					starts[0][total + i] = batchStarts[i];
+				}
+			}
+
+			@Override
+			public void onFinished(SearchJob job, boolean wasCapped) {
+				capped[0] = wasCapped;
+			}
+		}).run();
+		return starts[0];
+	}
+}
@@ -0,0 +1,76 @@
+package com.vrases.sketchyas.codeviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SyntaxHighlighterTest {
+
+	@Test
+	public void unsettledStateContinuesInLaterPasses() {
+		EditedDocument document = new EditedDocument("java", createCode(20000));
+		int lineCount = document.lines.getLineCount();
+
+		// An unclosed block comment turns every following line into a comment
+		document.replace(0, 0, "/*");
+		int passes = 0;
+		int lexedTo = -1;
+		while (document.highlight()) {
+			assertEquals(lexedTo + 1, document.getLexedFromLine());
+			lexedTo = document.getLexedToLine();
+			passes++;
+		}
+		assertTrue("passes: " + passes, passes > 1);
+		assertEquals(lineCount - 1, lexedTo);
+		assertSameTokens(document.lexFromScratch(), document.tokens);
+	}
+
+	@Test
+	public void budgetRunsOutWithinLongLine() {
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 4 * 1024 * 1024) {
+			text.append("a = b(1) + c; ");
+		}
+		text.append("\nint d;\n");
+		LineIndex lines = new LineIndex();
+		lines.rebuild(text);
+		SyntaxHighlighter highlighter = new SyntaxHighlighter();
+		highlighter.setLexer(new SyntaxLexer(Grammar.forLanguage("java")));
+		highlighter.setTimeBudget(1);
+
+		// The first line alone takes far longer than the budget; it is left plain with the rest
+		SyntaxHighlighter.Job job = highlighter.createJob(text, lines);
+		job.run();
+		assertTrue(job.isTruncated());
+		assertEquals(0, job.getLineCount());
+		assertEquals(0, job.getTokenCount());
+		assertEquals(text.length(), job.getRangeEnd());
+		assertTrue(highlighter.commit(job));
+	}
+
+	/**
+	* Returns more lines than one pass copies after an edit.
+	*/
+	private static String createCode(int lines) {
+		StringBuilder code = new StringBuilder();
+		for (int i = 0; i < lines; i++) {
+			code.append("int a").append(i).append(" = call(\"s\"); // c\n");
+		}
+		assertTrue(code.length() > 2 * SyntaxHighlighter.SNAPSHOT_MARGIN_CHARS);
+		return code.toString();
+	}
+
+	private static void assertSameTokens(TokenBuffer expected, TokenBuffer actual) {
+		assertEquals(expected.getLineCount(), actual.getLineCount());
+		assertEquals(expected.getTokenCount(), actual.getTokenCount());
+		for (int line = 0; line < expected.getLineCount(); line++) {
+			assertEquals("line " + line, expected.getLineFirstToken(line), actual.getLineFirstToken(line));
+		}
+		for (int token = 0; token < expected.getTokenCount(); token++) {
+			assertEquals("token " + token, expected.getRelativeStart(token), actual.getRelativeStart(token));
+			assertEquals("token " + token, expected.getLength(token), actual.getLength(token));
+			assertEquals("token " + token, expected.getType(token), actual.getType(token));
+		}
+	}
+}
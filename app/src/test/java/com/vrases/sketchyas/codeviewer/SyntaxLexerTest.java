@@ -0,0 +1,54 @@
+package com.vrases.sketchyas.codeviewer;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SyntaxLexerTest {
+
+	@Test
+	public void rawStringsEndAtTrailingBackslash() {
+		SyntaxLexer lexer = new SyntaxLexer(new Grammar.Builder("go").cStyleComments().rawStrings("`").build());
+		StringSink sink = new StringSink("p := `C:\\dir\\` + q");
+
+		assertEquals(SyntaxLexer.STATE_DEFAULT, sink.lex(lexer, SyntaxLexer.STATE_DEFAULT));
+		assertEquals("`C:\\dir\\`", sink.strings.toString());
+	}
+
+	@Test
+	public void rawStringsCloseOnLaterLine() {
+		SyntaxLexer lexer = new SyntaxLexer(Grammar.forLanguage("kotlin"));
+		StringSink open = new StringSink("val r = \"\"\"^\\d+\\");
+		StringSink close = new StringSink("\\\"\"\" + s");
+
+		assertEquals(SyntaxLexer.STATE_RAW_STRING, open.lex(lexer, SyntaxLexer.STATE_DEFAULT));
+		assertEquals(SyntaxLexer.STATE_DEFAULT, close.lex(lexer, SyntaxLexer.STATE_RAW_STRING));
+		assertEquals("\\\"\"\"", close.strings.toString());
+	}
+
+	/**
+	* Lexes one line and collects the text of its string tokens.
+	*/
+	private static final class StringSink implements SyntaxLexer.TokenSink {
+		final String line;
+		final StringBuilder strings = new StringBuilder();
+
+		StringSink(String line) {
+			this.line = line;
+		}
+
+		int lex(SyntaxLexer lexer, int state) {
+			return lexer.lexLine(line, 0, line.length(), state, this);
+		}
+
+		@Override
+		public boolean shouldStop() {
+			return false;
+		}
+
+		@Override
+		public void onToken(int start, int end, int type) {
+			if (type == TokenType.STRING) strings.append(line, start, end);
+		}
+	}
+}